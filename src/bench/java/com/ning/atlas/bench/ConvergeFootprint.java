@@ -0,0 +1,166 @@
+package com.ning.atlas.bench;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Objects;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.io.Files;
+import com.google.common.util.concurrent.Futures;
+import com.ning.atlas.ActualDeployment;
+import com.ning.atlas.Base;
+import com.ning.atlas.Environment;
+import com.ning.atlas.Host;
+import com.ning.atlas.ServerTemplate;
+import com.ning.atlas.SystemTemplate;
+import com.ning.atlas.Template;
+import com.ning.atlas.components.ConcurrentComponent;
+import com.ning.atlas.plugin.StaticPluginSystem;
+import com.ning.atlas.space.InMemorySpace;
+import com.ning.atlas.spi.Component;
+import com.ning.atlas.spi.Deployment;
+import com.ning.atlas.spi.Identity;
+import com.ning.atlas.spi.Installer;
+import com.ning.atlas.spi.Provisioner;
+import com.ning.atlas.spi.Uri;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+
+/**
+ * Converges a fleet of simulated hosts whose provisioner and installers block the way ssh
+ * does, and reports how many platform threads and how much memory it took. Thread stacks are
+ * neither heap nor non-heap, so what the process as a whole took is its peak resident set
+ * size, read from <code>/proc/self/status</code> and so only reported on linux. Run once per
+ * thread mode, each in its own jvm, and compare:
+ * <pre>
+ *   mvn -Pbenchmarks test-compile exec:java -Dexec.mainClass=com.ning.atlas.bench.ConvergeFootprint \
+ *       -Dexec.args="1000 platform 2000"
+ *   mvn -Pbenchmarks test-compile exec:java -Dexec.mainClass=com.ning.atlas.bench.ConvergeFootprint \
+ *       -Dexec.args="1000 virtual 2000"
+ * </pre>
+ * Arguments are number of hosts, <code>atlas.threads</code> mode, and how long each
+ * simulated remote operation blocks in milliseconds. Every pool is sized to the fleet so
+ * all hosts are in flight at once, which is the case virtual threads are meant for.
+ */
+public class ConvergeFootprint
+{
+    public static void main(String... args) throws Exception
+    {
+        int hosts = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        String mode = args.length > 1 ? args[1] : "platform";
+        long block_millis = args.length > 2 ? Long.parseLong(args[2]) : 2000;
+
+        List<String> names = Lists.newArrayListWithCapacity(hosts);
+        for (int i = 0; i < hosts; i++) {
+            names.add(String.valueOf(i));
+        }
+
+        Uri<Installer> step = Uri.valueOf("remote:" + block_millis);
+        ServerTemplate server = new ServerTemplate("server",
+                                                   Uri.<Base>valueOf("base"),
+                                                   names,
+                                                   Arrays.asList(step, step),
+                                                   Collections.<String, Object>emptyMap());
+        SystemTemplate root = new SystemTemplate("root",
+                                                 Collections.<String, Object>emptyMap(),
+                                                 Arrays.asList("0"),
+                                                 Arrays.<Template>asList(server));
+
+        StaticPluginSystem plugins = new StaticPluginSystem();
+        plugins.registerProvisioner("remote", SimulatedRemote.class, Collections.<String, String>emptyMap());
+        plugins.registerInstaller("remote", SimulatedRemote.class, Collections.<String, String>emptyMap());
+
+        Map<String, Base> bases = ImmutableMap.of("base", new Base(Uri.<Provisioner>valueOf("remote:" + block_millis),
+                                                                   Arrays.asList(step)));
+        Map<String, String> properties = ImmutableMap.of("atlas.threads", mode,
+                                                         "atlas.concurrency.default", String.valueOf(hosts));
+        Environment env = new Environment("bench",
+                                          plugins,
+                                          Collections.<String, Map<String, String>>emptyMap(),
+                                          Collections.<String, Map<String, String>>emptyMap(),
+                                          Collections.<String, Map<String, String>>emptyMap(),
+                                          bases,
+                                          properties);
+
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+
+        System.gc();
+        long heap_before = memory.getHeapMemoryUsage().getUsed();
+        threads.resetPeakThreadCount();
+        long start = System.nanoTime();
+
+        ActualDeployment deployment = env.planDeploymentFor(root.normalize(env), InMemorySpace.newInstance());
+        deployment.converge();
+
+        long elapsed_millis = (System.nanoTime() - start) / 1000000;
+        int peak_threads = threads.getPeakThreadCount();
+        long heap_after = memory.getHeapMemoryUsage().getUsed();
+        long non_heap = memory.getNonHeapMemoryUsage().getUsed();
+        Map<String, String> status = procStatus();
+
+        System.out.printf("hosts:                  %d%n", hosts);
+        System.out.printf("thread mode:            %s%n", deployment.getWorkerPools().isVirtual() ? "virtual" : "platform");
+        System.out.printf("remote steps per host:  4 x %dms%n", block_millis);
+        System.out.printf("converge time:          %dms%n", elapsed_millis);
+        System.out.printf("peak platform threads:  %d%n", peak_threads);
+        System.out.printf("heap growth:            %dKB%n", (heap_after - heap_before) / 1024);
+        System.out.printf("non-heap used:          %dKB%n", non_heap / 1024);
+        System.out.printf("peak resident set:      %s%n", Objects.firstNonNull(status.get("VmHWM"), "unknown"));
+        System.out.printf("resident set after:     %s%n", Objects.firstNonNull(status.get("VmRSS"), "unknown"));
+    }
+
+    /**
+     * The process's status as linux reports it, empty elsewhere
+     */
+    private static Map<String, String> procStatus() throws IOException
+    {
+        File status = new File("/proc/self/status");
+        Map<String, String> rs = Maps.newHashMap();
+        if (!status.exists()) {
+            return rs;
+        }
+        for (String line : Files.readLines(status, Charsets.US_ASCII)) {
+            int colon = line.indexOf(':');
+            if (colon > 0) {
+                rs.put(line.substring(0, colon), line.substring(colon + 1).trim());
+            }
+        }
+        return rs;
+    }
+
+    /**
+     * Provisioner and installer which blocks for the number of milliseconds in its uri
+     * fragment, standing in for an ssh session to a remote host.
+     */
+    public static class SimulatedRemote extends ConcurrentComponent
+    {
+        @Override
+        public String perform(Host host, Uri<? extends Component> uri, Deployment d) throws Exception
+        {
+            Thread.sleep(Long.parseLong(uri.getFragment()));
+            return "slept";
+        }
+
+        @Override
+        public String unwind(Identity hostId, Uri<? extends Component> uri, Deployment d) throws Exception
+        {
+            return "nothing to unwind";
+        }
+
+        @Override
+        public Future<String> describe(Host server, Uri<? extends Component> uri, Deployment deployment)
+        {
+            return Futures.immediateFuture("block for " + uri.getFragment() + "ms");
+        }
+    }
+}
@@ -0,0 +1,226 @@
+package com.ning.atlas.bench;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+import com.google.common.io.Files;
+import com.ning.atlas.components.aws.EC2Provisioner.EC2InstanceInfo;
+import com.ning.atlas.space.H2BackedSpace;
+import com.ning.atlas.space.InMemorySpace;
+import com.ning.atlas.space.LogBackedSpace;
+import com.ning.atlas.space.SQLiteBackedSpace;
+import com.ning.atlas.space.Spaces;
+import com.ning.atlas.space.VersionedSpace;
+import com.ning.atlas.spi.Identity;
+import com.ning.atlas.spi.protocols.Server;
+import com.ning.atlas.spi.space.Space;
+import com.ning.atlas.spi.space.SpaceKey;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * What a converge asks of its space, against each backend holding more and more identities:
+ * hosts storing their server and instance from several threads at once, a template's wildcard
+ * and regex queries, reading a system's subtree, and an unwind removing a host. Everything is
+ * local, in temporary files, so results can be reproduced without AWS:
+ * <pre>
+ *   mvn -Pbenchmarks test-compile exec:exec -Dexec.executable=java \
+ *       -Dexec.args="-cp %classpath org.openjdk.jmh.Main SpaceBackendBenchmark -p identities=1000"
+ * </pre>
+ * Each host is two identities, the host with its {@link Server} and the instance below it, in
+ * one of ten systems of which every tenth host is a web server. The default backend is the
+ * space an environment gets with nothing in atlas.conf, and the versioned backend is that
+ * space keeping 50 generations of history, sealing one per iteration as a deployment does per
+ * stage. Hosts stored by {@link #storeBeans()} are removed again before each iteration, so
+ * every iteration runs against the space as loaded.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SpaceBackendBenchmark
+{
+    private static final String WILDCARD = "/system.*/webapp.*:external-address";
+    private static final String REGEX    = "/*/<web\\w*>.*/ec2.*:ec2-instance-id";
+
+    private static final int SYSTEMS = 10;
+
+    // where storeBeans puts its hosts, so they can be removed between iterations at once
+    private static final Identity STORED = Identity.root().createChild("stored", "0");
+
+    @Param({"default", "memory", "sqlite", "sqlite-write-behind", "h2", "log", "versioned"})
+    public String backend;
+
+    @Param({"1000", "10000", "100000"})
+    public int identities;
+
+    private File  dir;
+    private Space space;
+    private int   hosts;
+
+    private final AtomicLong next = new AtomicLong();
+
+    @Setup
+    public void setUp() throws IOException
+    {
+        dir = Files.createTempDir();
+        File storage = new File(dir, "space");
+        if ("sqlite".equals(backend)) {
+            space = SQLiteBackedSpace.create(storage);
+        }
+        else if ("sqlite-write-behind".equals(backend)) {
+            space = SQLiteBackedSpace.createWriteBehind(storage);
+        }
+        else if ("h2".equals(backend)) {
+            space = H2BackedSpace.create(storage);
+        }
+        else if ("log".equals(backend)) {
+            space = LogBackedSpace.create(storage);
+        }
+        else if ("default".equals(backend)) {
+            space = Spaces.forEnvironment(dir, ImmutableMap.<String, String>of());
+        }
+        else if ("versioned".equals(backend)) {
+            space = Spaces.forEnvironment(dir, ImmutableMap.of(VersionedSpace.HISTORY_PROPERTY, "50"));
+        }
+        else {
+            space = InMemorySpace.newInstance();
+        }
+
+        // loaded in batches, so setting up a write through space doesn't take longer than the run
+        hosts = identities / 2;
+        Map<SpaceKey, String> batch = Maps.newHashMap();
+        for (int i = 0; i < hosts; i++) {
+            batch.putAll(hostValues(i));
+            if (batch.size() >= 5000) {
+                space.storeAll(batch);
+                batch.clear();
+            }
+        }
+        space.storeAll(batch);
+        space.flush();
+    }
+
+    @Setup(Level.Iteration)
+    public void startIteration()
+    {
+        space.deleteAll(STORED);
+        space.flush();
+        next.set(0);
+        if (space instanceof VersionedSpace) {
+            ((VersionedSpace) space).snapshot();
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException
+    {
+        space.close();
+        delete(dir);
+    }
+
+    private static void delete(File file)
+    {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    private static Identity host(long i)
+    {
+        Identity system = Identity.root().createChild("system", String.valueOf(i % SYSTEMS));
+        return system.createChild(i % SYSTEMS == 0 ? "webapp" : "db", String.valueOf(i));
+    }
+
+    private static Identity instance(Identity host)
+    {
+        return host.createChild("ec2", "instance");
+    }
+
+    private static Map<SpaceKey, String> hostValues(long i)
+    {
+        Identity host = host(i);
+        Map<SpaceKey, String> rs = Maps.newHashMap();
+        rs.put(SpaceKey.from(host, "external-address"), "ec2-10-0-" + (i / 256) % 256 + "-" + i % 256 + ".amazonaws.com");
+        rs.put(SpaceKey.from(host, "internal-address"), "10.0." + (i / 256) % 256 + "." + i % 256);
+        rs.put(SpaceKey.from(instance(host), "ec2-instance-id"), "i-" + Long.toHexString(0x10000000L + i));
+        return rs;
+    }
+
+    /**
+     * A provisioner storing what it made, a host at a time from many threads
+     */
+    @Benchmark
+    @Threads(8)
+    public void storeBeans()
+    {
+        long i = next.getAndIncrement();
+        Identity host = STORED.createChild("host", String.valueOf(i));
+
+        Server server = new Server("ec2-10-0-0-1.compute-1.amazonaws.com", "10.0.0.1");
+        EC2InstanceInfo info = new EC2InstanceInfo();
+        info.setEc2InstanceId("i-" + Long.toHexString(0x10000000L + i));
+
+        space.store(host, server);
+        space.store(instance(host), info);
+    }
+
+    @Benchmark
+    public Set<String> queryWildcard()
+    {
+        return space.query(WILDCARD);
+    }
+
+    @Benchmark
+    public Set<String> queryRegex()
+    {
+        return space.query(REGEX);
+    }
+
+    /**
+     * Everything below one of the systems, a tenth of the space
+     */
+    @Benchmark
+    public Map<SpaceKey, String> getAllForSystem()
+    {
+        int system = ThreadLocalRandom.current().nextInt(SYSTEMS);
+        return space.getAllFor(Identity.root().createChild("system", String.valueOf(system)));
+    }
+
+    /**
+     * Removing a host and what is below it, as unwinding it does, then putting it back so the
+     * space stays the size it was loaded at
+     */
+    @Benchmark
+    public void unwindHost()
+    {
+        int i = ThreadLocalRandom.current().nextInt(hosts);
+        space.deleteAll(host(i));
+        space.storeAll(hostValues(i));
+    }
+}
@@ -0,0 +1,87 @@
+package com.ning.atlas.bench;
+
+import com.ning.atlas.space.InMemorySpace;
+import com.ning.atlas.space.QueryParser;
+import com.ning.atlas.space.SpaceQuery;
+import com.ning.atlas.spi.Identity;
+import com.ning.atlas.spi.space.Space;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency of the sort of query a template makes for every host, against spaces holding more
+ * and more identities: through the space, looking the compiled query up with
+ * {@link QueryParser#compile(String)}, running one query held onto, and parsing it afresh
+ * each time:
+ * <pre>
+ *   mvn -Pbenchmarks test-compile exec:exec -Dexec.executable=java \
+ *       -Dexec.args="-cp %classpath org.openjdk.jmh.Main SpaceQueryBenchmark"
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SpaceQueryBenchmark
+{
+    private static final String EXPRESSION = "/*/<web\\w*>.*/server.*:internal-address";
+
+    @Param({"100", "1000", "10000"})
+    public int identities;
+
+    private Space      space;
+    private SpaceQuery query;
+
+    @Setup
+    public void setUp()
+    {
+        space = InMemorySpace.newInstance();
+
+        // a tenth of the systems are web clusters, each host has a server below it
+        for (int i = 0; i < identities / 2; i++) {
+            Identity system = Identity.root().createChild("system", String.valueOf(i % 10));
+            Identity host = system.createChild(i % 10 == 0 ? "webapp" : "db", String.valueOf(i));
+            space.store(host, "hostname", "host-" + i);
+            space.store(host.createChild("server", "0"), "internal-address", "10.0." + (i / 256) + "." + (i % 256));
+        }
+        query = QueryParser.compile(EXPRESSION);
+    }
+
+    @Benchmark
+    public Set<String> compiled()
+    {
+        return space.query(EXPRESSION);
+    }
+
+    @Benchmark
+    public Set<String> compiledEachTime()
+    {
+        return QueryParser.compile(EXPRESSION).query(space);
+    }
+
+    @Benchmark
+    public Set<String> compiledOnce()
+    {
+        return query.query(space);
+    }
+
+    @Benchmark
+    public Set<String> parsedEachTime()
+    {
+        return new QueryParser().parse(EXPRESSION).query(space);
+    }
+}
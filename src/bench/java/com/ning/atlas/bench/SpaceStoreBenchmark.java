@@ -0,0 +1,113 @@
+package com.ning.atlas.bench;
+
+import com.ning.atlas.space.LogBackedSpace;
+import com.ning.atlas.space.SQLiteBackedSpace;
+import com.ning.atlas.spi.Identity;
+import com.ning.atlas.spi.space.Space;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Throughput of storing a six property bean, as a provisioner storing its server does, from
+ * several threads at once against a sqlite space which writes through, one which writes
+ * behind, and a memory mapped log:
+ * <pre>
+ *   mvn -Pbenchmarks test-compile exec:exec -Dexec.executable=java \
+ *       -Dexec.args="-cp %classpath org.openjdk.jmh.Main SpaceStoreBenchmark"
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SpaceStoreBenchmark
+{
+    @Param({"write-through", "write-behind", "log"})
+    public String mode;
+
+    private final AtomicLong hosts = new AtomicLong();
+
+    private File  db;
+    private Space space;
+
+    @Setup
+    public void setUp() throws IOException
+    {
+        db = File.createTempFile("bench", ".db");
+        if ("write-behind".equals(mode)) {
+            space = SQLiteBackedSpace.createWriteBehind(db);
+        }
+        else if ("log".equals(mode)) {
+            space = LogBackedSpace.create(db);
+        }
+        else {
+            space = SQLiteBackedSpace.create(db);
+        }
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        space.flush();
+        db.delete();
+    }
+
+    @Benchmark
+    @Threads(8)
+    public void storeBean()
+    {
+        Identity id = Identity.root().createChild("server", String.valueOf(hosts.incrementAndGet()));
+        space.store(id, new Instance());
+    }
+
+    public static class Instance
+    {
+        public String getExternalAddress()
+        {
+            return "ec2-10-0-0-1.compute-1.amazonaws.com";
+        }
+
+        public String getInternalAddress()
+        {
+            return "10.0.0.1";
+        }
+
+        public String getInstanceId()
+        {
+            return "i-12345678";
+        }
+
+        public String getImage()
+        {
+            return "ami-a7f539ce";
+        }
+
+        public String getZone()
+        {
+            return "us-east-1a";
+        }
+
+        public int getPort()
+        {
+            return 22;
+        }
+    }
+}
@@ -9,24 +9,18 @@ import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 import com.google.common.util.concurrent.ListeningExecutorService;
-import com.google.common.util.concurrent.MoreExecutors;
 import com.ning.atlas.bus.GuavaNotificationBus;
 import com.ning.atlas.logging.Logger;
+import com.ning.atlas.space.SpaceCollector;
+import com.ning.atlas.space.VersionedSpace;
 import com.ning.atlas.spi.Deployment;
 import com.ning.atlas.spi.Identity;
 import com.ning.atlas.spi.Installer;
 import com.ning.atlas.spi.LifecycleListener;
-import com.ning.atlas.spi.Maybe;
 import com.ning.atlas.spi.Provisioner;
 import com.ning.atlas.spi.Scratch;
-import com.ning.atlas.spi.Status;
 import com.ning.atlas.spi.Uri;
-import com.ning.atlas.spi.bus.FinishedServerInstall;
-import com.ning.atlas.spi.bus.FinishedServerProvision;
 import com.ning.atlas.spi.bus.NotificationBus;
-import com.ning.atlas.spi.bus.StartServerInstall;
-import com.ning.atlas.spi.bus.StartServerProvision;
-import com.ning.atlas.spi.space.Missing;
 import com.ning.atlas.spi.space.Space;
 import org.apache.commons.lang3.tuple.Pair;
 
@@ -35,10 +29,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
-import java.util.concurrent.atomic.AtomicReference;
 
 import static com.google.common.collect.Lists.reverse;
 import static com.google.common.collect.Lists.transform;
@@ -47,18 +38,24 @@ public class ActualDeployment implements Deployment
 {
     private static final Logger log = Logger.get(ActualDeployment.class);
 
-    private final GuavaNotificationBus bus = new GuavaNotificationBus();
-
-    private final SystemMap   map;
-    private final Environment environment;
-    private final Space       space;
-    private final Scratch scratch = new ActualScratch();
+    private final SystemMap            map;
+    private final Environment          environment;
+    private final Space                space;
+    private final ActualScratch        scratch = new ActualScratch();
+    private final WorkerPools          pools;
+    private final SSHConnections       connections;
+    private final GuavaNotificationBus bus;
+    private final SpaceCollector       collector;
 
     public ActualDeployment(SystemMap map, Environment environment, Space space)
     {
         this.map = map;
         this.environment = environment;
         this.space = space;
+        this.pools = new WorkerPools(environment.getProperties());
+        this.connections = new SSHConnections(environment.getProperties());
+        this.bus = new GuavaNotificationBus(pools.get(WorkerPools.EVENTS));
+        this.collector = SpaceCollector.create(space, environment.getProperties());
     }
 
     Description describe()
@@ -128,52 +125,62 @@ public class ActualDeployment implements Deployment
 
     public void destroy()
     {
-        ListeningExecutorService es = MoreExecutors.listeningDecorator(Executors.newCachedThreadPool());
+        ListeningExecutorService es = pools.get(WorkerPools.CONVERGE);
         List<LifecycleListener> listeners = environment.getListeners();
 
         startDeployment(listeners);
+        try {
+            log.info("beginning unwind");
+            fire(Events.startUnwind, listeners);
 
-        log.info("beginning unwind");
-        fire(Events.startUnwind, listeners);
-
-        Set<Identity> identities = space.findAllIdentities();
-        Set<Identity> to_unwind = Sets.newHashSet();
-        for (Identity identity : identities) {
-            final Maybe<WhatWasDone> mwwd = space.get(identity.createChild("atlas", "unwind"),
-                                                      WhatWasDone.class,
-                                                      Missing.RequireAll);
-            if (mwwd.isKnown()) {
-                to_unwind.add(identity);
-            }
-        }
-
-        unwindAll(es, to_unwind);
-
-        log.info("finished unwind");
-        fire(Events.finishUnwind, listeners);
+            unwindAll(es, findUnwindable(space.findAllIdentities()));
+            space.flush();
+            snapshot("unwind");
 
+            log.info("finished unwind");
+            fire(Events.finishUnwind, listeners);
 
-        finishDeployment(listeners);
 
-        es.shutdown();
+            finishDeployment(listeners);
+        }
+        finally {
+            space.flush();
+            connections.closeAll();
+        }
+        log.debug("worker pools: %s", pools);
+        log.debug("%s", connections);
     }
 
     public void converge()
     {
-        ListeningExecutorService es = MoreExecutors.listeningDecorator(Executors.newCachedThreadPool());
+        ListeningExecutorService es = pools.get(WorkerPools.CONVERGE);
         List<LifecycleListener> listeners = environment.getListeners();
 
         startDeployment(listeners);
-        provision(listeners);
-        initialize(listeners, es);
-        install(listeners, es);
-        unwind(listeners, es);
-        finishDeployment(listeners);
-
-        es.shutdown();
+        try {
+            if (!build(listeners, es)) {
+                throw new IllegalStateException("unable to converge every host, see the log for what failed");
+            }
+            unwind(listeners, es);
+            finishDeployment(listeners);
+        }
+        catch (RuntimeException e) {
+            // whatever was provisioned must be found by the next converge or destroy
+            recordUnwindData();
+            throw e;
+        }
+        finally {
+            space.flush();
+            connections.closeAll();
+        }
+        log.debug("worker pools: %s", pools);
+        log.debug("%s", connections);
     }
 
-    private void finishDeployment(List<LifecycleListener> listeners)
+    /**
+     * Record what was done to each host, so it can be undone once the host is gone from the map
+     */
+    private void recordUnwindData()
     {
         for (Host host : map.findLeaves()) {
             try {
@@ -187,13 +194,45 @@ public class ActualDeployment implements Deployment
                 log.warn(e, "broke trying to record unwind data for a host %s", host.getId());
             }
         }
+        space.flush();
+    }
+
+    private void finishDeployment(List<LifecycleListener> listeners)
+    {
+        recordUnwindData();
+
+        Set<Identity> live = Sets.newHashSet();
+        for (Host host : map.findLeaves()) {
+            live.add(host.getId());
+        }
+        try {
+            collector.finish(live);
+        }
+        catch (RuntimeException e) {
+            log.warn(e, "unable to collect unused values from the space");
+        }
+        if (space instanceof VersionedSpace) {
+            long deployed = ((VersionedSpace) space).deployed();
+            log.info("space generation %d is what this deployment left", deployed);
+        }
 
         // finishDeploy (no one can listen for this yet)
         fire(Events.finishDeployment, listeners);
     }
 
+    /**
+     * Seal the space's generation at the end of a stage, so it can be read as it was then
+     */
+    private void snapshot(String stage)
+    {
+        if (space instanceof VersionedSpace) {
+            log.debug("space generation %d is as of the end of %s", ((VersionedSpace) space).snapshot(), stage);
+        }
+    }
+
     private void startDeployment(List<LifecycleListener> listeners)
     {
+        collector.start();
         fire(Events.startDeployment, listeners);
     }
 
@@ -207,23 +246,31 @@ public class ActualDeployment implements Deployment
         for (Host host : map.findLeaves()) {
             deployed.add(host.getId());
         }
-        Set<Identity> identities = space.findAllIdentities();
-        Set<Identity> to_unwind = Sets.newHashSet();
+        unwindAll(es, findUnwindable(Sets.difference(space.findAllIdentities(), deployed)));
+        space.flush();
+        snapshot("unwind");
+        log.info("finished unwind");
+        fire(Events.finishUnwind, listeners);
+    }
+
+    /**
+     * What was done to each of the identities which recorded it, read all at once
+     */
+    private Map<Identity, WhatWasDone> findUnwindable(Set<Identity> identities)
+    {
+        Map<Identity, Identity> records = Maps.newLinkedHashMap();
         for (Identity identity : identities) {
-            final Maybe<WhatWasDone> mwwd = space.get(identity.createChild("atlas", "unwind"),
-                                                      WhatWasDone.class,
-                                                      Missing.RequireAll);
-            if (!deployed.contains(identity) && mwwd.isKnown()) {
-                to_unwind.add(identity);
-            }
+            records.put(identity.createChild("atlas", "unwind"), identity);
         }
 
-        unwindAll(es, to_unwind);
-        log.info("finished unwind");
-        fire(Events.finishUnwind, listeners);
+        Map<Identity, WhatWasDone> rs = Maps.newLinkedHashMap();
+        for (Map.Entry<Identity, WhatWasDone> entry : space.getBeans(records.keySet(), WhatWasDone.class).entrySet()) {
+            rs.put(records.get(entry.getKey()), entry.getValue());
+        }
+        return rs;
     }
 
-    private void unwindAll(ListeningExecutorService es, Set<Identity> ids)
+    private void unwindAll(ListeningExecutorService es, Map<Identity, WhatWasDone> done)
     {
         final InstallerCache installer_cache = new InstallerCache(this);
 
@@ -251,14 +298,14 @@ public class ActualDeployment implements Deployment
                                                                          });
 
         List<Future<?>> futures = Lists.newArrayList();
-        for (final Identity identity : ids) {
-            final Maybe<WhatWasDone> mwwd = space.get(identity.createChild("atlas", "unwind"), WhatWasDone.class);
+        for (Map.Entry<Identity, WhatWasDone> entry : done.entrySet()) {
+            final Identity identity = entry.getKey();
+            final WhatWasDone wwd = entry.getValue();
             futures.add(es.submit(new Callable<Object>()
             {
                 @Override
                 public Object call() throws Exception
                 {
-                    WhatWasDone wwd = mwwd.getValue();
 
                     for (Uri<Installer> in : transform(reverse(wwd.getInstallations()), Uri.<Installer>stringToUri())) {
                         try {
@@ -314,36 +361,81 @@ public class ActualDeployment implements Deployment
 
     }
 
-    private void install(List<LifecycleListener> listeners, ListeningExecutorService es)
+    /**
+     * Provisions, initializes, and installs every host. Rather than running each of these as a
+     * stage across all hosts, each host proceeds through its own steps as soon as it can, see
+     * {@link ConvergeGraph}. Lifecycle listeners see each stage start just before its first
+     * step begins, and finish once every host is through it, so the start of one stage may
+     * come before the finish of the one before it.
+     *
+     * @return true if every step succeeded
+     */
+    private boolean build(final List<LifecycleListener> listeners, ListeningExecutorService es)
     {
-        log.info("starting install");
+        log.info("starting provision, init, and install");
         bus.startNewStage();
-        fire(Events.startInstall, listeners);
+        fire(Events.startProvision, listeners);
 
-        List<Pair<Host, List<Uri<Installer>>>> floggles = Lists.newArrayList();
-        for (Host host : map.findLeaves()) {
-            floggles.add(Pair.of(host, host.getInstallationUris()));
+        final Set<Host> servers = map.findLeaves();
+        final Map<String, Provisioner> provisioners = Maps.newHashMap();
+        for (final Host server : servers) {
+            if (!provisioners.containsKey(server.getProvisionerUri().getScheme())) {
+                Provisioner p = environment.resolveProvisioner(server.getProvisionerUri().getScheme());
+                provisioners.put(server.getProvisionerUri().getScheme(), p);
+            }
         }
-        performInstalls(es, floggles);
 
-        fire(Events.finishInstall, listeners);
-        log.info("finished install");
-    }
+        // startProvision
+        for (Provisioner provisioner : provisioners.values()) {
+            provisioner.start(this);
+        }
 
-    private void initialize(List<LifecycleListener> listeners, ListeningExecutorService es)
-    {
-        log.info("starting init");
-        bus.startNewStage();
-        fire(Events.startInit, listeners);
+        InstallerCache installers = new InstallerCache(this);
+        ConvergeGraph graph = new ConvergeGraph(this, bus, scratch, es, environment.getProperties());
+        for (Host server : servers) {
+            graph.addHost(server, provisioners.get(server.getProvisionerUri().getScheme()), installers);
+        }
+        graph.beforeInitialization(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                fire(Events.startInit, listeners);
+            }
+        });
+        graph.beforeInstallation(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                fire(Events.startInstall, listeners);
+            }
+        });
+        graph.start();
 
-        List<Pair<Host, List<Uri<Installer>>>> floggles = Lists.newArrayList();
-        for (Host host : map.findLeaves()) {
-            floggles.add(Pair.of(host, host.getInitializationUris()));
+        boolean provisioned = graph.awaitProvisioning();
+        space.flush();
+        snapshot("provision");
+        // finishProvision
+        for (Provisioner provisioner : provisioners.values()) {
+            provisioner.finish(this);
         }
-        performInstalls(es, floggles);
+        fire(Events.finishProvision, listeners);
+        log.info("finished provision");
 
+        boolean initialized = graph.awaitInitialization();
+        space.flush();
+        snapshot("init");
         fire(Events.finishInit, listeners);
         log.info("finished init");
+
+        boolean installed = graph.awaitInstallation();
+        space.flush();
+        snapshot("install");
+        installers.finished();
+        fire(Events.finishInstall, listeners);
+        log.info("finished install");
+        return provisioned && initialized && installed;
     }
 
     public static class WhatWasDone
@@ -383,116 +475,6 @@ public class ActualDeployment implements Deployment
         }
     }
 
-    private void performInstalls(ListeningExecutorService es, List<Pair<Host, List<Uri<Installer>>>> floggles)
-    {
-        InstallerCache installers = new InstallerCache(this);
-
-        // install
-        final List<Future<?>> futures = Lists.newArrayList();
-
-        for (Pair<Host, List<Uri<Installer>>> pair : floggles) {
-            List<Pair<Uri<Installer>, Installer>> real = Lists.newArrayList();
-            for (Uri<Installer> uri : pair.getRight()) {
-                real.addAll(installers.lookup(uri));
-            }
-            futures.add(installAllOnHost(es, pair.getLeft(), real));
-        }
-
-        for (Future<?> future : futures) {
-            try {
-                future.get();
-            }
-            catch (Exception e) {
-                log.warn(e, "Exception trying to execute installation");
-                throw new UnsupportedOperationException("Not Yet Implemented!", e);
-            }
-        }
-
-        installers.finished();
-    }
-
-    private Future<Status> installAllOnHost(ListeningExecutorService es,
-                                            final Host server,
-                                            final List<Pair<Uri<Installer>, Installer>> installations)
-    {
-        return es.submit(new Callable<Status>()
-        {
-            @Override
-            public Status call() throws Exception
-            {
-                log.info("installing on %s : %s", server.getId(), installations);
-                Status last_status = Status.okay();
-                for (Pair<Uri<Installer>, Installer> installation : installations) {
-                    log.info("installing %s on %s", installation.getKey().toString(), server.getId());
-                    bus.post(new StartServerInstall(server.getId(), installation.getLeft()));
-                    last_status = installation.getValue()
-                                              .install(server, installation.getKey(), ActualDeployment.this)
-                                              .get();
-                    bus.post(new FinishedServerInstall(server.getId(), installation.getLeft()));
-                }
-                return last_status;
-            }
-        });
-    }
-
-    private void provision(List<LifecycleListener> listeners)
-    {
-        log.info("starting provision");
-        bus.startNewStage();
-        fire(Events.startProvision, listeners);
-
-        final Set<Host> servers = map.findLeaves();
-        final Map<String, Provisioner> provisioners = Maps.newHashMap();
-        final Map<Host, Pair<Provisioner, Uri<Provisioner>>> s_to_p = Maps.newHashMap();
-        for (final Host server : servers) {
-            if (!provisioners.containsKey(server.getProvisionerUri().getScheme())) {
-                Provisioner p = environment.resolveProvisioner(server.getProvisionerUri().getScheme());
-                provisioners.put(server.getProvisionerUri().getScheme(), p);
-            }
-            Provisioner p = provisioners.get(server.getProvisionerUri().getScheme());
-
-            s_to_p.put(server, Pair.of(p, server.getProvisionerUri()));
-        }
-
-        // startProvision
-        for (Provisioner provisioner : provisioners.values()) {
-            provisioner.start(this);
-        }
-
-        // provision
-        final List<ProvisionServer> provision_servers = Lists.newArrayList();
-
-        for (final Host server : servers) {
-            final Pair<Provisioner, Uri<Provisioner>> pair = s_to_p.get(server);
-            ProvisionServer ps = new ProvisionServer(this, server, pair.getKey(), pair.getValue());
-            ps.provision();
-            provision_servers.add(ps);
-        }
-
-        while (!provision_servers.isEmpty()) {
-            Set<ProvisionServer> finished = Sets.newIdentityHashSet();
-            for (ProvisionServer ps : provision_servers) {
-                if (ps.isFinished()) {
-                    finished.add(ps);
-                }
-            }
-            provision_servers.removeAll(finished);
-            try {
-                Thread.sleep(100);
-            }
-            catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
-            }
-        }
-
-        // finishProvision
-        for (Provisioner provisioner : provisioners.values()) {
-            provisioner.finish(this);
-        }
-        fire(Events.finishProvision, listeners);
-        log.info("finished provision");
-    }
-
     public SystemMap getSystemMap()
     {
         return map;
@@ -514,6 +496,18 @@ public class ActualDeployment implements Deployment
         return space;
     }
 
+    @Override
+    public WorkerPools getWorkerPools()
+    {
+        return pools;
+    }
+
+    @Override
+    public SSHConnections getSSHConnections()
+    {
+        return connections;
+    }
+
     @Override
     public Scratch getScratch()
     {
@@ -622,54 +616,4 @@ public class ActualDeployment implements Deployment
 
         public abstract Future<?> fire(LifecycleListener listener, Deployment d);
     }
-
-    private static class ProvisionServer
-    {
-
-        private final ActualDeployment deployment;
-        private final Host             server;
-        private final Provisioner      provisioner;
-        private final Uri<Provisioner> uri;
-        private final AtomicReference<Future<Status>> future = new AtomicReference<Future<Status>>();
-
-        public ProvisionServer(ActualDeployment deployment, Host server, Provisioner provisioner, Uri<Provisioner> uri)
-        {
-            this.deployment = deployment;
-            this.server = server;
-            this.provisioner = provisioner;
-            this.uri = uri;
-        }
-
-        public void provision()
-        {
-            deployment.bus.post(new StartServerProvision(server.getId(), uri));
-            future.set(provisioner.provision(server, uri, deployment));
-        }
-
-        public boolean isFinished()
-        {
-            if (future.get().isDone()) {
-                Status s;
-                try {
-                    s = future.get().get();
-                }
-                catch (InterruptedException e) {
-                    log.debug("Provisioning %s was interrupted", server.getId());
-                    Thread.currentThread().interrupt();
-                    s = Status.abort("interrupted");
-                }
-                catch (ExecutionException e) {
-                    log.warn(e, "unexpected exception provisioning %s", server.getId());
-                    s = Status.abort("unexpected exception, killing deployment");
-                }
-
-                // TODO use this status stuff
-                log.info("%s finished provisioning with status %s", server.getId(),  s);
-                deployment.bus.post(new FinishedServerProvision(server.getId(), uri));
-
-                return true;
-            }
-            return false;
-        }
-    }
 }
@@ -4,6 +4,9 @@ import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ListMultimap;
 import com.google.common.collect.Multimaps;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
 import com.ning.atlas.logging.Logger;
 import com.ning.atlas.spi.Maybe;
 import com.ning.atlas.spi.Scratch;
@@ -16,11 +19,34 @@ public class ActualScratch implements Scratch
 
     private final ListMultimap<String, String> values = Multimaps.synchronizedListMultimap(ArrayListMultimap.<String, String>create());
 
+    private final ListMultimap<String, SettableFuture<String>> watchers = ArrayListMultimap.create();
+
     public void put(String key, String value)
     {
+        List<SettableFuture<String>> to_notify;
         synchronized (values) {
             log.info("%s = %s", key, value);
             values.put(key, value);
+            to_notify = watchers.removeAll(key);
+        }
+        for (SettableFuture<String> watcher : to_notify) {
+            watcher.set(value);
+        }
+    }
+
+    /**
+     * Returns a future which is satisfied by the value of key, as soon as one is available.
+     */
+    public ListenableFuture<String> watch(String key)
+    {
+        synchronized (values) {
+            List<String> all = values.get(key);
+            if (!all.isEmpty()) {
+                return Futures.immediateFuture(all.get(all.size() - 1));
+            }
+            SettableFuture<String> watcher = SettableFuture.create();
+            watchers.put(key, watcher);
+            return watcher;
         }
     }
 
@@ -1,15 +1,20 @@
 package com.ning.atlas;
 
-import com.google.common.io.Files;
+import com.google.common.base.Charsets;
+import com.google.common.base.Objects;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
 import com.google.common.util.concurrent.Futures;
 import com.ning.atlas.components.ConcurrentComponent;
 import com.ning.atlas.logging.Logger;
 import com.ning.atlas.spi.Identity;
 import com.ning.atlas.spi.space.Missing;
 import com.ning.atlas.spi.Component;
+import com.ning.atlas.spi.Coordinated;
 import com.ning.atlas.spi.Deployment;
 import com.ning.atlas.spi.Maybe;
 import com.ning.atlas.spi.space.Space;
+import com.ning.atlas.spi.space.SpaceKey;
 import com.ning.atlas.spi.Uri;
 import com.ning.atlas.spi.protocols.SSHCredentials;
 import com.ning.atlas.spi.protocols.Server;
@@ -22,21 +27,27 @@ import org.codehaus.jackson.map.SerializationConfig;
 import org.codehaus.jackson.map.SerializerProvider;
 import org.codehaus.jackson.map.module.SimpleModule;
 
-import java.io.File;
 import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
-import java.nio.charset.Charset;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static com.ning.atlas.spi.protocols.SSHCredentials.defaultCredentials;
 import static com.ning.atlas.spi.protocols.SSHCredentials.lookup;
 
-public class AtlasInstaller extends ConcurrentComponent
+public class AtlasInstaller extends ConcurrentComponent implements Coordinated
 {
     private final static Logger log = Logger.get(AtlasInstaller.class);
     private final String credentialName;
 
+    // the last system map rendered, with what was known of the hosts in it when it was
+    private final AtomicReference<RenderedMap>  systemMap = new AtomicReference<RenderedMap>();
+    private final AtomicReference<ObjectMapper> mapper    = new AtomicReference<ObjectMapper>();
 
     public AtlasInstaller(Map<String, String> attributes)
     {
@@ -49,12 +60,41 @@ public class AtlasInstaller extends ConcurrentComponent
         return Futures.immediateFuture("populate /etc/atlas with legacy cruft");
     }
 
+    @Override
+    public Collection<String> produces(Host host, Uri<? extends Component> uri)
+    {
+        return Collections.emptySet();
+    }
+
+    /**
+     * The system map lists every host, so every host must be known first
+     */
+    @Override
+    public Collection<String> waitsFor(Host host, Uri<? extends Component> uri)
+    {
+        return Collections.singleton(EVERY_HOST);
+    }
+
+    @Override
+    public Collection<String> waitsForScratch(Host host, Uri<? extends Component> uri)
+    {
+        return Collections.emptySet();
+    }
+
     ObjectMapper makeMapper(Space space, Environment environment)
+    {
+        return makeMapper(space, environment, null);
+    }
+
+    /**
+     * @param known what is known of the hosts to be written, looked up in the space if null
+     */
+    ObjectMapper makeMapper(Space space, Environment environment, KnownHosts known)
     {
         ObjectMapper mapper = new ObjectMapper();
         mapper.configure(SerializationConfig.Feature.INDENT_OUTPUT, true);
         SimpleModule module = new SimpleModule("host-thing", new Version(1, 0, 0, ""));
-        module.addSerializer(new HostSerializer(space, environment));
+        module.addSerializer(new HostSerializer(space, environment, known));
         mapper.registerModule(module);
         return mapper;
     }
@@ -62,9 +102,58 @@ public class AtlasInstaller extends ConcurrentComponent
     /**
      * Generates a JSON string which is the system map
      */
-    String generateSystemMap(ObjectMapper mapper, SystemMap map) throws IOException
+    String generateSystemMap(Space space, Environment environment, SystemMap map) throws IOException
+    {
+        KnownHosts known = KnownHosts.load(space, map.findLeaves());
+        return makeMapper(space, environment, known).writeValueAsString(map.getSingleRoot());
+    }
+
+    @Override
+    protected void startLocal(Deployment deployment)
+    {
+        mapper.set(makeMapper(deployment.getSpace(), deployment.getEnvironment()));
+    }
+
+    @Override
+    protected void finishLocal2(Deployment deployment)
+    {
+        systemMap.set(null);
+        mapper.set(null);
+    }
+
+    /**
+     * The system map document, rendered once and shared by every host until what the space
+     * holds of the hosts in it changes. Reading that is one bulk read, which is cheap next to
+     * rendering, and as it is read on every call a server stored on any thread is in the
+     * next map rendered.
+     */
+    byte[] renderSystemMap(Deployment deployment) throws IOException
+    {
+        Space space = deployment.getSpace();
+        SystemMap map = deployment.getSystemMap();
+        KnownHosts known = KnownHosts.load(space, map.findLeaves());
+
+        RenderedMap current = systemMap.get();
+        if (current != null && current.known.equals(known)) {
+            return current.json;
+        }
+        synchronized (systemMap) {
+            current = systemMap.get();
+            if (current != null && current.known.equals(known)) {
+                return current.json;
+            }
+            log.debug("rendering system map");
+            RenderedMap rendered = new RenderedMap(known, makeMapper(space, deployment.getEnvironment(), known)
+                .writeValueAsBytes(map.getSingleRoot()));
+            systemMap.set(rendered);
+            return rendered.json;
+        }
+    }
+
+    private ObjectMapper mapperFor(Deployment deployment)
     {
-        return mapper.writeValueAsString(map.getSingleRoot());
+        ObjectMapper m = mapper.get();
+        return m != null ? m : makeMapper(deployment.getSpace(), deployment.getEnvironment());
     }
 
     @Override
@@ -81,10 +170,10 @@ public class AtlasInstaller extends ConcurrentComponent
             final Server server = deployment.getSpace()
                 .get(host.getId(), Server.class, Missing.NullProperty)
                 .getValue();
-            final ObjectMapper mapper = makeMapper(deployment.getSpace(), deployment.getEnvironment());
+            final ObjectMapper mapper = mapperFor(deployment);
             SSH ssh;
             try {
-                ssh = new SSH(creds, server.getExternalAddress());
+                ssh = new SSH(deployment, creds, server.getExternalAddress());
             }
             catch (IOException e) {
                 log.warn(e, "unable to ssh into the server");
@@ -95,18 +184,12 @@ public class AtlasInstaller extends ConcurrentComponent
                 ssh.exec("sudo mkdir /etc/atlas");
 
                 // upload the system map
-                String sys_map = mapper.writeValueAsString(deployment.getSystemMap().getSingleRoot());
-                File sys_map_file = File.createTempFile("system", "map");
-                Files.write(sys_map, sys_map_file, Charset.forName("UTF-8"));
-                ssh.scpUpload(sys_map_file, "/tmp/system_map.json");
-                ssh.exec("sudo mv /tmp/system_map.json /etc/atlas/system_map.json");
+                byte[] sys_map = renderSystemMap(deployment);
+                ssh.sudoUpload(sys_map, "/etc/atlas/system_map.json");
 
                 // upload node info
                 String node_info = mapper.writeValueAsString(host);
-                File node_info_file = File.createTempFile("node", "info");
-                Files.write(node_info, node_info_file, Charset.forName("UTF-8"));
-                ssh.scpUpload(node_info_file, "/tmp/node_info.json");
-                ssh.exec("sudo mv /tmp/node_info.json /etc/atlas/node_info.json");
+                ssh.sudoUpload(node_info.getBytes(Charsets.UTF_8), "/etc/atlas/node_info.json");
                 success = true;
                 return node_info;
             }
@@ -130,7 +213,7 @@ public class AtlasInstaller extends ConcurrentComponent
     @Override
     public String unwind(Identity hostId, Uri<? extends Component> uri, Deployment d) throws Exception
     {
-        SSH ssh = new SSH(hostId, this.credentialName, d.getSpace());
+        SSH ssh = new SSH(d, hostId, this.credentialName);
         try {
             ssh.exec("sudo rm /etc/atlas/node_info.json");
             ssh.exec("sudo rm /etc/atlas/system_map.json");
@@ -142,15 +225,83 @@ public class AtlasInstaller extends ConcurrentComponent
     }
 
 
+    private static class RenderedMap
+    {
+        private final KnownHosts known;
+        private final byte[]     json;
+
+        RenderedMap(KnownHosts known, byte[] json)
+        {
+            this.known = known;
+            this.json = json;
+        }
+    }
+
+    /**
+     * The servers and extra attributes of a set of hosts, read together
+     */
+    static class KnownHosts
+    {
+        private final Set<Identity>          ids;
+        private final Map<Identity, Server>  servers;
+        private final Map<SpaceKey, String> attributes;
+
+        private KnownHosts(Set<Identity> ids, Map<Identity, Server> servers, Map<SpaceKey, String> attributes)
+        {
+            this.ids = ids;
+            this.servers = servers;
+            this.attributes = attributes;
+        }
+
+        static KnownHosts load(Space space, Collection<Host> hosts)
+        {
+            Set<Identity> ids = Sets.newLinkedHashSet();
+            List<SpaceKey> keys = Lists.newArrayListWithCapacity(hosts.size());
+            for (Host host : hosts) {
+                ids.add(host.getId());
+                keys.add(SpaceKey.from(host.getId(), HostSerializer.EXTRA_ATTRIBUTES));
+            }
+            return new KnownHosts(ids, space.getBeans(ids, Server.class), space.getAll(keys));
+        }
+
+        boolean covers(Host host)
+        {
+            return ids.contains(host.getId());
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (!(o instanceof KnownHosts)) {
+                return false;
+            }
+            KnownHosts that = (KnownHosts) o;
+            return ids.equals(that.ids) && servers.equals(that.servers) && attributes.equals(that.attributes);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return Objects.hashCode(ids, servers, attributes);
+        }
+    }
+
     public static class HostSerializer extends JsonSerializer<Host>
     {
-        private final Space space;
+        private static final String EXTRA_ATTRIBUTES = "extra-atlas-attributes";
+
+        // plain mapper, without this serializer registered
+        private static final ObjectMapper plain = new ObjectMapper();
+
+        private final Space       space;
         private final Environment environment;
+        private final KnownHosts  known;
 
-        HostSerializer(Space space, Environment environment)
+        HostSerializer(Space space, Environment environment, KnownHosts known)
         {
             this.space = space;
             this.environment = environment;
+            this.known = known;
         }
 
         @Override
@@ -163,15 +314,26 @@ public class AtlasInstaller extends ConcurrentComponent
 		@Override
         public void serialize(Host value, JsonGenerator jgen, SerializerProvider provider) throws IOException
         {
-            Maybe<Server> s = space.get(value.getId(), Server.class, Missing.RequireAll);
+            final Maybe<Server> s;
+            final Maybe<String> extra;
+            if (known != null && known.covers(value)) {
+                s = Maybe.elideNull(known.servers.get(value.getId()));
+                extra = Maybe.elideNull(known.attributes.get(SpaceKey.from(value.getId(), EXTRA_ATTRIBUTES)));
+            }
+            else {
+                s = space.get(value.getId(), Server.class, Missing.RequireAll);
+                extra = space.get(value.getId(), EXTRA_ATTRIBUTES);
+            }
+
             if (s.isKnown()) {
-                String json = space.get(value.getId(), "extra-atlas-attributes").otherwise("{}");
-                Map attrs = new ObjectMapper().readValue(json, Map.class);
+                String json = extra.otherwise("{}");
+                Map attrs = plain.readValue(json, Map.class);
 
                 jgen.writeObject(new ExtraHost(value, s.getValue(), environment.getProperties(), attrs));
             }
             else {
-                jgen.writeObject(value);
+                // not provisioned yet, writing it through this mapper would come right back here
+                jgen.writeObject(plain.convertValue(value, Map.class));
             }
         }
     }
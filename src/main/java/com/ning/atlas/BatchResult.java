@@ -0,0 +1,66 @@
+package com.ning.atlas;
+
+import java.util.List;
+
+/**
+ * Outcome of a {@link CommandBatch}: the exit status of each command, null for those which
+ * did not run because an earlier one failed.
+ */
+public class BatchResult extends ExecResult
+{
+    private final List<String>  commands;
+    private final List<Integer> statuses;
+
+    public BatchResult(Integer exitStatus,
+                       String output,
+                       String errors,
+                       List<String> commands,
+                       List<Integer> statuses)
+    {
+        super(exitStatus, output, errors);
+        this.commands = commands;
+        this.statuses = statuses;
+    }
+
+    public List<Integer> getStepStatuses()
+    {
+        return statuses;
+    }
+
+    @Override
+    public boolean isSuccess()
+    {
+        return super.isSuccess() && getFailedStep() < 0 && statuses.indexOf(null) < 0;
+    }
+
+    /**
+     * @return index of the command which failed, or -1 if none reported failure
+     */
+    public int getFailedStep()
+    {
+        for (int i = 0; i < statuses.size(); i++) {
+            Integer status = statuses.get(i);
+            if (status != null && status != 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public String toString()
+    {
+        int failed = getFailedStep();
+        if (failed >= 0) {
+            return String.format("step %d of %d, '%s', exited with %d: %s",
+                                 failed + 1, commands.size(), commands.get(failed), statuses.get(failed), getErrors());
+        }
+        else if (!isSuccess()) {
+            return String.format("batch of %d commands exited with %s after %d steps: %s",
+                                 commands.size(), getExitStatus(), statuses.indexOf(null), getErrors());
+        }
+        else {
+            return String.format("all %d commands succeeded", commands.size());
+        }
+    }
+}
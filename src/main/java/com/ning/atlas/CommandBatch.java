@@ -0,0 +1,120 @@
+package com.ning.atlas;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import static java.lang.String.format;
+
+/**
+ * A sequence of commands sent to a host as one script over a single ssh session, rather
+ * than a session and round trip apiece. Each command runs in its own subshell, as it would
+ * with separate calls to {@link SSH#exec(String)}, and the batch stops at the first one
+ * which exits non-zero.
+ * <pre>
+ *   BatchResult rs = ssh.batch()
+ *                       .add("mkdir -p /tmp/foo")
+ *                       .add("curl %s > /tmp/foo/bar.tar.gz", url)
+ *                       .run();
+ * </pre>
+ */
+public class CommandBatch
+{
+    private final SSH          ssh;
+    private final List<String> commands = Lists.newArrayList();
+
+    CommandBatch(SSH ssh)
+    {
+        this.ssh = ssh;
+    }
+
+    public CommandBatch add(String command)
+    {
+        commands.add(command);
+        return this;
+    }
+
+    public CommandBatch add(String commandFormatString, Object... args)
+    {
+        return add(format(commandFormatString, args));
+    }
+
+    public BatchResult run() throws IOException
+    {
+        return run(OutputSinks.none());
+    }
+
+    public BatchResult run(OutputSink sink) throws IOException
+    {
+        return run(sink, 1, TimeUnit.HOURS);
+    }
+
+    public BatchResult run(OutputSink sink, int time, TimeUnit unit) throws IOException
+    {
+        Markers markers = new Markers(commands.size());
+        ExecResult rs = ssh.execute(script(markers.marker()), sink, time, unit, markers);
+        return new BatchResult(rs.getExitStatus(),
+                               rs.getOutput(),
+                               rs.getErrors(),
+                               ImmutableList.copyOf(commands),
+                               markers.statuses());
+    }
+
+    String script(String marker)
+    {
+        StringBuilder script = new StringBuilder();
+        for (int i = 0; i < commands.size(); i++) {
+            script.append("(\n")
+                  .append(commands.get(i)).append('\n')
+                  .append(")\n")
+                  .append("s=$?; echo \"").append(marker).append(' ').append(i).append(" $s\"; ")
+                  .append("[ $s -eq 0 ] || exit $s\n");
+        }
+        return script.toString();
+    }
+
+    /**
+     * Picks the step exit statuses the script echoes out of stdout.
+     */
+    static class Markers
+    {
+        private final String    marker = "atlas-step-" + UUID.randomUUID();
+        private final Integer[] statuses;
+
+        Markers(int steps)
+        {
+            this.statuses = new Integer[steps];
+        }
+
+        String marker()
+        {
+            return marker;
+        }
+
+        List<Integer> statuses()
+        {
+            return Arrays.asList(statuses);
+        }
+
+        /**
+         * @return what is left of the line once any marker is removed, or null if nothing
+         */
+        String strip(String line)
+        {
+            int at = line.indexOf(marker);
+            if (at < 0) {
+                return line;
+            }
+
+            // a step whose output lacks a trailing newline leaves it in front of the marker
+            String[] parts = line.substring(at + marker.length()).trim().split(" ");
+            statuses[Integer.parseInt(parts[0])] = Integer.parseInt(parts[1]);
+            return at == 0 ? null : line.substring(0, at);
+        }
+    }
+}
@@ -0,0 +1,518 @@
+package com.ning.atlas;
+
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.ListMultimap;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.JdkFutureAdapters;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.ning.atlas.bus.GuavaNotificationBus;
+import com.ning.atlas.logging.Logger;
+import com.ning.atlas.spi.Component;
+import com.ning.atlas.spi.Coordinated;
+import com.ning.atlas.spi.Installer;
+import com.ning.atlas.spi.Provisioner;
+import com.ning.atlas.spi.Status;
+import com.ning.atlas.spi.Uri;
+import com.ning.atlas.spi.bus.FinishedServerInstall;
+import com.ning.atlas.spi.bus.FinishedServerProvision;
+import com.ning.atlas.spi.bus.StartServerInstall;
+import com.ning.atlas.spi.bus.StartServerProvision;
+import org.apache.commons.lang3.tuple.Pair;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Converges hosts as a graph of steps rather than as global provision, init, and install
+ * stages. Each host is a chain of steps (provision, then each initialization, then each
+ * installation) which proceeds as soon as its own previous step finishes, so one slow
+ * host does not hold back every other host.
+ * <p/>
+ * Steps which depend on other hosts are expressed as edges, built from what the components
+ * which are {@link Coordinated} say their steps produce and wait for. A step waiting for a
+ * scratch value fails if it is not put within
+ * <pre>
+ *   atlas.converge.scratch-timeout=3600   # seconds from the start of the converge
+ * </pre>
+ * rather than holding the converge open for ever.
+ * <p/>
+ * Nothing blocks waiting on a component: each step completes from a listener on the
+ * future its component returns, so finish events are posted the moment the work is done.
+ * A step which fails, or whose component reports anything but okay, stops the rest of its
+ * host's chain and whatever else waits on it, and the stage it is in is reported as failed
+ * once everything else in it is done.
+ */
+class ConvergeGraph
+{
+    private static final Logger log = Logger.get(ConvergeGraph.class);
+
+    static final String SCRATCH_TIMEOUT_PROPERTY        = "atlas.converge.scratch-timeout";
+    static final long   DEFAULT_SCRATCH_TIMEOUT_SECONDS = 3600;
+
+    // times out every converge's scratch waits, its thread going away when none are pending
+    private static final ScheduledThreadPoolExecutor timeouts = new ScheduledThreadPoolExecutor(
+        1, new ThreadFactoryBuilder().setDaemon(true).setNameFormat("converge-timeout-%d").build());
+
+    static {
+        timeouts.setKeepAliveTime(30, TimeUnit.SECONDS);
+        timeouts.allowCoreThreadTimeOut(true);
+    }
+
+    private final ActualDeployment         deployment;
+    private final GuavaNotificationBus     bus;
+    private final ActualScratch            scratch;
+    private final ListeningExecutorService es;
+    private final long                     scratchTimeoutSeconds;
+
+    private final Stage provisions      = new Stage();
+    private final Stage initializations = new Stage();
+    private final Stage installations   = new Stage();
+
+    // the steps producing each name some step may wait for
+    private final ListMultimap<String, Step> producers = ArrayListMultimap.create();
+
+    // every host through provisioning, whether or not it succeeded
+    private ListenableFuture<List<Status>> provisioned;
+
+    ConvergeGraph(ActualDeployment deployment,
+                  GuavaNotificationBus bus,
+                  ActualScratch scratch,
+                  ListeningExecutorService es,
+                  Map<String, String> properties)
+    {
+        this.deployment = deployment;
+        this.bus = bus;
+        this.scratch = scratch;
+        this.es = es;
+
+        String timeout = properties.get(SCRATCH_TIMEOUT_PROPERTY);
+        try {
+            this.scratchTimeoutSeconds = timeout == null
+                                         ? DEFAULT_SCRATCH_TIMEOUT_SECONDS
+                                         : Long.parseLong(timeout.trim());
+        }
+        catch (NumberFormatException e) {
+            throw new IllegalStateException(String.format("%s must be a number of seconds, not '%s'",
+                                                          SCRATCH_TIMEOUT_PROPERTY, timeout), e);
+        }
+    }
+
+    void addHost(Host host, Provisioner provisioner, InstallerCache installers)
+    {
+        Step previous = new ProvisionStep(host, provisioner, host.getProvisionerUri());
+        add(provisions, previous);
+
+        for (Uri<Installer> uri : host.getInitializationUris()) {
+            for (Pair<Uri<Installer>, Installer> pair : installers.lookup(uri)) {
+                previous = new InstallStep(host, pair.getRight(), pair.getLeft(), previous, initializations);
+                add(initializations, previous);
+            }
+        }
+
+        for (Uri<Installer> uri : host.getInstallationUris()) {
+            for (Pair<Uri<Installer>, Installer> pair : installers.lookup(uri)) {
+                previous = new InstallStep(host, pair.getRight(), pair.getLeft(), previous, installations);
+                add(installations, previous);
+            }
+        }
+    }
+
+    private void add(Stage stage, Step step)
+    {
+        stage.steps.add(step);
+        if (step.component instanceof Coordinated) {
+            for (String name : ((Coordinated) step.component).produces(step.host, step.uri)) {
+                producers.put(name, step);
+            }
+        }
+    }
+
+    /**
+     * Begin executing steps. Must be called after every host has been added so that
+     * edges between hosts can be resolved.
+     */
+    void start()
+    {
+        List<ListenableFuture<Status>> provisioning = Lists.newArrayList();
+        for (Step step : provisions.steps) {
+            provisioning.add(step.done);
+        }
+        provisioned = Futures.successfulAsList(provisioning);
+
+        for (Step step : concat()) {
+            step.schedule(dependenciesOf(step));
+        }
+    }
+
+    /**
+     * Run the hook once, just before the first initialization step begins, or when
+     * initialization is awaited if no step ever begins
+     */
+    void beforeInitialization(Runnable hook)
+    {
+        initializations.starting = hook;
+    }
+
+    /**
+     * Run the hook once, just before the first installation step begins, or when installation
+     * is awaited if no step ever begins
+     */
+    void beforeInstallation(Runnable hook)
+    {
+        installations.starting = hook;
+    }
+
+    private List<Step> concat()
+    {
+        List<Step> all = Lists.newArrayList(provisions.steps);
+        all.addAll(initializations.steps);
+        all.addAll(installations.steps);
+        return all;
+    }
+
+    private List<ListenableFuture<?>> dependenciesOf(Step step)
+    {
+        List<ListenableFuture<?>> deps = Lists.newArrayList();
+        if (step.previous != null) {
+            deps.add(step.previous.done);
+        }
+
+        if (step.component instanceof Coordinated) {
+            Coordinated coordinated = (Coordinated) step.component;
+            for (String name : coordinated.waitsFor(step.host, step.uri)) {
+                if (Coordinated.EVERY_HOST.equals(name)) {
+                    deps.add(provisioned);
+                }
+                else {
+                    deps.addAll(producing(name, step));
+                }
+            }
+            for (String key : coordinated.waitsForScratch(step.host, step.uri)) {
+                deps.addAll(producing(key, step));
+                deps.add(scratchValue(key));
+            }
+        }
+        return deps;
+    }
+
+    private List<ListenableFuture<?>> producing(String name, Step waiting)
+    {
+        List<ListenableFuture<?>> rs = Lists.newArrayList();
+        for (Step producer : producers.get(name)) {
+            if (producer != waiting) {
+                rs.add(producer.done);
+            }
+        }
+        return rs;
+    }
+
+    /**
+     * The value of the scratch key, or a failure if nothing puts it in time
+     */
+    private ListenableFuture<String> scratchValue(final String key)
+    {
+        final SettableFuture<String> rs = SettableFuture.create();
+        Futures.addCallback(scratch.watch(key), new FutureCallback<String>()
+        {
+            @Override
+            public void onSuccess(String value)
+            {
+                rs.set(value);
+            }
+
+            @Override
+            public void onFailure(Throwable t)
+            {
+                rs.setException(t);
+            }
+        });
+
+        final ScheduledFuture<?> timeout = timeouts.schedule(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                String message = String.format("nothing put %s within %d seconds", key, scratchTimeoutSeconds);
+                if (rs.setException(new TimeoutException(message))) {
+                    log.warn(message);
+                }
+            }
+        }, scratchTimeoutSeconds, TimeUnit.SECONDS);
+        rs.addListener(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                timeout.cancel(false);
+            }
+        }, MoreExecutors.sameThreadExecutor());
+        return rs;
+    }
+
+    /**
+     * @return true if every host was provisioned
+     */
+    boolean awaitProvisioning()
+    {
+        return await(provisions, "provisioning");
+    }
+
+    /**
+     * @return true if every initialization succeeded
+     */
+    boolean awaitInitialization()
+    {
+        return await(initializations, "initialization");
+    }
+
+    /**
+     * @return true if every installation succeeded
+     */
+    boolean awaitInstallation()
+    {
+        return await(installations, "installation");
+    }
+
+    /**
+     * Wait for every step of the stage to succeed, fail, or be skipped, each failure having
+     * been logged as it happened.
+     */
+    private boolean await(Stage stage, String name)
+    {
+        int failed = 0;
+        for (Step step : stage.steps) {
+            try {
+                step.done.get();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("interrupted waiting for " + name, e);
+            }
+            catch (ExecutionException e) {
+                failed++;
+            }
+        }
+        stage.begin();
+        if (failed > 0) {
+            log.warn("%d of %d %s steps failed or were skipped", failed, stage.steps.size(), name);
+        }
+        return failed == 0;
+    }
+
+    /**
+     * The steps of one kind across every host
+     */
+    private static class Stage
+    {
+        private final List<Step> steps = Lists.newArrayList();
+
+        private Runnable starting;
+        private boolean  started;
+
+        /**
+         * Run the hook if it has not been, steps beginning at the same time waiting on it
+         */
+        synchronized void begin()
+        {
+            if (!started) {
+                started = true;
+                if (starting != null) {
+                    starting.run();
+                }
+            }
+        }
+    }
+
+    private abstract class Step
+    {
+        final Host                     host;
+        final Component                component;
+        final Uri<? extends Component> uri;
+        final Step                     previous;
+        final Stage                    stage;
+        final SettableFuture<Status>   done = SettableFuture.create();
+
+        Step(Host host, Component component, Uri<? extends Component> uri, Step previous, Stage stage)
+        {
+            this.host = host;
+            this.component = component;
+            this.uri = uri;
+            this.previous = previous;
+            this.stage = stage;
+        }
+
+        void schedule(List<ListenableFuture<?>> dependencies)
+        {
+            final ListenableFuture<List<Object>> ready = Futures.<Object>allAsList(dependencies);
+            ready.addListener(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    try {
+                        ready.get();
+                    }
+                    catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        done.setException(e);
+                        return;
+                    }
+                    catch (ExecutionException e) {
+                        // something this step depends on failed, so skip it
+                        log.debug("skipping %s on %s", uri, host.getId());
+                        done.setException(e.getCause());
+                        return;
+                    }
+
+                    es.submit(new Runnable()
+                    {
+                        @Override
+                        public void run()
+                        {
+                            try {
+                                stage.begin();
+                                awaitOutcome(listenable(begin()));
+                            }
+                            catch (Throwable e) {
+                                fail(e);
+                            }
+                        }
+                    });
+                }
+            }, MoreExecutors.sameThreadExecutor());
+        }
+
+        /**
+         * Completes this step from whichever thread completes the component's future, rather
+         * than parking a worker on it.
+         */
+        private void awaitOutcome(final ListenableFuture<Status> outcome)
+        {
+            outcome.addListener(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    try {
+                        done.set(complete(outcome));
+                    }
+                    catch (ExecutionException e) {
+                        fail(e.getCause());
+                    }
+                    catch (Throwable e) {
+                        fail(e);
+                    }
+                }
+            }, MoreExecutors.sameThreadExecutor());
+        }
+
+        private void fail(Throwable e)
+        {
+            log.warn(e, "%s failed on %s", uri, host.getId());
+            done.setException(e);
+        }
+
+        /**
+         * The status the component reported, if it was okay
+         */
+        Status okay(Status s)
+        {
+            if (s.getType() != Status.Type.Okay) {
+                throw new IllegalStateException(String.format("%s on %s: %s", s.getType(), host.getId(), s.getMessage()));
+            }
+            return s;
+        }
+
+        /**
+         * Start the work for this step, returning its pending outcome.
+         */
+        abstract Future<Status> begin() throws Exception;
+
+        /**
+         * Called once the outcome returned by {@link #begin()} is done, so <code>get()</code>
+         * will not block.
+         */
+        abstract Status complete(Future<Status> outcome) throws Exception;
+    }
+
+    private static ListenableFuture<Status> listenable(Future<Status> f)
+    {
+        if (f instanceof ListenableFuture) {
+            return (ListenableFuture<Status>) f;
+        }
+        else {
+            // third party component handing back a plain future, costs a thread to watch it
+            return JdkFutureAdapters.listenInPoolThread(f);
+        }
+    }
+
+    private class ProvisionStep extends Step
+    {
+        private final Provisioner      provisioner;
+        private final Uri<Provisioner> provisionerUri;
+
+        ProvisionStep(Host host, Provisioner provisioner, Uri<Provisioner> uri)
+        {
+            super(host, provisioner, uri, null, provisions);
+            this.provisioner = provisioner;
+            this.provisionerUri = uri;
+        }
+
+        @Override
+        Future<Status> begin() throws Exception
+        {
+            bus.post(new StartServerProvision(host.getId(), provisionerUri));
+            return provisioner.provision(host, provisionerUri, deployment);
+        }
+
+        @Override
+        Status complete(Future<Status> outcome) throws Exception
+        {
+            Status s = okay(outcome.get());
+            log.info("%s finished provisioning", host.getId());
+            bus.post(new FinishedServerProvision(host.getId(), provisionerUri));
+            return s;
+        }
+    }
+
+    private class InstallStep extends Step
+    {
+        private final Installer      installer;
+        private final Uri<Installer> installerUri;
+
+        InstallStep(Host host, Installer installer, Uri<Installer> uri, Step previous, Stage stage)
+        {
+            super(host, installer, uri, previous, stage);
+            this.installer = installer;
+            this.installerUri = uri;
+        }
+
+        @Override
+        Future<Status> begin() throws Exception
+        {
+            log.info("installing %s on %s", installerUri.toString(), host.getId());
+            bus.post(new StartServerInstall(host.getId(), installerUri));
+            return installer.install(host, installerUri, deployment);
+        }
+
+        @Override
+        Status complete(Future<Status> outcome) throws Exception
+        {
+            Status s = okay(outcome.get());
+            bus.post(new FinishedServerInstall(host.getId(), installerUri));
+            return s;
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package com.ning.atlas;
+
+/**
+ * Outcome of a remote command: its exit status and the tail end of what it wrote.
+ */
+public class ExecResult
+{
+    private final Integer exitStatus;
+    private final String  output;
+    private final String  errors;
+
+    public ExecResult(Integer exitStatus, String output, String errors)
+    {
+        this.exitStatus = exitStatus;
+        this.output = output;
+        this.errors = errors;
+    }
+
+    /**
+     * @return exit status of the command, or null if the server did not report one
+     */
+    public Integer getExitStatus()
+    {
+        return exitStatus;
+    }
+
+    public boolean isSuccess()
+    {
+        return exitStatus != null && exitStatus == 0;
+    }
+
+    /**
+     * @return the last part of stdout, bounded by the size of the tail kept
+     */
+    public String getOutput()
+    {
+        return output;
+    }
+
+    /**
+     * @return the last part of stderr, bounded by the size of the tail kept
+     */
+    public String getErrors()
+    {
+        return errors;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("exit status %s", exitStatus);
+    }
+}
@@ -0,0 +1,20 @@
+package com.ning.atlas;
+
+/**
+ * Receives the output of a remote command a line at a time as it arrives, so output never
+ * needs to be held in full. See {@link OutputSinks} for the standard ones.
+ */
+public interface OutputSink
+{
+    public void line(Stream stream, String line);
+
+    /**
+     * Called once the command has finished and no more lines will arrive.
+     */
+    public void close();
+
+    public static enum Stream
+    {
+        stdout, stderr
+    }
+}
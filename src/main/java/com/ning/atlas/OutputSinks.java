@@ -0,0 +1,329 @@
+package com.ning.atlas;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
+import com.ning.atlas.logging.Logger;
+import com.ning.atlas.spi.Identity;
+import com.ning.atlas.spi.bus.NotificationBus;
+import com.ning.atlas.spi.bus.RemoteOutput;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class OutputSinks
+{
+    private static final Logger log = Logger.get(OutputSinks.class);
+
+    public static final int  DEFAULT_TAIL_CHARS     = 16 * 1024;
+    public static final long DEFAULT_MAX_FILE_BYTES = 10 * 1024 * 1024;
+    public static final int  DEFAULT_KEEP_FILES     = 5;
+
+    // the files being written, shared by every sink for the same file, each counting its users
+    private static final Map<File, RotatingFile> files = Maps.newHashMap();
+
+    private OutputSinks() {}
+
+    public static OutputSink none()
+    {
+        return tee();
+    }
+
+    public static OutputSink tee(OutputSink... sinks)
+    {
+        return new Tee(ImmutableList.copyOf(sinks));
+    }
+
+    /**
+     * Hand the sink one line at a time, for lines from both of a command's streams arriving
+     * on different threads.
+     */
+    public static OutputSink serialize(final OutputSink sink)
+    {
+        return new OutputSink()
+        {
+            @Override
+            public synchronized void line(Stream stream, String line)
+            {
+                sink.line(stream, line);
+            }
+
+            @Override
+            public synchronized void close()
+            {
+                sink.close();
+            }
+        };
+    }
+
+    public static Tail tail(OutputSink.Stream stream, int chars)
+    {
+        return new Tail(stream, chars);
+    }
+
+    /**
+     * Log each line at debug, as exec always has.
+     */
+    public static OutputSink debugLog(final Logger logger)
+    {
+        return new OutputSink()
+        {
+            @Override
+            public void line(Stream stream, String line)
+            {
+                logger.debug(line);
+            }
+
+            @Override
+            public void close()
+            {
+            }
+        };
+    }
+
+    /**
+     * Post each line to the event bus as a {@link RemoteOutput}. Dispatch is asynchronous,
+     * so slow subscribers cause lines to queue up in memory.
+     */
+    public static OutputSink events(final NotificationBus bus, final Identity serverId)
+    {
+        return new OutputSink()
+        {
+            @Override
+            public void line(Stream stream, String line)
+            {
+                bus.post(new RemoteOutput(serverId, stream == Stream.stderr, line));
+            }
+
+            @Override
+            public void close()
+            {
+            }
+        };
+    }
+
+    /**
+     * Append to a per host log file, &lt;environment directory&gt;/logs/&lt;host&gt;.log
+     */
+    public static OutputSink hostLog(File environmentDirectory, String host)
+    {
+        File dir = new File(environmentDirectory, "logs");
+        String name = host.replaceAll("^/+", "").replaceAll("[^A-Za-z0-9._-]", "_");
+        return rotatingFile(new File(dir, name + ".log"), DEFAULT_MAX_FILE_BYTES, DEFAULT_KEEP_FILES);
+    }
+
+    /**
+     * Sinks open on the same file at once share it, so lines from concurrent commands on a
+     * host are each written whole and the file is rotated once, not once per sink. The first
+     * sink opened on a file decides its size and how many old files are kept.
+     */
+    public static OutputSink rotatingFile(File file, long maxBytes, int keep)
+    {
+        final RotatingFile shared;
+        synchronized (files) {
+            File key = file.getAbsoluteFile();
+            RotatingFile existing = files.get(key);
+            if (existing == null) {
+                existing = new RotatingFile(key, maxBytes, keep);
+                files.put(key, existing);
+            }
+            existing.users++;
+            shared = existing;
+        }
+
+        return new OutputSink()
+        {
+            private final AtomicBoolean closed = new AtomicBoolean(false);
+
+            @Override
+            public void line(Stream stream, String line)
+            {
+                shared.line(stream, line);
+            }
+
+            @Override
+            public void close()
+            {
+                if (closed.compareAndSet(false, true)) {
+                    synchronized (files) {
+                        if (--shared.users == 0) {
+                            files.remove(shared.file);
+                            shared.close();
+                        }
+                    }
+                }
+            }
+        };
+    }
+
+    private static class Tee implements OutputSink
+    {
+        private final List<OutputSink> sinks;
+
+        Tee(List<OutputSink> sinks)
+        {
+            this.sinks = sinks;
+        }
+
+        @Override
+        public void line(Stream stream, String line)
+        {
+            for (OutputSink sink : sinks) {
+                sink.line(stream, line);
+            }
+        }
+
+        @Override
+        public void close()
+        {
+            for (OutputSink sink : sinks) {
+                sink.close();
+            }
+        }
+    }
+
+    /**
+     * Keeps only the last so many characters written to one stream, in a fixed size ring.
+     */
+    public static class Tail implements OutputSink
+    {
+        private final Stream stream;
+        private final char[] ring;
+        private int start = 0;
+        private int size  = 0;
+
+        Tail(Stream stream, int chars)
+        {
+            this.stream = stream;
+            this.ring = new char[chars];
+        }
+
+        @Override
+        public synchronized void line(Stream stream, String line)
+        {
+            if (stream != this.stream) {
+                return;
+            }
+            for (int i = Math.max(0, line.length() - ring.length); i < line.length(); i++) {
+                append(line.charAt(i));
+            }
+            append('\n');
+        }
+
+        private void append(char c)
+        {
+            ring[(start + size) % ring.length] = c;
+            if (size < ring.length) {
+                size++;
+            }
+            else {
+                start = (start + 1) % ring.length;
+            }
+        }
+
+        public synchronized String getTail()
+        {
+            StringBuilder b = new StringBuilder(size);
+            for (int i = 0; i < size; i++) {
+                b.append(ring[(start + i) % ring.length]);
+            }
+            return b.toString();
+        }
+
+        @Override
+        public void close()
+        {
+        }
+    }
+
+    /**
+     * Appends lines to a file, prefixing stderr lines. When the file passes maxBytes it is
+     * renamed to file.1 (file.1 to file.2 and so on), keeping at most keep old files.
+     */
+    private static class RotatingFile implements OutputSink
+    {
+        private final File file;
+        private final long maxBytes;
+        private final int  keep;
+
+        private Writer  out;
+        private long    written;
+        private boolean broken;
+
+        // guarded by files
+        private int users;
+
+        RotatingFile(File file, long maxBytes, int keep)
+        {
+            this.file = file;
+            this.maxBytes = maxBytes;
+            this.keep = keep;
+        }
+
+        @Override
+        public synchronized void line(Stream stream, String line)
+        {
+            if (broken) {
+                return;
+            }
+            String text = (stream == Stream.stderr ? "[stderr] " : "") + line + "\n";
+            try {
+                if (out == null) {
+                    open();
+                }
+                else if (written >= maxBytes) {
+                    out.close();
+                    rotate();
+                    open();
+                }
+                out.write(text);
+                written += text.getBytes(Charsets.UTF_8).length;
+            }
+            catch (IOException e) {
+                log.warn(e, "unable to write to %s, no more output will be logged there", file);
+                broken = true;
+            }
+        }
+
+        private void open() throws IOException
+        {
+            if (file.length() >= maxBytes) {
+                rotate();
+            }
+            if (!file.getParentFile().isDirectory() && !file.getParentFile().mkdirs()) {
+                throw new IOException("unable to create " + file.getParentFile());
+            }
+            written = file.length();
+            out = new OutputStreamWriter(new FileOutputStream(file, true), Charsets.UTF_8);
+        }
+
+        private void rotate()
+        {
+            new File(file.getPath() + "." + keep).delete();
+            for (int i = keep - 1; i >= 1; i--) {
+                new File(file.getPath() + "." + i).renameTo(new File(file.getPath() + "." + (i + 1)));
+            }
+            file.renameTo(new File(file.getPath() + ".1"));
+        }
+
+        @Override
+        public synchronized void close()
+        {
+            if (out != null) {
+                try {
+                    out.close();
+                }
+                catch (IOException e) {
+                    log.warn(e, "unable to close %s", file);
+                }
+                out = null;
+            }
+        }
+    }
+}
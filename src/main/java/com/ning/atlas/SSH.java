@@ -1,26 +1,51 @@
 package com.ning.atlas;
 
+import com.google.common.base.Charsets;
+import com.google.common.base.Splitter;
+import com.google.common.base.Strings;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.ning.atlas.logging.Logger;
+import com.ning.atlas.spi.Deployment;
 import com.ning.atlas.spi.Identity;
+import com.ning.atlas.spi.Maybe;
 import com.ning.atlas.spi.space.Missing;
 import com.ning.atlas.spi.space.Space;
 import com.ning.atlas.spi.protocols.SSHCredentials;
 import com.ning.atlas.spi.protocols.Server;
 import net.schmizz.sshj.SSHClient;
+import net.schmizz.sshj.common.SecurityUtils;
 import net.schmizz.sshj.connection.channel.direct.LocalPortForwarder;
 import net.schmizz.sshj.connection.channel.direct.Session;
 import net.schmizz.sshj.transport.verification.PromiscuousVerifier;
+import net.schmizz.sshj.userauth.keyprovider.KeyPairWrapper;
+import net.schmizz.sshj.userauth.keyprovider.KeyProvider;
 import net.schmizz.sshj.userauth.keyprovider.PKCS8KeyFile;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import static java.lang.String.format;
 
@@ -30,9 +55,69 @@ public class SSH
 
     private final static Logger logger = Logger.get(SSH.class);
 
-    private final ExecutorService pool = Executors.newCachedThreadPool();
+    private static final long INITIAL_BACKOFF_MILLIS = 250;
+    private static final long MAX_BACKOFF_MILLIS     = 8000;
+    private static final long CONNECT_TIMEOUT_MILLIS = 5000;
 
-    private final SSHClient ssh;
+    private static final ConcurrentMap<String, KeyProvider> keys = Maps.newConcurrentMap();
+
+    public static final String OUTPUT_PROPERTY = "atlas.ssh.output";
+
+    /**
+     * Longest line of command output kept, the rest of a longer line being dropped
+     */
+    public static final int MAX_LINE_CHARS = 64 * 1024;
+
+    // where converge and destroy put the environment's directory, which host logs go under
+    private static final String ENVIRONMENT_DIRECTORY = "atlas.environment-directory";
+
+    // reads stderr for connections made outside a deployment, which has pools of its own
+    private static final ExecutorService stderrPumps = Executors.newCachedThreadPool(
+        new ThreadFactoryBuilder().setDaemon(true).setNameFormat("ssh-stderr-%d").build());
+
+    private final List<ServerSocket> forwards = new CopyOnWriteArrayList<ServerSocket>();
+
+    private final SSHClient            ssh;
+    private final SSHConnections.Lease lease;
+    private final Deployment           deployment;
+    private final String               target;
+    private final Identity             hostId;
+    private final AtomicBoolean        closed = new AtomicBoolean(false);
+
+    /**
+     * Lease the deployment's pooled connection to the host, connecting it if needed.
+     * {@link #close()} hands the connection back rather than disconnecting.
+     */
+    public SSH(Deployment d, Identity hostId, String credentialName) throws IOException
+    {
+        this(d, hostId, SSHCredentials.lookup(d.getSpace(), credentialName)
+                              .otherwise(SSHCredentials.defaultCredentials(d.getSpace()))
+                              .otherwise(new IllegalStateException("Unable to find ssh credentials for " + credentialName)),
+             d.getSpace().get(hostId, Server.class, Missing.RequireAll)
+                         .otherwise(new IllegalStateException("Unable to find server info to ssh into " + hostId))
+                         .getExternalAddress());
+    }
+
+    /**
+     * Lease the deployment's pooled connection to the address, connecting it if needed.
+     * {@link #close()} hands the connection back rather than disconnecting.
+     */
+    public SSH(Deployment d, SSHCredentials creds, String externalAddress) throws IOException
+    {
+        this(d, null, creds, externalAddress);
+    }
+
+    private SSH(Deployment d, Identity hostId, SSHCredentials creds, String externalAddress) throws IOException
+    {
+        this.deployment = d;
+        this.hostId = hostId;
+        this.target = hostId == null ? externalAddress : hostId.toExternalForm();
+        this.lease = d.getSSHConnections().lease(new File(creds.getKeyFilePath()),
+                                                 creds.getUserName(),
+                                                 externalAddress,
+                                                 30, TimeUnit.SECONDS);
+        this.ssh = lease.getClient();
+    }
 
     public SSH(Host host, Space space, String credentialName) throws IOException
     {
@@ -56,37 +141,139 @@ public class SSH
 
     public SSH(File privateKeyFile, String userName, String host, long time, TimeUnit unit) throws IOException
     {
-        logger.debug("connecting to %s with key file %s and user %s", host, privateKeyFile.getAbsolutePath(), userName);
-        long give_up_at = System.currentTimeMillis() + unit.toMillis(time);
+        this.ssh = connect(privateKeyFile, userName, host, time, unit);
+        this.lease = null;
+        this.deployment = null;
+        this.hostId = null;
+        this.target = host;
+    }
 
-        boolean connected = false;
-        SSHClient ssh = null;
-        while (!connected) {
-            if (System.currentTimeMillis() > give_up_at) {
-                throw new IOException("gave up trying to connect after too long");
-            }
-            ssh = new SSHClient();
-            ssh.addHostKeyVerifier(new PromiscuousVerifier());
-            try {
-                ssh.connect(host);
+    static SSHClient connect(File privateKeyFile, String userName, String host, long time, TimeUnit unit) throws IOException
+    {
+        return connect(privateKeyFile, userName, host, time, unit, null);
+    }
+
+    /**
+     * Keep trying to connect and authenticate until the time is up. Freshly booted hosts are
+     * the usual reason to retry, so each attempt first checks that something is listening on
+     * the ssh port before paying for a handshake, and attempts back off exponentially with
+     * jitter so a fleet of new hosts isn't hammered in lockstep.
+     *
+     * @param stats records attempt timings, may be null
+     */
+    static SSHClient connect(File privateKeyFile,
+                             String userName,
+                             String host,
+                             long time,
+                             TimeUnit unit,
+                             SSHConnections stats) throws IOException
+    {
+        logger.debug("connecting to %s with key file %s and user %s", host, privateKeyFile.getAbsolutePath(), userName);
+        final KeyProvider key = loadKey(privateKeyFile);
+        final long started = System.currentTimeMillis();
+        final long give_up_at = started + unit.toMillis(time);
 
-                PKCS8KeyFile keyfile = new PKCS8KeyFile();
-                keyfile.init(privateKeyFile);
-                ssh.authPublickey(userName, keyfile);
+        long backoff = INITIAL_BACKOFF_MILLIS;
+        for (int attempt = 1; ; attempt++) {
+            long attempt_started = System.currentTimeMillis();
+            int timeout = (int) Math.max(1, Math.min(CONNECT_TIMEOUT_MILLIS, give_up_at - attempt_started));
 
-                connected = true;
+            String failure;
+            if (!probe(host, timeout)) {
+                failure = "nothing listening on port " + SSHClient.DEFAULT_PORT;
             }
-            catch (Exception e) {
-                // ec2 is not ready yet, probably
+            else {
+                SSHClient ssh = new SSHClient();
+                ssh.addHostKeyVerifier(new PromiscuousVerifier());
+                ssh.setConnectTimeout(timeout);
                 try {
-                    Thread.sleep(2000);
+                    ssh.connect(host);
+                    ssh.authPublickey(userName, key);
+
+                    long now = System.currentTimeMillis();
+                    logger.debug("connected to %s on attempt %d, handshake took %dms, %dms in all",
+                                 host, attempt, now - attempt_started, now - started);
+                    if (stats != null) {
+                        stats.recordConnect(now - started);
+                    }
+                    return ssh;
                 }
-                catch (InterruptedException e1) {
-                    Thread.currentThread().interrupt();
+                catch (Exception e) {
+                    // ec2 is not ready yet, probably
+                    failure = String.valueOf(e.getMessage());
+                    try {
+                        ssh.disconnect();
+                    }
+                    catch (IOException e1) {
+                        // never got far enough to need it
+                    }
                 }
             }
+
+            long now = System.currentTimeMillis();
+            logger.debug("attempt %d to connect to %s failed after %dms: %s", attempt, host, now - attempt_started, failure);
+            if (stats != null) {
+                stats.recordFailedAttempt();
+            }
+            if (now >= give_up_at) {
+                throw new IOException(format("gave up trying to connect to %s after %d attempts in %dms: %s",
+                                             host, attempt, now - started, failure));
+            }
+
+            // equal jitter: somewhere between half and all of the current backoff
+            long sleep = Math.min(give_up_at - now, backoff / 2 + (long) (Math.random() * (backoff / 2 + 1)));
+            try {
+                Thread.sleep(sleep);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while connecting to " + host);
+            }
+            backoff = Math.min(backoff * 2, MAX_BACKOFF_MILLIS);
         }
-        this.ssh = ssh;
+    }
+
+    /**
+     * Cheap check for something accepting connections on the ssh port, so we only attempt a
+     * full handshake against hosts which might answer it.
+     */
+    private static boolean probe(String host, int timeoutMillis)
+    {
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(host, SSHClient.DEFAULT_PORT), timeoutMillis);
+            return true;
+        }
+        catch (IOException e) {
+            return false;
+        }
+        finally {
+            try {
+                socket.close();
+            }
+            catch (IOException e) {
+                // nothing to do
+            }
+        }
+    }
+
+    /**
+     * Parse the private key once per file rather than once per connection attempt. Keyed
+     * on modification time as well as path, so a regenerated key file is picked up.
+     */
+    private static KeyProvider loadKey(File privateKeyFile) throws IOException
+    {
+        String cache_key = privateKeyFile.getAbsolutePath() + "@" + privateKeyFile.lastModified();
+        KeyProvider key = keys.get(cache_key);
+        if (key == null) {
+            // key parsing needs bouncy castle, which sshj otherwise registers when first connecting
+            SecurityUtils.isBouncyCastleRegistered();
+            PKCS8KeyFile keyfile = new PKCS8KeyFile();
+            keyfile.init(privateKeyFile);
+            key = new KeyPairWrapper(keyfile.getPublic(), keyfile.getPrivate());
+            keys.put(cache_key, key);
+        }
+        return key;
     }
 
     public SSH(Host host, Space space) throws IOException
@@ -106,8 +293,18 @@ public class SSH
 
     public void close() throws IOException
     {
-        ssh.disconnect();
-        pool.shutdownNow();
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        for (ServerSocket ss : forwards) {
+            ss.close();
+        }
+        if (lease != null) {
+            lease.release();
+        }
+        else {
+            ssh.disconnect();
+        }
     }
 
     public void forwardLocalPortTo(int localPort, String targetHost, int targetPort) throws IOException
@@ -118,16 +315,21 @@ public class SSH
 		ss.setReuseAddress(true);
 		ss.bind(new InetSocketAddress(params.getLocalHost(), params
 				.getLocalPort()));
-		pool.submit(new Runnable() {
+		forwards.add(ss);
+		Thread t = new Thread(new Runnable() {
 			@Override
 			public void run() {
 				try {
 					ssh.newLocalPortForwarder(params, ss).listen();
 				} catch (IOException e) {
-                    logger.warn(e, "ioexception on local port forwarded");
+                    if (!ss.isClosed()) {
+                        logger.warn(e, "ioexception on local port forwarded");
+                    }
 				}
 			}
-		});
+		}, "ssh-forward-" + localPort);
+		t.setDaemon(true);
+		t.start();
     }
 
     public String exec(String commandFormatString, Object... args) throws IOException
@@ -140,32 +342,308 @@ public class SSH
         return exec(command, 1, TimeUnit.HOURS);
     }
 
+    /**
+     * @return the tail of the command's stdout
+     */
     public String exec(String command, int time, TimeUnit unit) throws IOException
     {
+        return execute(command, OutputSinks.none(), time, unit).getOutput();
+    }
+
+    public ExecResult execute(String command, OutputSink sink) throws IOException
+    {
+        return execute(command, sink, 1, TimeUnit.HOURS);
+    }
+
+    /**
+     * Run a command, streaming its output to the sink as it arrives rather than collecting
+     * it. Output also goes to the debug log, and to whatever <code>atlas.ssh.output</code>
+     * asks for when this connection came from a deployment: <code>file</code> for a
+     * rotating log per host under the environment directory's logs, <code>events</code> to
+     * post each line to the deployment's event bus. Memory used is bounded by the tails
+     * kept for the result and the longest line, however much the command writes.
+     */
+    public ExecResult execute(String command, OutputSink sink, int time, TimeUnit unit) throws IOException
+    {
+        return execute(command, sink, time, unit, null);
+    }
+
+    /**
+     * Start a batch of commands to run as one script over a single session.
+     */
+    public CommandBatch batch()
+    {
+        return new CommandBatch(this);
+    }
+
+    ExecResult execute(String command,
+                       OutputSink sink,
+                       int time,
+                       TimeUnit unit,
+                       CommandBatch.Markers markers) throws IOException
+    {
+        OutputSinks.Tail stdout = OutputSinks.tail(OutputSink.Stream.stdout, OutputSinks.DEFAULT_TAIL_CHARS);
+        OutputSinks.Tail stderr = OutputSinks.tail(OutputSink.Stream.stderr, OutputSinks.DEFAULT_TAIL_CHARS);
+        OutputSink ours = configuredSinks();
+        OutputSink all = OutputSinks.tee(stdout, stderr, ours, sink);
+
         Session s = ssh.startSession();
         try {
             Session.Command cmd = s.exec(command);
 
-            StringBuilder all = new StringBuilder();
-            BufferedReader out = new BufferedReader(new InputStreamReader(cmd.getInputStream()));
-            String buf;
-            while (null != (buf = out.readLine())) {
-                logger.debug(buf);
-                all.append(buf).append("\n");
-            }
+            pumpBoth(cmd.getInputStream(), cmd.getErrorStream(), all, markers, target, pumps());
 
             cmd.join(time, unit);
+            Integer exit_status = cmd.getExitStatus();
             cmd.close();
-            return all.toString();
+            return new ExecResult(exit_status, stdout.getTail(), stderr.getTail());
         }
         finally {
             s.close();
+            ours.close();
         }
     }
 
+    private OutputSink configuredSinks()
+    {
+        List<OutputSink> sinks = Lists.newArrayList(OutputSinks.debugLog(logger));
+        if (deployment != null) {
+            String wanted = deployment.getEnvironment().getProperties().get(OUTPUT_PROPERTY);
+            for (String name : Splitter.on(',').trimResults().omitEmptyStrings().split(Strings.nullToEmpty(wanted))) {
+                if ("file".equals(name)) {
+                    Maybe<String> env_dir = deployment.getScratch().get(ENVIRONMENT_DIRECTORY);
+                    if (env_dir.isKnown()) {
+                        sinks.add(OutputSinks.hostLog(new File(env_dir.getValue()), target));
+                    }
+                    else {
+                        logger.warn("%s asks for a log file, but there is no %s to put %s's in",
+                                    OUTPUT_PROPERTY, ENVIRONMENT_DIRECTORY, target);
+                    }
+                }
+                else if ("events".equals(name)) {
+                    if (hostId != null) {
+                        sinks.add(OutputSinks.events(deployment.getEventBus(), hostId));
+                    }
+                }
+                else {
+                    throw new IllegalStateException(String.format("unknown %s '%s', expected file or events",
+                                                                  OUTPUT_PROPERTY, name));
+                }
+            }
+        }
+        return OutputSinks.tee(sinks.toArray(new OutputSink[sinks.size()]));
+    }
+
+    private ExecutorService pumps()
+    {
+        return deployment == null ? stderrPumps : deployment.getWorkerPools().get(WorkerPools.SSH_OUTPUT);
+    }
+
+    /**
+     * Pump stdout on this thread and stderr on the given pool until both are done. Reading
+     * one to the end before the other would leave a command which writes a lot to the other
+     * stuck once the channel's window fills, and us waiting on it for good.
+     */
+    static void pumpBoth(InputStream stdout,
+                         final InputStream stderr,
+                         OutputSink sink,
+                         CommandBatch.Markers markers,
+                         String target,
+                         ExecutorService pumps) throws IOException
+    {
+        final OutputSink serial = OutputSinks.serialize(sink);
+        Future<Void> errors = pumps.submit(new Callable<Void>()
+        {
+            @Override
+            public Void call() throws IOException
+            {
+                pump(stderr, OutputSink.Stream.stderr, serial, null);
+                return null;
+            }
+        });
+
+        pump(stdout, OutputSink.Stream.stdout, serial, markers);
+        try {
+            errors.get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted reading stderr from " + target);
+        }
+        catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("unable to read stderr from " + target, e.getCause());
+        }
+    }
+
+    private static void pump(InputStream in,
+                             OutputSink.Stream stream,
+                             OutputSink sink,
+                             CommandBatch.Markers markers) throws IOException
+    {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, Charsets.UTF_8));
+        StringBuilder line = new StringBuilder();
+        String buf;
+        while (null != (buf = readLine(reader, line))) {
+            if (markers != null) {
+                buf = markers.strip(buf);
+            }
+            if (buf != null) {
+                sink.line(stream, buf);
+            }
+        }
+    }
+
+    /**
+     * Like BufferedReader.readLine, but keeping at most {@link #MAX_LINE_CHARS} of the line, so
+     * a command writing without newlines can't run us out of memory
+     *
+     * @return null at the end of the stream
+     */
+    static String readLine(BufferedReader reader, StringBuilder line) throws IOException
+    {
+        line.setLength(0);
+        int c;
+        while ((c = reader.read()) != -1) {
+            if (c == '\n') {
+                return line.toString();
+            }
+            if (c == '\r') {
+                reader.mark(1);
+                if (reader.read() != '\n') {
+                    reader.reset();
+                }
+                return line.toString();
+            }
+            if (line.length() < MAX_LINE_CHARS) {
+                line.append((char) c);
+            }
+        }
+        return line.length() == 0 ? null : line.toString();
+    }
 
     public void scpUpload(File localFile, String remotePath) throws IOException
     {
         ssh.newSCPFileTransfer().upload(localFile.getAbsolutePath(), remotePath);
     }
+
+    /**
+     * Write the content to the remote path as the connecting user, without staging it in a
+     * local file first. See {@link #sudoUpload(InputStream, String, String)}.
+     */
+    public String upload(byte[] content, String remotePath) throws IOException
+    {
+        return upload(new ByteArrayInputStream(content), remotePath);
+    }
+
+    public String upload(InputStream content, String remotePath) throws IOException
+    {
+        return pipe(content, replaceScript(remotePath, null, null, ""));
+    }
+
+    public String sudoUpload(byte[] content, String remotePath) throws IOException
+    {
+        return sudoUpload(new ByteArrayInputStream(content), remotePath, null);
+    }
+
+    public String sudoUpload(byte[] content, String remotePath, String name) throws IOException
+    {
+        return sudoUpload(new ByteArrayInputStream(content), remotePath, name);
+    }
+
+    public String sudoUpload(InputStream content, String remotePath) throws IOException
+    {
+        return sudoUpload(content, remotePath, null);
+    }
+
+    public String sudoUpload(InputStream content, String remotePath, String name) throws IOException
+    {
+        return sudoUpload(content, remotePath, name, null);
+    }
+
+    /**
+     * Write the content to the remote path as root, streaming it over a single session into
+     * <code>sudo tee</code> on a temporary file next to the path, then moving that over the
+     * path. Readers see the old file or the new one, never part of one, and the file is
+     * replaced rather than rewritten, so it is root's with root's umask whatever it was before.
+     *
+     * @param name the file to write when the path is a directory, if null such a path is an error
+     * @param mode given to chmod for the file before it is moved into place, if not null
+     * @return the path of the file written
+     */
+    public String sudoUpload(InputStream content, String remotePath, String name, String mode) throws IOException
+    {
+        return pipe(content, replaceScript(remotePath, name, mode, "sudo "));
+    }
+
+    /**
+     * Shell script writing stdin to a temporary file beside the path, then moving it into place.
+     */
+    static String replaceScript(String remotePath, String name, String mode, String sudo)
+    {
+        StringBuilder b = new StringBuilder();
+        b.append("t=").append(quote(remotePath)).append("; ");
+        b.append("if ").append(sudo).append("test -d \"$t\"; then ");
+        if (name == null) {
+            b.append("echo \"$t is a directory\" >&2; exit 1; ");
+        }
+        else {
+            b.append("t=\"${t%/}\"/").append(quote(name)).append("; ");
+        }
+        b.append("fi; ");
+        b.append("tmp=\"$(dirname \"$t\")/.atlas-upload-").append(UUID.randomUUID()).append("\"; ");
+        b.append("if ").append(sudo).append("tee \"$tmp\" > /dev/null && ");
+        if (mode != null) {
+            b.append(sudo).append("chmod ").append(quote(mode)).append(" \"$tmp\" && ");
+        }
+        b.append(sudo).append("mv -f \"$tmp\" \"$t\"; ");
+        b.append("then echo \"$t\"; exit 0; fi; ");
+        b.append(sudo).append("rm -f \"$tmp\"; exit 1");
+        return b.toString();
+    }
+
+    private static String quote(String word)
+    {
+        return "'" + word.replace("'", "'\\''") + "'";
+    }
+
+    /**
+     * Stream the content to the command's stdin, then wait for it to exit.
+     *
+     * @return what the command wrote to stdout
+     */
+    private String pipe(InputStream content, String command) throws IOException
+    {
+        OutputSinks.Tail stdout = OutputSinks.tail(OutputSink.Stream.stdout, OutputSinks.DEFAULT_TAIL_CHARS);
+        OutputSinks.Tail stderr = OutputSinks.tail(OutputSink.Stream.stderr, OutputSinks.DEFAULT_TAIL_CHARS);
+        OutputSink all = OutputSinks.tee(stdout, stderr, OutputSinks.debugLog(logger));
+
+        Session s = ssh.startSession();
+        try {
+            Session.Command cmd = s.exec(command);
+
+            OutputStream out = cmd.getOutputStream();
+            ByteStreams.copy(content, out);
+            out.flush();
+            // closing the channel's stream sends eof, which is what ends the remote tee
+            out.close();
+
+            pumpBoth(cmd.getInputStream(), cmd.getErrorStream(), all, null, target, pumps());
+
+            cmd.join(1, TimeUnit.HOURS);
+            Integer exit_status = cmd.getExitStatus();
+            cmd.close();
+            if (exit_status == null || exit_status != 0) {
+                throw new IOException(format("'%s' on %s exited with %s: %s",
+                                             command, target, exit_status, stderr.getTail().trim()));
+            }
+            return stdout.getTail().trim();
+        }
+        finally {
+            s.close();
+            content.close();
+        }
+    }
 }
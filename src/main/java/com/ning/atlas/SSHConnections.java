@@ -0,0 +1,345 @@
+package com.ning.atlas;
+
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.SettableFuture;
+import com.ning.atlas.logging.Logger;
+import net.schmizz.sshj.SSHClient;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Authenticated ssh connections shared across a deployment, one per host and credential.
+ * Each {@link SSH} opened through a deployment leases the connection and runs its sessions
+ * over it, so a chain of installers on one host pays for a single handshake rather than
+ * one apiece. Concurrent leases multiplex sessions over the same connection.
+ * <p/>
+ * Connections nobody has leased for <code>atlas.ssh.idle-timeout</code> seconds (default
+ * {@link #DEFAULT_IDLE_TIMEOUT_SECONDS}) are disconnected the next time a connection is
+ * leased, and all are disconnected by {@link #closeAll()} when the deployment finishes.
+ */
+public class SSHConnections
+{
+    private static final Logger log = Logger.get(SSHConnections.class);
+
+    public static final String IDLE_TIMEOUT_PROPERTY        = "atlas.ssh.idle-timeout";
+    public static final long   DEFAULT_IDLE_TIMEOUT_SECONDS = 60;
+
+    private final ConcurrentMap<String, Connection> connections = Maps.newConcurrentMap();
+
+    private final AtomicLong hits      = new AtomicLong();
+    private final AtomicLong misses    = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    private final AtomicLong connects       = new AtomicLong();
+    private final AtomicLong failedAttempts = new AtomicLong();
+    private final AtomicLong connectMillis  = new AtomicLong();
+    private final AtomicLong slowestConnect = new AtomicLong();
+
+    private final long idleTimeoutMillis;
+
+    public SSHConnections(Map<String, String> properties)
+    {
+        String idle = properties.get(IDLE_TIMEOUT_PROPERTY);
+        try {
+            long seconds = idle == null ? DEFAULT_IDLE_TIMEOUT_SECONDS : Long.parseLong(idle.trim());
+            this.idleTimeoutMillis = TimeUnit.SECONDS.toMillis(seconds);
+        }
+        catch (NumberFormatException e) {
+            throw new IllegalStateException(String.format("%s must be a number of seconds, not '%s'",
+                                                          IDLE_TIMEOUT_PROPERTY, idle), e);
+        }
+    }
+
+    /**
+     * @return the connection to the host, connected and authenticated, which must be released
+     */
+    Lease lease(File privateKeyFile, String userName, String host, long time, TimeUnit unit) throws IOException
+    {
+        evictIdle();
+
+        String key = userName + "@" + host + " " + privateKeyFile.getAbsolutePath();
+        while (true) {
+            Connection c = connections.get(key);
+            if (c == null) {
+                Connection fresh = new Connection(key);
+                c = connections.putIfAbsent(key, fresh);
+                if (c == null) {
+                    c = fresh;
+                }
+            }
+
+            SSHClient client = c.acquire(privateKeyFile, userName, host, time, unit);
+            if (client != null) {
+                return new Lease(c, client);
+            }
+            // evicted out from under us, go around again for a fresh one
+        }
+    }
+
+    private void evictIdle()
+    {
+        long now = System.currentTimeMillis();
+        for (Connection c : connections.values()) {
+            if (c.evictIfIdleSince(now - idleTimeoutMillis)) {
+                connections.remove(c.key, c);
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Disconnect every pooled connection, leased or not.
+     */
+    public void closeAll()
+    {
+        for (Connection c : connections.values()) {
+            if (c.evictIfIdleSince(Long.MAX_VALUE)) {
+                connections.remove(c.key, c);
+            }
+        }
+    }
+
+    /**
+     * @return number of leases served by an already authenticated connection
+     */
+    public long getHits()
+    {
+        return hits.get();
+    }
+
+    /**
+     * @return number of leases which had to connect and authenticate
+     */
+    public long getMisses()
+    {
+        return misses.get();
+    }
+
+    /**
+     * @return number of connections disconnected for being idle
+     */
+    public long getEvictions()
+    {
+        return evictions.get();
+    }
+
+    void recordConnect(long millis)
+    {
+        connects.incrementAndGet();
+        connectMillis.addAndGet(millis);
+        long slowest = slowestConnect.get();
+        while (millis > slowest && !slowestConnect.compareAndSet(slowest, millis)) {
+            slowest = slowestConnect.get();
+        }
+    }
+
+    void recordFailedAttempt()
+    {
+        failedAttempts.incrementAndGet();
+    }
+
+    /**
+     * @return number of connect attempts which failed and were retried or given up on
+     */
+    public long getFailedAttempts()
+    {
+        return failedAttempts.get();
+    }
+
+    /**
+     * @return mean time from starting to connect to being authenticated, including retries
+     */
+    public long getMeanConnectMillis()
+    {
+        long n = connects.get();
+        return n == 0 ? 0 : connectMillis.get() / n;
+    }
+
+    /**
+     * @return longest time from starting to connect to being authenticated, including retries
+     */
+    public long getSlowestConnectMillis()
+    {
+        return slowestConnect.get();
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("ssh connections[open=%d, hits=%d, misses=%d, evictions=%d, " +
+                             "failed attempts=%d, mean connect=%dms, slowest connect=%dms]",
+                             connections.size(), getHits(), getMisses(), getEvictions(),
+                             getFailedAttempts(), getMeanConnectMillis(), getSlowestConnectMillis());
+    }
+
+    /**
+     * The client a lease was handed, which stays the one it uses even if the connection is
+     * closed out from under it, in which case using it fails rather than finding nothing
+     */
+    static class Lease
+    {
+        private final Connection connection;
+        private final SSHClient  client;
+
+        Lease(Connection connection, SSHClient client)
+        {
+            this.connection = connection;
+            this.client = client;
+        }
+
+        SSHClient getClient()
+        {
+            return client;
+        }
+
+        void release()
+        {
+            connection.release();
+        }
+    }
+
+    class Connection
+    {
+        private final String key;
+
+        private SSHClient client;
+        private int       leases;
+        private long      idleSince = System.currentTimeMillis();
+        private boolean   evicted;
+
+        // set while one lease connects, so the others for this key wait for its outcome
+        private SettableFuture<SSHClient> connecting;
+
+        Connection(String key)
+        {
+            this.key = key;
+        }
+
+        /**
+         * @return null if this connection has been evicted and must not be used
+         */
+        SSHClient acquire(File privateKeyFile, String userName, String host, long time, TimeUnit unit) throws IOException
+        {
+            SettableFuture<SSHClient> pending;
+            SSHClient stale = null;
+            boolean connect = false;
+            synchronized (this) {
+                if (evicted) {
+                    return null;
+                }
+                leases++;
+                if (client != null && client.isConnected() && client.isAuthenticated()) {
+                    hits.incrementAndGet();
+                    return client;
+                }
+                if (connecting == null) {
+                    // never connected, or dropped by the far end since we last used it
+                    stale = client;
+                    client = null;
+                    connecting = SettableFuture.create();
+                    connect = true;
+                }
+                pending = connecting;
+            }
+
+            if (connect) {
+                // no lock held, so waiting out an unreachable host holds up only its own leases
+                disconnect(stale);
+                misses.incrementAndGet();
+                try {
+                    SSHClient fresh = SSH.connect(privateKeyFile, userName, host, time, unit, SSHConnections.this);
+                    synchronized (this) {
+                        client = fresh;
+                        connecting = null;
+                    }
+                    pending.set(fresh);
+                    return fresh;
+                }
+                catch (IOException e) {
+                    failConnecting(pending, e);
+                    throw e;
+                }
+                catch (RuntimeException e) {
+                    failConnecting(pending, e);
+                    throw e;
+                }
+            }
+
+            try {
+                SSHClient rs = pending.get(time, unit);
+                hits.incrementAndGet();
+                return rs;
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                release();
+                throw new InterruptedIOException("interrupted waiting to connect to " + host);
+            }
+            catch (TimeoutException e) {
+                release();
+                throw new IOException(String.format("gave up waiting for another lease to connect to %s", host));
+            }
+            catch (ExecutionException e) {
+                release();
+                throw new IOException(String.format("unable to connect to %s: %s", host, e.getCause().getMessage()),
+                                      e.getCause());
+            }
+        }
+
+        private void failConnecting(SettableFuture<SSHClient> pending, Exception e)
+        {
+            synchronized (this) {
+                connecting = null;
+            }
+            pending.setException(e);
+            release();
+        }
+
+        synchronized void release()
+        {
+            leases--;
+            idleSince = System.currentTimeMillis();
+            if (evicted && leases == 0) {
+                // closed while this lease was still connecting
+                disconnect(client);
+                client = null;
+            }
+        }
+
+        /**
+         * Disconnect and mark this evicted if nobody has it leased and it has been idle since
+         * before the given time. Closing everything passes Long.MAX_VALUE, ignoring leases.
+         */
+        synchronized boolean evictIfIdleSince(long time)
+        {
+            if (evicted || (time != Long.MAX_VALUE && (leases > 0 || idleSince > time))) {
+                return false;
+            }
+            disconnect(client);
+            client = null;
+            evicted = true;
+            return true;
+        }
+
+        private void disconnect(SSHClient c)
+        {
+            if (c == null) {
+                return;
+            }
+            try {
+                c.disconnect();
+            }
+            catch (IOException e) {
+                log.debug("error disconnecting from %s: %s", key, e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,238 @@
+package com.ning.atlas;
+
+import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.ning.atlas.logging.Logger;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The threads a deployment does its work on. Work is split into named pools, one per
+ * component scheme plus {@link #CONVERGE}, {@link #EVENTS} and {@link #SSH_OUTPUT}, and each
+ * pool runs at most a fixed number of tasks at once, queueing the rest. Limits come from the
+ * environment descriptor, for example
+ * <pre>
+ *   set "atlas.concurrency.apt" => 50, "atlas.concurrency.ec2" => 20,
+ *       "atlas.concurrency.@converge" => 200
+ * </pre>
+ * The deployment's own pools are named so that no scheme can share them, as a scheme starts
+ * with a letter.
+ * Pools without their own limit use <code>atlas.concurrency.default</code>, or
+ * {@link #DEFAULT_LIMIT} if that is not set either.
+ * <p/>
+ * Idle threads time out, so pools cost nothing once a deployment is finished with them.
+ * <p/>
+ * Setting <code>atlas.threads</code> to <code>virtual</code> runs pools on virtual threads
+ * when the JVM has them, so thousands of hosts blocked on ssh don't each pin a platform
+ * thread and its stack. In that mode pools without a configured limit are unbounded.
+ */
+public class WorkerPools
+{
+    private static final Logger log = Logger.get(WorkerPools.class);
+
+    public static final String PROPERTY_PREFIX = "atlas.concurrency.";
+    public static final int    DEFAULT_LIMIT   = 64;
+    public static final String THREADS_PROPERTY = "atlas.threads";
+
+    /**
+     * Pool which runs the steps of a converge or unwind
+     */
+    public static final String CONVERGE = "@converge";
+
+    /**
+     * Pool which dispatches events posted to the deployment's event bus
+     */
+    public static final String EVENTS = "@events";
+
+    /**
+     * Pool which reads the stderr of remote commands while their caller reads stdout
+     */
+    public static final String SSH_OUTPUT = "@ssh-output";
+
+    private final ConcurrentMap<String, ThreadPoolExecutor>       executors = Maps.newConcurrentMap();
+    private final ConcurrentMap<String, ListeningExecutorService> pools     = Maps.newConcurrentMap();
+    private final Map<String, String> properties;
+    private final boolean             virtual;
+
+    public WorkerPools(Map<String, String> properties)
+    {
+        this.properties = properties;
+
+        String threads = properties.get(THREADS_PROPERTY);
+        if ("virtual".equals(threads)) {
+            if (virtualThreadFactory("probe") != null) {
+                this.virtual = true;
+            }
+            else {
+                log.warn("%s is virtual but this jvm has no virtual threads, using platform threads",
+                         THREADS_PROPERTY);
+                this.virtual = false;
+            }
+        }
+        else if (threads == null || "platform".equals(threads)) {
+            this.virtual = false;
+        }
+        else {
+            throw new IllegalStateException(String.format("%s must be 'platform' or 'virtual', not '%s'",
+                                                          THREADS_PROPERTY, threads));
+        }
+    }
+
+    /**
+     * @return true if pools run on virtual threads
+     */
+    public boolean isVirtual()
+    {
+        return virtual;
+    }
+
+    /**
+     * @return the pool for the given name, typically the scheme of a component uri
+     */
+    public ListeningExecutorService get(String name)
+    {
+        ListeningExecutorService pool = pools.get(name);
+        return pool != null ? pool : create(name);
+    }
+
+    private synchronized ListeningExecutorService create(String name)
+    {
+        if (pools.containsKey(name)) {
+            return pools.get(name);
+        }
+
+        int limit = limitFor(name);
+        ThreadFactory threads = virtual
+                                ? virtualThreadFactory(name)
+                                : new ThreadFactoryBuilder().setDaemon(true).setNameFormat(name + "-%d").build();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(limit, limit,
+                                                             30, TimeUnit.SECONDS,
+                                                             new LinkedBlockingQueue<Runnable>(),
+                                                             threads);
+        executor.allowCoreThreadTimeOut(true);
+        log.debug("created worker pool %s limited to %d threads", name, limit);
+
+        ListeningExecutorService pool = MoreExecutors.listeningDecorator(executor);
+        executors.put(name, executor);
+        pools.put(name, pool);
+        return pool;
+    }
+
+    public int getLimit(String name)
+    {
+        ThreadPoolExecutor executor = executors.get(name);
+        return executor == null ? limitFor(name) : executor.getMaximumPoolSize();
+    }
+
+    /**
+     * @return number of threads currently running tasks in the named pool
+     */
+    public int getActiveCount(String name)
+    {
+        ThreadPoolExecutor executor = executors.get(name);
+        return executor == null ? 0 : executor.getActiveCount();
+    }
+
+    /**
+     * @return number of tasks waiting for a thread in the named pool
+     */
+    public int getQueueDepth(String name)
+    {
+        ThreadPoolExecutor executor = executors.get(name);
+        return executor == null ? 0 : executor.getQueue().size();
+    }
+
+    /**
+     * @return the highest number of threads the named pool has had at once
+     */
+    public int getLargestPoolSize(String name)
+    {
+        ThreadPoolExecutor executor = executors.get(name);
+        return executor == null ? 0 : executor.getLargestPoolSize();
+    }
+
+    /**
+     * @return names of the pools created so far
+     */
+    public Set<String> getNames()
+    {
+        return ImmutableSortedSet.copyOf(executors.keySet());
+    }
+
+    private int limitFor(String name)
+    {
+        String key = PROPERTY_PREFIX + name;
+        if (!properties.containsKey(key)) {
+            key = PROPERTY_PREFIX + "default";
+        }
+        if (!properties.containsKey(key)) {
+            return virtual ? Integer.MAX_VALUE : DEFAULT_LIMIT;
+        }
+
+        String limit = properties.get(key);
+        int n;
+        try {
+            n = Integer.parseInt(limit.trim());
+        }
+        catch (NumberFormatException e) {
+            throw new IllegalStateException(String.format("%s must be a number, not '%s'", key, limit), e);
+        }
+        if (n < 1) {
+            throw new IllegalStateException(String.format("%s must be at least 1, not %d", key, n));
+        }
+        return n;
+    }
+
+    /**
+     * Thread.ofVirtual().name(name + "-", 0).factory(), looked up reflectively as we build
+     * for jvms which predate it.
+     *
+     * @return null if the jvm has no virtual threads
+     */
+    private static ThreadFactory virtualThreadFactory(String name)
+    {
+        try {
+            Class<?> builder_type = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builder_type.getMethod("name", String.class, long.class).invoke(builder, name + "-", 0L);
+            return (ThreadFactory) builder_type.getMethod("factory").invoke(builder);
+        }
+        catch (ClassNotFoundException e) {
+            return null;
+        }
+        catch (NoSuchMethodException e) {
+            return null;
+        }
+        catch (Exception e) {
+            log.warn(e, "unable to create virtual thread factory");
+            return null;
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        StringBuilder b = new StringBuilder();
+        for (String name : getNames()) {
+            if (b.length() > 0) {
+                b.append(", ");
+            }
+            b.append(String.format("%s[active=%d, queued=%d, largest=%d, limit=%d]",
+                                   name,
+                                   getActiveCount(name),
+                                   getQueueDepth(name),
+                                   getLargestPoolSize(name),
+                                   getLimit(name)));
+        }
+        return b.toString();
+    }
+}
@@ -1,19 +1,25 @@
 package com.ning.atlas.bus;
 
-import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.ning.atlas.spi.bus.NotificationBus;
 
-import java.util.concurrent.Executors;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.atomic.AtomicReference;
 
 public class GuavaNotificationBus implements NotificationBus
 {
     private final AtomicReference<AsyncEventBus> stageBus = new AtomicReference<AsyncEventBus>();
 
-    private final AsyncEventBus bus = new AsyncEventBus(Executors.newCachedThreadPool(new ThreadFactoryBuilder()
-                                                                                          .setDaemon(true)
-                                                                                          .setNameFormat("event-bus-%d")
-                                                                                          .build()));
+    private final ExecutorService executor;
+    private final AsyncEventBus   bus;
+
+    /**
+     * @param executor dispatches events for the deployment and for each stage, owned by the caller
+     */
+    public GuavaNotificationBus(ExecutorService executor)
+    {
+        this.executor = executor;
+        this.bus = new AsyncEventBus(executor);
+    }
 
     @Override
     public void subscribe(Scope scope, Object listener)
@@ -33,6 +39,7 @@ public class GuavaNotificationBus implements NotificationBus
         stageBus.get().unregister(listener);
     }
 
+    @Override
     public void post(Object event) {
         bus.post(event);
         stageBus.get().post(event);
@@ -40,15 +47,6 @@ public class GuavaNotificationBus implements NotificationBus
 
     public void startNewStage()
     {
-        AsyncEventBus bus = stageBus.get();
-        if (bus != null) {
-            bus.getExecutor().shutdown();
-        }
-        stageBus.set(new AsyncEventBus(Executors.newCachedThreadPool(new ThreadFactoryBuilder()
-                                                                         .setDaemon(true)
-                                                                         .setNameFormat("stage-event-bus-%d")
-                                                                         .build())));
+        stageBus.set(new AsyncEventBus(executor));
     }
 }
-
-
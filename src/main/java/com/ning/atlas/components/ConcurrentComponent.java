@@ -1,5 +1,6 @@
 package com.ning.atlas.components;
 
+import com.google.common.util.concurrent.ListenableFuture;
 import com.ning.atlas.Host;
 import com.ning.atlas.logging.Logger;
 import com.ning.atlas.spi.BaseComponent;
@@ -12,26 +13,16 @@ import com.ning.atlas.spi.Status;
 import com.ning.atlas.spi.Uri;
 
 import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
 
 public abstract class ConcurrentComponent extends BaseComponent implements Provisioner, Installer
 {
 
     private static final Logger log = Logger.get(ConcurrentComponent.class);
 
-    private final ExecutorService threadPool;
-
-    public ConcurrentComponent()
-    {
-        this.threadPool = Executors.newCachedThreadPool();
-    }
-
     @Override
-    public final Future<Status> install(final Host server, final Uri<Installer> uri, final Deployment deployment)
+    public final ListenableFuture<Status> install(final Host server, final Uri<Installer> uri, final Deployment deployment)
     {
-        return threadPool.submit(new Callable<Status>()
+        return deployment.getWorkerPools().get(uri.getScheme()).submit(new Callable<Status>()
         {
 
             @Override
@@ -54,9 +45,9 @@ public abstract class ConcurrentComponent extends BaseComponent implements Provi
     }
 
     @Override
-    public final Future<Status> provision(final Host node, final Uri<Provisioner> uri, final Deployment deployment)
+    public final ListenableFuture<Status> provision(final Host node, final Uri<Provisioner> uri, final Deployment deployment)
     {
-        return threadPool.submit(new Callable<Status>()
+        return deployment.getWorkerPools().get(uri.getScheme()).submit(new Callable<Status>()
         {
 
             @Override
@@ -80,9 +71,9 @@ public abstract class ConcurrentComponent extends BaseComponent implements Provi
     }
 
     @Override
-    public Future<Status> uninstall(final Identity hostId, final Uri<Installer> uri, final Deployment deployment)
+    public ListenableFuture<Status> uninstall(final Identity hostId, final Uri<Installer> uri, final Deployment deployment)
     {
-        return threadPool.submit(new Callable<Status>()
+        return deployment.getWorkerPools().get(uri.getScheme()).submit(new Callable<Status>()
         {
             @Override
             public Status call() throws Exception
@@ -103,9 +94,9 @@ public abstract class ConcurrentComponent extends BaseComponent implements Provi
     }
 
     @Override
-    public Future<Status> destroy(final Identity hostId, final Uri<Provisioner> uri, final Deployment deployment)
+    public ListenableFuture<Status> destroy(final Identity hostId, final Uri<Provisioner> uri, final Deployment deployment)
     {
-        return threadPool.submit(new Callable<Status>()
+        return deployment.getWorkerPools().get(uri.getScheme()).submit(new Callable<Status>()
         {
             @Override
             public Status call() throws Exception
@@ -133,7 +124,6 @@ public abstract class ConcurrentComponent extends BaseComponent implements Provi
     @Override
     protected final void finishLocal(Deployment deployment)
     {
-        threadPool.shutdown();
         finishLocal2(deployment);
     }
 
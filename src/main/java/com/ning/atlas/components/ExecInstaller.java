@@ -26,7 +26,7 @@ public class ExecInstaller extends ConcurrentComponent
     @Override
     public String perform(Host host, Uri<? extends Component> uri, Deployment d) throws Exception
     {
-        SSH ssh = new SSH(host, d.getSpace(), creds);
+        SSH ssh = new SSH(d, host.getId(), creds);
         try {
             String out = ssh.exec(uri.getFragment());
             log.info("output of exec is %s", out);
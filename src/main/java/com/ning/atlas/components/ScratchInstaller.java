@@ -1,37 +1,68 @@
 package com.ning.atlas.components;
 
 import com.google.common.base.Splitter;
+import com.google.common.collect.Maps;
 import com.google.common.util.concurrent.Futures;
 import com.ning.atlas.Host;
 import com.ning.atlas.spi.BaseComponent;
 import com.ning.atlas.spi.Component;
+import com.ning.atlas.spi.Coordinated;
 import com.ning.atlas.spi.Deployment;
 import com.ning.atlas.spi.Identity;
 import com.ning.atlas.spi.Installer;
 import com.ning.atlas.spi.Status;
 import com.ning.atlas.spi.Uri;
 
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Map;
 import java.util.concurrent.Future;
 
-public class ScratchInstaller extends BaseComponent implements Installer
+public class ScratchInstaller extends BaseComponent implements Installer, Coordinated
 {
 
     @Override
     public Future<Status> install(Host server, Uri<Installer> uri, Deployment deployment)
     {
-        final String id = server.getId().toExternalForm();
-        Map<String, String> pairs = Splitter.on(";").trimResults().withKeyValueSeparator("=").split(uri.getFragment());
-        for (Map.Entry<String, String> entry : pairs.entrySet()) {
-            final String key = entry.getKey();
-            final String value = entry.getValue();
-            deployment.getScratch().put(key.replaceAll("@", id), value.replaceAll("@", id));
-
+        for (Map.Entry<String, String> entry : values(server, uri).entrySet()) {
+            deployment.getScratch().put(entry.getKey(), entry.getValue());
         }
 
         return Futures.immediateFuture(Status.okay("wrote out value"));
     }
 
+    /**
+     * The keys it puts, so steps waiting for them fail if it does
+     */
+    @Override
+    public Collection<String> produces(Host host, Uri<? extends Component> uri)
+    {
+        return values(host, uri).keySet();
+    }
+
+    @Override
+    public Collection<String> waitsFor(Host host, Uri<? extends Component> uri)
+    {
+        return Collections.emptySet();
+    }
+
+    @Override
+    public Collection<String> waitsForScratch(Host host, Uri<? extends Component> uri)
+    {
+        return Collections.emptySet();
+    }
+
+    private static Map<String, String> values(Host host, Uri<? extends Component> uri)
+    {
+        final String id = host.getId().toExternalForm();
+        Map<String, String> pairs = Splitter.on(";").trimResults().withKeyValueSeparator("=").split(uri.getFragment());
+        Map<String, String> rs = Maps.newLinkedHashMap();
+        for (Map.Entry<String, String> entry : pairs.entrySet()) {
+            rs.put(entry.getKey().replaceAll("@", id), entry.getValue().replaceAll("@", id));
+        }
+        return rs;
+    }
+
     @Override
     public Future<Status> uninstall(Identity hostId, Uri<Installer> uri, Deployment deployment)
     {
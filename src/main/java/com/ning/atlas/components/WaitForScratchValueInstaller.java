@@ -3,25 +3,39 @@ package com.ning.atlas.components;
 import com.google.common.util.concurrent.Futures;
 import com.ning.atlas.Host;
 import com.ning.atlas.spi.Component;
+import com.ning.atlas.spi.Coordinated;
 import com.ning.atlas.spi.Deployment;
 import com.ning.atlas.spi.Identity;
-import com.ning.atlas.spi.Maybe;
 import com.ning.atlas.spi.Uri;
 
+import java.util.Collection;
+import java.util.Collections;
 import java.util.concurrent.Future;
 
-public class WaitForScratchValueInstaller extends ConcurrentComponent
+public class WaitForScratchValueInstaller extends ConcurrentComponent implements Coordinated
 {
     @Override
-    public String perform(Host host, Uri<? extends Component> uri, Deployment d) throws Exception
+    public Collection<String> produces(Host host, Uri<? extends Component> uri)
+    {
+        return Collections.emptySet();
+    }
+
+    @Override
+    public Collection<String> waitsFor(Host host, Uri<? extends Component> uri)
     {
+        return Collections.emptySet();
+    }
 
-        Maybe<String> result = Maybe.unknown();
-        while (!result.isKnown()) {
-            Thread.sleep(100);
-            result = d.getScratch().get(uri.getFragment());
-        }
+    @Override
+    public Collection<String> waitsForScratch(Host host, Uri<? extends Component> uri)
+    {
+        return Collections.singleton(uri.getFragment());
+    }
 
+    @Override
+    public String perform(Host host, Uri<? extends Component> uri, Deployment d) throws Exception
+    {
+        d.getScratch().watch(uri.getFragment()).get();
         return "okay";
     }
 
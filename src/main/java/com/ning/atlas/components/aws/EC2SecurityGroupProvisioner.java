@@ -52,7 +52,7 @@ public class EC2SecurityGroupProvisioner extends ConcurrentComponent
         }
 
         updateGroup(uri, ec2Api, iam, security_group);
-
+        AWS.ec2SecurityGroupReady(group_name, d.getSpace());
 
         return "okay";
     }
@@ -2,6 +2,8 @@ package com.ning.atlas.components.aws;
 
 import static org.jclouds.elb.options.ListLoadBalancersOptions.Builder.names;
 
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Set;
 import java.util.concurrent.ConcurrentSkipListSet;
 import java.util.concurrent.Future;
@@ -18,17 +20,39 @@ import com.ning.atlas.Host;
 import com.ning.atlas.components.ConcurrentComponent;
 import com.ning.atlas.config.AtlasConfiguration;
 import com.ning.atlas.spi.Component;
+import com.ning.atlas.spi.Coordinated;
 import com.ning.atlas.spi.Deployment;
 import com.ning.atlas.spi.Identity;
 import com.ning.atlas.spi.Uri;
 import com.ning.atlas.spi.protocols.AWS;
 import com.ning.atlas.spi.protocols.AWS.Credentials;
 
-public class ELBAddInstaller extends ConcurrentComponent
+public class ELBAddInstaller extends ConcurrentComponent implements Coordinated
 {
 
     private final Set<String> elbnames = new ConcurrentSkipListSet<String>();
 
+    @Override
+    public Collection<String> produces(Host host, Uri<? extends Component> uri)
+    {
+        return Collections.emptySet();
+    }
+
+    /**
+     * The load balancer, if this converge provisions it
+     */
+    @Override
+    public Collection<String> waitsFor(Host host, Uri<? extends Component> uri)
+    {
+        return Collections.singleton(ELBProvisioner.loadBalancer(uri.getFragment()));
+    }
+
+    @Override
+    public Collection<String> waitsForScratch(Host host, Uri<? extends Component> uri)
+    {
+        return Collections.emptySet();
+    }
+
     @Override
     public Future<String> describe(Host server,
                                    Uri<? extends Component> uri,
@@ -2,6 +2,8 @@ package com.ning.atlas.components.aws;
 
 import static com.google.common.base.Preconditions.checkState;
 
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.Future;
@@ -27,6 +29,7 @@ import com.ning.atlas.Host;
 import com.ning.atlas.components.ConcurrentComponent;
 import com.ning.atlas.config.AtlasConfiguration;
 import com.ning.atlas.spi.Component;
+import com.ning.atlas.spi.Coordinated;
 import com.ning.atlas.spi.Deployment;
 import com.ning.atlas.spi.Identity;
 import com.ning.atlas.spi.Uri;
@@ -34,8 +37,34 @@ import com.ning.atlas.spi.protocols.AWS;
 import com.ning.atlas.spi.protocols.AWS.Credentials;
 import com.ning.atlas.spi.space.Space;
 
-public class ELBProvisioner extends ConcurrentComponent
+public class ELBProvisioner extends ConcurrentComponent implements Coordinated
 {
+    /**
+     * What provisioning the named load balancer produces, for steps which add hosts to it
+     */
+    static String loadBalancer(String elb_name)
+    {
+        return "elb:" + elb_name;
+    }
+
+    @Override
+    public Collection<String> produces(Host host, Uri<? extends Component> uri)
+    {
+        return Collections.singleton(loadBalancer(uri.getFragment()));
+    }
+
+    @Override
+    public Collection<String> waitsFor(Host host, Uri<? extends Component> uri)
+    {
+        return Collections.emptySet();
+    }
+
+    @Override
+    public Collection<String> waitsForScratch(Host host, Uri<? extends Component> uri)
+    {
+        return Collections.emptySet();
+    }
+
     @Override
     public Future<String> describe(Host server,
                                    Uri<? extends Component> uri,
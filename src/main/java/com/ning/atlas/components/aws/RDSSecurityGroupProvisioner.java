@@ -39,6 +39,7 @@ public class RDSSecurityGroupProvisioner extends ConcurrentComponent
             createGroup(rdsApi, group_name);
         
         updateGroup(uri, rdsApi, iam);
+        AWS.rdsSecurityGroupReady(group_name, d.getSpace());
 
         return "okay";
     }
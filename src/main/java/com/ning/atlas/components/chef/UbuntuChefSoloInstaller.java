@@ -124,7 +124,7 @@ public class UbuntuChefSoloInstaller extends ConcurrentComponent
 
 
         Server server = d.getSpace().get(host.getId(), Server.class, Missing.RequireAll).getValue();
-        SSH ssh = new SSH(creds, server.getExternalAddress());
+        SSH ssh = new SSH(d, creds, server.getExternalAddress());
         try {
             String remote_path = "/home/" + creds.getUserName() + "/ubuntu-chef-solo-init.sh";
             ssh.scpUpload(this.chefSoloInitFile, remote_path);
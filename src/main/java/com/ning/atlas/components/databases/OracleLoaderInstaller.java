@@ -81,7 +81,7 @@ public class OracleLoaderInstaller extends ConcurrentComponent
             return "Nothing to be done for " + sql_url;
         }
 
-        SSH ssh = new SSH(creds, shell.getExternalAddress());
+        SSH ssh = new SSH(d, creds, shell.getExternalAddress());
         try {
             String s3_fetch = String.format("s3cmd get %s do_it.sql", sql_url);
             log.info(s3_fetch);
@@ -1,13 +1,14 @@
 package com.ning.atlas.components.files;
 
+import com.google.common.base.Charsets;
 import com.google.common.base.Splitter;
-import com.google.common.io.Files;
 import com.google.common.util.concurrent.Futures;
 import com.ning.atlas.components.ConcurrentComponent;
 import com.ning.atlas.Host;
 import com.ning.atlas.SSH;
 import com.ning.atlas.logging.Logger;
 import com.ning.atlas.spi.Component;
+import com.ning.atlas.spi.Coordinated;
 import com.ning.atlas.spi.Deployment;
 import com.ning.atlas.spi.Identity;
 import com.ning.atlas.spi.Uri;
@@ -16,13 +17,15 @@ import org.jruby.RubyInstanceConfig;
 import org.jruby.embed.ScriptingContainer;
 
 import java.io.File;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.concurrent.Future;
 
 import static java.lang.String.format;
 
-public class ERBFileInstaller extends ConcurrentComponent
+public class ERBFileInstaller extends ConcurrentComponent implements Coordinated
 {
     private final static Logger log = Logger.get(ERBFileInstaller.class);
     private final String creds;
@@ -32,6 +35,27 @@ public class ERBFileInstaller extends ConcurrentComponent
         this.creds = attrs.get("credentials");
     }
 
+    @Override
+    public Collection<String> produces(Host host, Uri<? extends Component> uri)
+    {
+        return Collections.emptySet();
+    }
+
+    /**
+     * Templates may render anything known of any host, so every host must be known first
+     */
+    @Override
+    public Collection<String> waitsFor(Host host, Uri<? extends Component> uri)
+    {
+        return Collections.singleton(EVERY_HOST);
+    }
+
+    @Override
+    public Collection<String> waitsForScratch(Host host, Uri<? extends Component> uri)
+    {
+        return Collections.emptySet();
+    }
+
     @Override
     public String perform(Host host, Uri<? extends Component> uri, Deployment d) throws Exception
     {
@@ -49,17 +73,13 @@ public class ERBFileInstaller extends ConcurrentComponent
         String out = String.valueOf(container.runScriptlet(format("require 'erb'\n" +
                                                                   "require 'java'\n" +
                                                                   "ERB.new(File.read('%s')).result(binding)", from)));
-        File tmp = File.createTempFile("atlas", ".tmp");
-        Files.write(out.getBytes("UTF8"), tmp);
 
-        SSH ssh = new SSH(host, d.getSpace(), creds);
+        SSH ssh = new SSH(d, host.getId(), creds);
         try {
-            ssh.scpUpload(tmp, "/tmp/hahaha");
-            ssh.exec("sudo mv /tmp/hahaha %s", to);
+            ssh.sudoUpload(out.getBytes(Charsets.UTF_8), to, new File(from).getName().replaceAll("\\.erb$", ""));
         }
         finally {
             ssh.close();
-            tmp.delete();
         }
 
         log.info(out);
@@ -80,7 +100,7 @@ public class ERBFileInstaller extends ConcurrentComponent
     public String unwind(Identity hostId, Uri<? extends Component> uri, Deployment d) throws Exception
     {
         log.info("unwinding %s on %s", uri, hostId);
-        SSH ssh = new SSH(hostId, creds, d.getSpace());
+        SSH ssh = new SSH(d, hostId, creds);
         try {
             Iterator<String> itty = Splitter.on('>').trimResults().split(uri.getFragment()).iterator();
             itty.next(); // from
@@ -12,6 +12,7 @@ import com.ning.atlas.spi.Identity;
 import com.ning.atlas.spi.Uri;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.concurrent.Future;
@@ -30,15 +31,16 @@ public class FileInstaller extends ConcurrentComponent
     @Override
     public String perform(Host host, Uri<? extends Component> uri, Deployment d) throws Exception
     {
-        SSH ssh = new SSH(host, d.getSpace(), credentials);
+        SSH ssh = new SSH(d, host.getId(), credentials);
 
         Iterator<String> itty = Splitter.on('>').trimResults().split(uri.getFragment()).iterator();
         String from = itty.next();
         String to = itty.next();
 
         try {
-            ssh.scpUpload(new File(from), "/tmp/hahaha");
-            ssh.exec("sudo mv /tmp/hahaha %s", to);
+            // as scp kept whether the file was executable
+            File file = new File(from);
+            ssh.sudoUpload(new FileInputStream(file), to, file.getName(), file.canExecute() ? "755" : null);
         }
         finally {
             ssh.close();
@@ -50,7 +52,7 @@ public class FileInstaller extends ConcurrentComponent
     public String unwind(Identity hostId, Uri<? extends Component> uri, Deployment d) throws Exception
     {
         log.info("unwinding %s on %s", uri, hostId);
-        SSH ssh = new SSH(hostId, credentials, d.getSpace());
+        SSH ssh = new SSH(d, hostId, credentials);
         try {
             Iterator<String> itty = Splitter.on('>').trimResults().split(uri.getFragment()).iterator();
             itty.next(); // from
@@ -39,12 +39,15 @@ public class ScriptInstaller extends ConcurrentComponent
 
         File script = new File(script_path);
 
-        SSH ssh = new SSH(host, d.getSpace(), creds);
+        SSH ssh = new SSH(d, host.getId(), creds);
         try {
             ssh.scpUpload(script, "/tmp/script_installer_script");
-            ssh.exec("chmod +x /tmp/script_installer_script");
             String cmd = "/tmp/script_installer_script " + Joiner.on(" ").join(Lists.newArrayList(argv));
-            String out = ssh.exec(cmd);
+            String out = ssh.batch()
+                            .add("chmod +x /tmp/script_installer_script")
+                            .add(cmd)
+                            .run()
+                            .getOutput();
             log.info(out);
             return out;
         }
@@ -69,11 +72,14 @@ public class ScriptInstaller extends ConcurrentComponent
 
             File script = new File(script_path);
 
-            SSH ssh = new SSH(hostId, creds, d.getSpace());
+            SSH ssh = new SSH(d, hostId, creds);
             try {
                 ssh.scpUpload(script, "/tmp/script_installer_script");
-                ssh.exec("chmod +x /tmp/script_installer_script");
-                String out = ssh.exec("/tmp/script_installer_script " + Joiner.on(" ").join(Lists.newArrayList(argv)));
+                String out = ssh.batch()
+                                .add("chmod +x /tmp/script_installer_script")
+                                .add("/tmp/script_installer_script " + Joiner.on(" ").join(Lists.newArrayList(argv)))
+                                .run()
+                                .getOutput();
                 log.info(out);
                 return out;
             }
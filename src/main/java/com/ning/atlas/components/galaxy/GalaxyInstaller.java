@@ -58,7 +58,7 @@ public class GalaxyInstaller extends ConcurrentComponent
         Identity shell_id = Identity.valueOf(d.getScratch().get("galaxy-shell").otherwise(new IllegalStateException("no galaxy-shell available")));
         Server shell = d.getSpace().get(shell_id, Server.class, Missing.RequireAll).getValue();
         Server server = d.getSpace().get(host.getId(), Server.class, Missing.RequireAll).getValue();
-        SSH ssh = new SSH(creds, shell.getExternalAddress());
+        SSH ssh = new SSH(d, creds, shell.getExternalAddress());
         try {
 
             final String fragment = uri.getFragment();
@@ -138,7 +138,7 @@ public class GalaxyInstaller extends ConcurrentComponent
         Identity shell_id = Identity.valueOf(d.getScratch().get("galaxy-shell").otherwise(new IllegalStateException("no galaxy-shell available")));
         Server shell = d.getSpace().get(shell_id, Server.class, Missing.RequireAll).getValue();
         Server server = d.getSpace().get(hostId, Server.class, Missing.RequireAll).getValue();
-        SSH ssh = new SSH(creds, shell.getExternalAddress());
+        SSH ssh = new SSH(d, creds, shell.getExternalAddress());
         try {
             String internal_hostname = Splitter.on('.').split(server.getInternalAddress()).iterator().next();
 
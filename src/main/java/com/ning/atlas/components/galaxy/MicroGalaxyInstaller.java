@@ -36,7 +36,7 @@ public class MicroGalaxyInstaller extends ConcurrentComponent
     public String perform(Host host, Uri<? extends Component> uri, Deployment d) throws IOException
     {
         String fragment = uri.getFragment();
-        SSH ssh = new SSH(host, d.getSpace(), credentialName);
+        SSH ssh = new SSH(d, host.getId(), credentialName);
         try {
             log.debug("installing {} on {}", fragment, host.getId());
             //
@@ -48,8 +48,11 @@ public class MicroGalaxyInstaller extends ConcurrentComponent
                                 fragment,
                                 microGalaxyUser);
             log.warn(cmd);
-            ssh.exec(cmd);
-            String out = ssh.exec("sh /tmp/ugx_install");
+            String out = ssh.batch()
+                            .add(cmd)
+                            .add("sh /tmp/ugx_install")
+                            .run()
+                            .getOutput();
             log.warn(out);
             return out;
         }
@@ -66,11 +69,13 @@ public class MicroGalaxyInstaller extends ConcurrentComponent
     public String unwind(Identity hostId, Uri<? extends Component> uri, Deployment d) throws Exception
     {
         log.info("unwinding {} on {}", uri, hostId);
-        SSH ssh = new SSH(hostId, credentialName, d.getSpace());
+        SSH ssh = new SSH(d, hostId, credentialName);
         try {
             String cmd = format("echo 'cd ~%s; sudo -u %s ugx clean' > /tmp/unwind", microGalaxyUser, microGalaxyUser);
-            ssh.exec(cmd);
-            ssh.exec("sh /tmp/unwind");
+            ssh.batch()
+               .add(cmd)
+               .add("sh /tmp/unwind")
+               .run();
             return "okay";
         }
         finally {
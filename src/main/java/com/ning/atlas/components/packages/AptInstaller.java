@@ -28,7 +28,7 @@ public class AptInstaller extends ConcurrentComponent
     @Override
     public String perform(Host host, Uri<? extends Component> uri, Deployment d) throws Exception
     {
-        SSH ssh = new SSH(host, d.getSpace(), credentialName);
+        SSH ssh = new SSH(d, host.getId(), credentialName);
         try {
             ssh.exec("sudo apt-get update");
             String out = ssh.exec("yes | sudo apt-get install " + uri.getFragment().replaceAll(",", " "));
@@ -50,7 +50,7 @@ public class AptInstaller extends ConcurrentComponent
     public String unwind(Identity hostId, Uri<? extends Component> uri, Deployment d) throws Exception
     {
         log.info("unwinding %s on %s", uri, hostId);
-        SSH ssh = new SSH(hostId, credentialName, d.getSpace());
+        SSH ssh = new SSH(d, hostId, credentialName);
         try {
             String out = ssh.exec("yes | sudo apt-get purge " + uri.getFragment().replaceAll(",", " "));
             log.info(out);
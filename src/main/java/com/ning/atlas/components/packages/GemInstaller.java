@@ -26,7 +26,7 @@ public class GemInstaller extends ConcurrentComponent
     @Override
     public String perform(Host host, Uri<? extends Component> uri, Deployment d) throws Exception
     {
-        SSH ssh = new SSH(host, d.getSpace(), credentialName);
+        SSH ssh = new SSH(d, host.getId(), credentialName);
         try {
             String out = ssh.exec("sudo gem install " + uri.getFragment().replaceAll(",", " ") + " --no-ri --no-rdoc");
             log.info(out);
@@ -41,7 +41,7 @@ public class GemInstaller extends ConcurrentComponent
     public String unwind(Identity hostId, Uri<? extends Component> uri, Deployment d) throws Exception
     {
         log.info("unwinding %s on %s", uri, hostId);
-        SSH ssh = new SSH(hostId, credentialName, d.getSpace());
+        SSH ssh = new SSH(d, hostId, credentialName);
         try {
             String out = ssh.exec("sudo gem uninstall " + uri.getFragment().replaceAll(",", " "));
             log.info(out);
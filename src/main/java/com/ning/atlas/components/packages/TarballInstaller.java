@@ -1,5 +1,7 @@
 package com.ning.atlas.components.packages;
 
+import com.ning.atlas.BatchResult;
+import com.ning.atlas.CommandBatch;
 import com.ning.atlas.components.ConcurrentComponent;
 import com.ning.atlas.Host;
 import com.ning.atlas.SSH;
@@ -29,18 +31,24 @@ public class TarballInstaller extends ConcurrentComponent
         String to = uri.getParams().get("to");
         Maybe<String> skiproot = Maybe.elideNull(uri.getParams().get("skiproot"));
 
-        final SSH ssh = new SSH(host.getId(), credentialName, d.getSpace());
+        final SSH ssh = new SSH(d, host.getId(), credentialName);
         try {
-            ssh.exec("mkdir /tmp/wafflehut");
-            ssh.exec("curl %s > /tmp/wafflehut/foo.tar.gz", url);
-            ssh.exec("mkdir /tmp/pancaketent");
-            ssh.exec("tar -C /tmp/pancaketent -zxvf /tmp/wafflehut/foo.tar.gz");
+            CommandBatch batch = ssh.batch()
+                                    .add("mkdir -p /tmp/wafflehut")
+                                    .add("curl %s > /tmp/wafflehut/foo.tar.gz", url)
+                                    .add("mkdir -p /tmp/pancaketent")
+                                    .add("tar -C /tmp/pancaketent -zxvf /tmp/wafflehut/foo.tar.gz");
 
             if (skiproot.isKnown()) {
-                ssh.exec("sudo mv /tmp/pancaketent/%s/* %s/", skiproot.getValue(), to);
+                batch.add("sudo mv /tmp/pancaketent/%s/* %s/", skiproot.getValue(), to);
             }
             else {
-                ssh.exec("sudo mv /tmp/pancaketent/* %s/", to);
+                batch.add("sudo mv /tmp/pancaketent/* %s/", to);
+            }
+
+            BatchResult rs = batch.run();
+            if (!rs.isSuccess()) {
+                throw new IllegalStateException("unable to install tarball " + url + ": " + rs);
             }
         }
         finally {
@@ -1,5 +1,7 @@
 package com.ning.atlas.components.packages;
 
+import com.ning.atlas.BatchResult;
+import com.ning.atlas.CommandBatch;
 import com.ning.atlas.components.ConcurrentComponent;
 import com.ning.atlas.Host;
 import com.ning.atlas.SSH;
@@ -29,18 +31,24 @@ public class ZipInstaller extends ConcurrentComponent
         String to = uri.getParams().get("to");
         Maybe<String> skiproot = Maybe.elideNull(uri.getParams().get("skiproot"));
 
-        final SSH ssh = new SSH(host.getId(), credentialName, d.getSpace());
+        final SSH ssh = new SSH(d, host.getId(), credentialName);
         try {
-            ssh.exec("mkdir /tmp/baconsandwich");
-            ssh.exec("curl %s > /tmp/baconsandwich/foo.zip", url);
-            ssh.exec("mkdir /tmp/ziphula");
-            ssh.exec("unzip -d /tmp/ziphula /tmp/baconsandwich/foo.zip");
+            CommandBatch batch = ssh.batch()
+                                    .add("mkdir -p /tmp/baconsandwich")
+                                    .add("curl %s > /tmp/baconsandwich/foo.zip", url)
+                                    .add("mkdir -p /tmp/ziphula")
+                                    .add("unzip -d /tmp/ziphula /tmp/baconsandwich/foo.zip");
 
             if (skiproot.isKnown()) {
-                ssh.exec("sudo mv /tmp/ziphula/%s/* %s/", skiproot.getValue(), to);
+                batch.add("sudo mv /tmp/ziphula/%s/* %s/", skiproot.getValue(), to);
             }
             else {
-                ssh.exec("sudo mv /tmp/ziphula/* %s/", to);
+                batch.add("sudo mv /tmp/ziphula/* %s/", to);
+            }
+
+            BatchResult rs = batch.run();
+            if (!rs.isSuccess()) {
+                throw new IllegalStateException("unable to install zip " + url + ": " + rs);
             }
         }
         finally {
@@ -81,6 +81,16 @@ public class AtlasConfiguration implements Configuration
         }
     }
 
+    /**
+     * @return every setting, those in atlas.conf taking precedence over recorded ones
+     */
+    public Map<String, String> asMap()
+    {
+        Map<String, String> rs = Maps.newHashMap(recorded);
+        rs.putAll(atlas);
+        return rs;
+    }
+
     @Override
     public Optional<String> lookup(String s)
     {
@@ -4,6 +4,7 @@ import static com.google.common.base.Preconditions.checkState;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Map;
 import java.util.concurrent.Callable;
 
 import org.skife.cli.Command;
@@ -15,7 +16,8 @@ import com.ning.atlas.Descriptor;
 import com.ning.atlas.Environment;
 import com.ning.atlas.JRubyTemplateParser;
 import com.ning.atlas.SystemMap;
-import com.ning.atlas.space.SQLiteBackedSpace;
+import com.ning.atlas.config.AtlasConfiguration;
+import com.ning.atlas.space.Spaces;
 import com.ning.atlas.spi.space.Space;
 
 @Command(name = "destroy")
@@ -37,21 +39,28 @@ public class Destroy implements Callable<Void>
             checkState(env_dir.mkdirs(), "unable to create environment data directory");
         }
 
-        Space space = SQLiteBackedSpace.create(new File(env_dir, "space.db"));
-
-        JRubyTemplateParser p = new JRubyTemplateParser();
-        Descriptor descriptor = Descriptor.empty();
-        for (File file : modelDirectory.listFiles()) {
-            if (file.isFile() && file.getName().endsWith(".rb")) {
-                descriptor = descriptor.combine(p.parseDescriptor(file));
+        Map<String, String> conf = AtlasConfiguration.global().asMap();
+        Space space = Spaces.forEnvironment(env_dir, conf);
+        try {
+            JRubyTemplateParser p = new JRubyTemplateParser();
+            Descriptor descriptor = Descriptor.empty();
+            for (File file : modelDirectory.listFiles()) {
+                if (file.isFile() && file.getName().endsWith(".rb")) {
+                    descriptor = descriptor.combine(p.parseDescriptor(file));
+                }
             }
-        }
 
-        SystemMap map = descriptor.normalize(environmentName);
-        Environment env = descriptor.getEnvironment(environmentName);
-        ActualDeployment d = env.planDeploymentFor(map, space);
+            SystemMap map = descriptor.normalize(environmentName);
+            Environment env = descriptor.getEnvironment(environmentName);
+            ActualDeployment d = env.planDeploymentFor(map, space);
+
+            d.getScratch().put("atlas.environment-directory", env_dir.getAbsolutePath());
 
-        d.destroy();
+            d.destroy();
+        }
+        finally {
+            space.close();
+        }
 
         return null;
     }
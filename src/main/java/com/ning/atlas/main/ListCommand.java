@@ -16,7 +16,8 @@ import com.ning.atlas.Descriptor;
 import com.ning.atlas.Host;
 import com.ning.atlas.JRubyTemplateParser;
 import com.ning.atlas.SystemMap;
-import com.ning.atlas.space.SQLiteBackedSpace;
+import com.ning.atlas.config.AtlasConfiguration;
+import com.ning.atlas.space.Spaces;
 import com.ning.atlas.spi.space.Space;
 import com.ning.atlas.spi.space.SpaceKey;
 
@@ -38,24 +39,30 @@ public class ListCommand implements Callable<Void>
             checkState(env_dir.mkdirs(), "unable to create environment data directory");
         }
 
-        Space space = SQLiteBackedSpace.create(new File(env_dir, "space.db"));
-        JRubyTemplateParser p = new JRubyTemplateParser();
-        Descriptor descriptor = Descriptor.empty();
-        for (File file : modelDirectory.listFiles()) {
-            if (file.isFile() && file.getName().endsWith(".rb")) {
-                descriptor = descriptor.combine(p.parseDescriptor(file));
+        Map<String, String> conf = AtlasConfiguration.global().asMap();
+        Space space = Spaces.forEnvironment(env_dir, conf);
+        try {
+            JRubyTemplateParser p = new JRubyTemplateParser();
+            Descriptor descriptor = Descriptor.empty();
+            for (File file : modelDirectory.listFiles()) {
+                if (file.isFile() && file.getName().endsWith(".rb")) {
+                    descriptor = descriptor.combine(p.parseDescriptor(file));
+                }
             }
-        }
 
-        SystemMap map = descriptor.normalize(environmentName);
-        for (Host host : map.findLeaves()) {
-            System.out.println(host.getId() + " :");
-            for (Map.Entry<SpaceKey, String> entry : space.getAllFor(host.getId()).entrySet()) {
-                System.out.printf("    %s : %s\n",
-                                  entry.getKey().getKey(),
-                                  StringUtils.abbreviate(entry.getValue(), 80).replaceAll("\n", "\\n"));
+            SystemMap map = descriptor.normalize(environmentName);
+            for (Host host : map.findLeaves()) {
+                System.out.println(host.getId() + " :");
+                for (Map.Entry<SpaceKey, String> entry : space.getAllFor(host.getId()).entrySet()) {
+                    System.out.printf("    %s : %s\n",
+                                      entry.getKey().getKey(),
+                                      StringUtils.abbreviate(entry.getValue(), 80).replaceAll("\n", "\\n"));
+                }
             }
         }
+        finally {
+            space.close();
+        }
         return null;
     }
 
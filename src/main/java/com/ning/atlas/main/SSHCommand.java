@@ -22,7 +22,8 @@ import com.ning.atlas.Descriptor;
 import com.ning.atlas.Host;
 import com.ning.atlas.JRubyTemplateParser;
 import com.ning.atlas.SystemMap;
-import com.ning.atlas.space.SQLiteBackedSpace;
+import com.ning.atlas.config.AtlasConfiguration;
+import com.ning.atlas.space.Spaces;
 import com.ning.atlas.spi.Maybe;
 import com.ning.atlas.spi.protocols.SSHCredentials;
 import com.ning.atlas.spi.protocols.Server;
@@ -59,27 +60,36 @@ public class SSHCommand implements Callable<Void>
             checkState(env_dir.mkdirs(), "unable to create environment data directory");
         }
 
-        Space space = SQLiteBackedSpace.create(new File(env_dir, "space.db"));
-        SystemMap map = descriptor.normalize(environmentName);
-        for (Host host : map.findLeaves()) {
-            Maybe<Server> server = space.get(host.getId(), Server.class);
-            if (host.getId().toExternalForm().contains(query) && server.isKnown()) {
-                IntByReference pid = new IntByReference();
-
-
-                SSHCredentials creds = SSHCredentials.defaultCredentials(space)
-                                                     .otherwise(new IllegalStateException("need to use default creds for ssh right now"));
-
-                String[] argv = new String[]{
-                    // -o UserKnownHostsFile=/dev/null -o StrictHostKeyChecking=no -i %s %s@%s
-                    "ssh", "-o", "UserKnownHostsFile=/dev/null", "-o", "StrictHostKeyChecking=no", "-i", creds.getKeyFilePath(), String
-                    .format("%s@%s", creds.getUserName(), server.getValue().getExternalAddress())
-                };
-                posix.posix_spawnp(pid, "ssh", null, null, argv, getEnv());
-                posix.waitpid(pid.intValue(), 0, 0);
-                return null;
+        Map<String, String> conf = AtlasConfiguration.global().asMap();
+        Space space = Spaces.forEnvironment(env_dir, conf);
+        String[] argv = null;
+        try {
+            SystemMap map = descriptor.normalize(environmentName);
+            for (Host host : map.findLeaves()) {
+                Maybe<Server> server = space.get(host.getId(), Server.class);
+                if (host.getId().toExternalForm().contains(query) && server.isKnown()) {
+                    SSHCredentials creds = SSHCredentials.defaultCredentials(space)
+                                                         .otherwise(new IllegalStateException("need to use default creds for ssh right now"));
+
+                    argv = new String[]{
+                        // -o UserKnownHostsFile=/dev/null -o StrictHostKeyChecking=no -i %s %s@%s
+                        "ssh", "-o", "UserKnownHostsFile=/dev/null", "-o", "StrictHostKeyChecking=no", "-i", creds.getKeyFilePath(), String
+                        .format("%s@%s", creds.getUserName(), server.getValue().getExternalAddress())
+                    };
+                    break;
+                }
             }
         }
+        finally {
+            // not held open for as long as the ssh session lasts
+            space.close();
+        }
+
+        if (argv != null) {
+            IntByReference pid = new IntByReference();
+            posix.posix_spawnp(pid, "ssh", null, null, argv, getEnv());
+            posix.waitpid(pid.intValue(), 0, 0);
+        }
         return null;
     }
 
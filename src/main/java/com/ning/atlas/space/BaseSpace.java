@@ -1,49 +1,52 @@
 package com.ning.atlas.space;
 
-import com.google.common.base.CaseFormat;
-import com.google.common.primitives.Primitives;
+import com.google.common.base.Objects;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.ning.atlas.spi.Identity;
 import com.ning.atlas.spi.Maybe;
 import com.ning.atlas.spi.space.Missing;
 import com.ning.atlas.spi.space.Space;
 import com.ning.atlas.spi.space.SpaceKey;
-import org.apache.commons.beanutils.PropertyUtils;
-import org.codehaus.jackson.map.ObjectMapper;
 
-import java.beans.PropertyDescriptor;
 import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
 public abstract class BaseSpace implements Space
 {
-    private static final ObjectMapper mapper = new ObjectMapper();
+    // built on the first query, then kept up to date by writes and deletes, and built again
+    // when the backend says another process has added or removed identities
+    private final    Object       trieLock = new Object();
+    private volatile IdentityTrie trie;
+    private volatile boolean      trieLoaded;
+    private volatile Object       trieVersion;
+
+    // identities read or written since marking started, null when not marking
+    private volatile Set<Identity> marked;
+
+    private final SpaceWatchers watchers = new SpaceWatchers();
 
     @Override
     public void store(Identity id, Object it)
     {
-        PropertyDescriptor[] pds = PropertyUtils.getPropertyDescriptors(it.getClass());
-        for (PropertyDescriptor pd : pds) {
-            if (!pd.getReadMethod().getDeclaringClass().equals(Object.class)) {
-                String prop_name = CaseFormat.LOWER_CAMEL.to(CaseFormat.LOWER_HYPHEN, pd.getName());
-                try {
-                    Object value = pd.getReadMethod().invoke(it);
-                    Class<?> pt = pd.getPropertyType();
-                    String json;
-                    if (String.class.equals(pt) || Primitives.allPrimitiveTypes().contains(pt)) {
-                        json = mapper.convertValue(value, String.class);
-                    }
-                    else {
-                        json = mapper.writeValueAsString(value);
-                    }
-
-                    write(id, prop_name, json);
-                }
-                catch (Exception e) {
-                    throw new IllegalStateException("unable to read property '" + pd.getName() + "' from " + it, e);
-                }
-            }
+        Map<SpaceKey, String> values = Maps.newLinkedHashMap();
+        for (Map.Entry<String, String> entry : BeanCodec.forType(it.getClass()).encode(it).entrySet()) {
+            values.put(SpaceKey.from(id, entry.getKey()), entry.getValue());
+        }
+        try {
+            writeMany(values);
         }
+        catch (IOException e) {
+            throw new IllegalStateException("unable to write " + it, e);
+        }
+        added(id);
+        watchers.stored(values);
     }
 
     @Override
@@ -55,18 +58,107 @@ public abstract class BaseSpace implements Space
         catch (IOException e) {
             throw new IllegalStateException("unable to write", e);
         }
+        added(id);
+        watchers.stored(Collections.singletonMap(SpaceKey.from(id, key), value));
+    }
+
+    @Override
+    public void deleteAll(Identity identity)
+    {
+        try {
+            eraseAll(identity);
+        }
+        catch (IOException e) {
+            throw new IllegalStateException("unable to delete", e);
+        }
+        IdentityTrie t = trie;
+        if (t != null) {
+            t.removeAll(identity);
+        }
+    }
+
+    private void added(Identity id)
+    {
+        // after the write, so if the trie is being loaded right now one or the other sees it
+        IdentityTrie t = trie;
+        if (t != null) {
+            t.add(id);
+        }
+        touched(id);
+    }
+
+    private void touched(Identity id)
+    {
+        Set<Identity> m = marked;
+        if (m != null) {
+            m.add(id);
+        }
+    }
+
+    /**
+     * Start keeping track of every identity written, or read and found, see {@link SpaceCollector}
+     */
+    public void startMarking()
+    {
+        marked = Sets.newSetFromMap(Maps.<Identity, Boolean>newConcurrentMap());
+    }
+
+    /**
+     * @return every identity written, or read and found, since {@link #startMarking()}
+     */
+    public Set<Identity> stopMarking()
+    {
+        Set<Identity> m = marked;
+        marked = null;
+        return m == null ? Collections.<Identity>emptySet() : m;
+    }
+
+    IdentityTrie identities()
+    {
+        Object version = identitiesVersion();
+        if (!trieLoaded || !Objects.equal(version, trieVersion)) {
+            synchronized (trieLock) {
+                if (!trieLoaded || !Objects.equal(version, trieVersion)) {
+                    IdentityTrie t = new IdentityTrie();
+                    trie = t;
+                    for (Identity id : findAllIdentities()) {
+                        t.add(id);
+                    }
+                    // read before loading, so a change made while loading is loaded again next time
+                    trieVersion = version;
+                    trieLoaded = true;
+                }
+            }
+        }
+        return trie;
+    }
+
+    /**
+     * For a backend other processes can write to, something which changes whenever identities
+     * may have been added or removed, by this space or any other, so {@link #identities()} knows
+     * to load them again. Null, the default, when only this space changes them.
+     */
+    Object identitiesVersion()
+    {
+        return null;
     }
 
     @Override
     public Maybe<String> get(Identity id, String key)
     {
+        String value;
         try {
             // return Maybe.elideNull( mapper.readValue(read(id, key), String.class));
-            return Maybe.elideNull(read(id, key));
+            value = read(id, key);
         }
         catch (IOException e) {
             throw new IllegalStateException("unable to read from persistent store", e);
         }
+        // as for getAll, only what was there
+        if (value != null) {
+            touched(id);
+        }
+        return Maybe.elideNull(value);
     }
 
     @Override
@@ -78,67 +170,109 @@ public abstract class BaseSpace implements Space
     @Override
     public <T> Maybe<T> get(Identity id, Class<T> type, Missing behavior)
     {
-        PropertyDescriptor[] pds = PropertyUtils.getPropertyDescriptors(type);
-        T bean;
-        try {
-            bean = type.newInstance();
+        BeanCodec codec = BeanCodec.forType(type);
+        Map<SpaceKey, String> found = getAll(keysFor(codec, Collections.singleton(id)));
+
+        Map<String, String> values = Maps.newHashMap();
+        for (Map.Entry<SpaceKey, String> entry : found.entrySet()) {
+            values.put(entry.getKey().getKey(), entry.getValue());
         }
-        catch (Exception e) {
-            throw new IllegalStateException("unable to instantiate an instance of " + type.getName(), e);
+        return codec.decode(values, behavior);
+    }
+
+    @Override
+    public <T> Map<Identity, T> getBeans(Collection<Identity> ids, Class<T> type)
+    {
+        BeanCodec codec = BeanCodec.forType(type);
+        Map<SpaceKey, String> found = getAll(keysFor(codec, ids));
+
+        Map<Identity, Map<String, String>> by_id = Maps.newHashMap();
+        for (Map.Entry<SpaceKey, String> entry : found.entrySet()) {
+            Map<String, String> values = by_id.get(entry.getKey().getIdentity());
+            if (values == null) {
+                values = Maps.newHashMap();
+                by_id.put(entry.getKey().getIdentity(), values);
+            }
+            values.put(entry.getKey().getKey(), entry.getValue());
         }
 
-        for (PropertyDescriptor pd : pds) {
-            if (pd.getWriteMethod() != null) {
-                String prop_name = CaseFormat.LOWER_CAMEL.to(CaseFormat.LOWER_HYPHEN, pd.getName());
-                String json_val = get(id, prop_name).otherwise((String) null);
-                Class<?> pt = pd.getPropertyType();
-                final Object val;
-                if (json_val != null) {
-                    if (String.class.equals(pt) || Primitives.allPrimitiveTypes().contains(pt)) {
-                        val = mapper.convertValue(json_val, pt);
-                    }
-                    else {
-                        try {
-                            val = mapper.readValue(json_val, pd.getPropertyType());
-                        }
-                        catch (IOException e) {
-                            throw new IllegalStateException(e.getMessage());
-                        }
-                    }
-                }
-                else {
-                    switch (behavior) {
-                        case NullProperty:
-                            val = null;
-                            break;
-                        case RequireAll:
-                            return Maybe.unknown();
-                        default:
-                            throw new UnsupportedOperationException("Not Yet Implemented!");
-                    }
+        Map<Identity, T> rs = Maps.newLinkedHashMap();
+        for (Identity id : ids) {
+            Map<String, String> values = by_id.get(id);
+            if (values != null) {
+                Maybe<T> bean = codec.decode(values, Missing.RequireAll);
+                if (bean.isKnown()) {
+                    rs.put(id, bean.getValue());
                 }
+            }
+        }
+        return rs;
+    }
 
-                try {
-                    pd.getWriteMethod().invoke(bean, val);
-                }
-                catch (Exception e) {
-                    throw new IllegalStateException("unable to write property " + pd.getName() + " to " + bean, e);
-                }
+    private static List<SpaceKey> keysFor(BeanCodec codec, Collection<Identity> ids)
+    {
+        List<SpaceKey> keys = Lists.newArrayListWithCapacity(codec.keys().size() * ids.size());
+        for (Identity id : ids) {
+            for (String key : codec.keys()) {
+                keys.add(SpaceKey.from(id, key));
+            }
+        }
+        return keys;
+    }
+
+    @Override
+    public Map<SpaceKey, String> getAll(Collection<SpaceKey> keys)
+    {
+        Map<SpaceKey, String> rs;
+        try {
+            rs = readMany(keys);
+        }
+        catch (IOException e) {
+            throw new IllegalStateException("unable to read from persistent store", e);
+        }
+        if (marked != null) {
+            // only what was there, as asking every identity for one of its children is how
+            // leftovers are found, and finding none must not keep them all
+            for (SpaceKey key : rs.keySet()) {
+                touched(key.getIdentity());
             }
         }
+        return rs;
+    }
 
-        return Maybe.definitely(bean);
+    @Override
+    public void storeAll(Map<SpaceKey, String> values)
+    {
+        try {
+            writeMany(values);
+        }
+        catch (IOException e) {
+            throw new IllegalStateException("unable to write", e);
+        }
+        Identity last = null;
+        for (SpaceKey key : values.keySet()) {
+            if (!key.getIdentity().equals(last)) {
+                last = key.getIdentity();
+                added(last);
+            }
+        }
+        watchers.stored(values);
     }
 
     @Override
     public Map<SpaceKey, String> getAllFor(Identity id)
     {
+        Map<SpaceKey, String> rs;
         try {
-            return readAll(id);
+            rs = readAll(id);
         }
         catch (IOException e) {
             throw new IllegalStateException(e);
         }
+        if (!rs.isEmpty()) {
+            touched(id);
+        }
+        return rs;
     }
 
     @Override
@@ -147,10 +281,34 @@ public abstract class BaseSpace implements Space
         return get(id, type, Missing.RequireAll);
     }
 
+    @Override
+    public ListenableFuture<String> watch(Identity id, String key)
+    {
+        return watchers.watch(SpaceKey.from(id, key));
+    }
+
+    @Override
+    public ListenableFuture<SpaceKey> watchPrefix(Identity prefix)
+    {
+        return watchers.watchPrefix(prefix);
+    }
+
     @Override
     public Set<String> query(String expression)
     {
-        return new QueryParser().parse(expression).query(this);
+        return QueryParser.compile(expression).query(this);
+    }
+
+    @Override
+    public void flush()
+    {
+        // writes are durable as soon as they are made
+    }
+
+    @Override
+    public void close()
+    {
+        flush();
     }
 
     protected abstract String read(Identity id, String key) throws IOException;
@@ -158,4 +316,35 @@ public abstract class BaseSpace implements Space
     protected abstract void write(Identity id, String key, String value) throws IOException;
 
     protected abstract Map<SpaceKey, String> readAll(Identity prefix) throws IOException;
+
+    /**
+     * Remove everything stored for the identity and its children
+     */
+    protected abstract void eraseAll(Identity prefix) throws IOException;
+
+    /**
+     * Look up many keys at once, leaving out those with no value. Stores which can do better
+     * than a read per key should.
+     */
+    protected Map<SpaceKey, String> readMany(Collection<SpaceKey> keys) throws IOException
+    {
+        Map<SpaceKey, String> rs = Maps.newHashMap();
+        for (SpaceKey key : keys) {
+            String value = read(key.getIdentity(), key.getKey());
+            if (value != null) {
+                rs.put(key, value);
+            }
+        }
+        return rs;
+    }
+
+    /**
+     * Write many values at once. Stores which can do better than a write per value should.
+     */
+    protected void writeMany(Map<SpaceKey, String> values) throws IOException
+    {
+        for (Map.Entry<SpaceKey, String> entry : values.entrySet()) {
+            write(entry.getKey().getIdentity(), entry.getKey().getKey(), entry.getValue());
+        }
+    }
 }
@@ -0,0 +1,187 @@
+package com.ning.atlas.space;
+
+import com.google.common.base.CaseFormat;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.primitives.Primitives;
+import com.ning.atlas.spi.Maybe;
+import com.ning.atlas.spi.space.Missing;
+import org.apache.commons.beanutils.PropertyUtils;
+import org.codehaus.jackson.map.ObjectMapper;
+
+import java.beans.PropertyDescriptor;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * How one bean class maps to keys in a space, worked out once per class rather than on every
+ * store and get.
+ */
+class BeanCodec
+{
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    // weak keys so a plugin's classes can be unloaded with it, and soft values as a codec
+    // refers to its class, which would otherwise keep the key from ever being collected
+    private static final LoadingCache<Class<?>, BeanCodec> codecs =
+        CacheBuilder.newBuilder()
+                    .weakKeys()
+                    .softValues()
+                    .build(new CacheLoader<Class<?>, BeanCodec>()
+                    {
+                        @Override
+                        public BeanCodec load(Class<?> type) throws Exception
+                        {
+                            return new BeanCodec(type);
+                        }
+                    });
+
+    private final Class<?>       type;
+    private final List<Property> readable;
+    private final List<Property> writable;
+    private final List<String>   writableKeys;
+
+    private BeanCodec(Class<?> type)
+    {
+        this.type = type;
+        List<Property> readable = Lists.newArrayList();
+        List<Property> writable = Lists.newArrayList();
+        List<String> writable_keys = Lists.newArrayList();
+        for (PropertyDescriptor pd : PropertyUtils.getPropertyDescriptors(type)) {
+            Property p = new Property(pd);
+            if (p.getter != null) {
+                readable.add(p);
+            }
+            if (p.setter != null) {
+                writable.add(p);
+                writable_keys.add(p.key);
+            }
+        }
+        this.readable = readable;
+        this.writable = writable;
+        this.writableKeys = Collections.unmodifiableList(writable_keys);
+    }
+
+    static BeanCodec forType(Class<?> type)
+    {
+        return codecs.getUnchecked(type);
+    }
+
+    /**
+     * @return the keys {@link #decode(Map, Missing)} looks for
+     */
+    List<String> keys()
+    {
+        return writableKeys;
+    }
+
+    /**
+     * @return the value of each readable property, by key
+     */
+    Map<String, String> encode(Object bean)
+    {
+        Map<String, String> rs = Maps.newLinkedHashMap();
+        for (Property p : readable) {
+            try {
+                Object value = p.getter.invoke(bean);
+                rs.put(p.key, p.plain ? mapper.convertValue(value, String.class) : mapper.writeValueAsString(value));
+            }
+            catch (Exception e) {
+                throw new IllegalStateException("unable to read property '" + p.name + "' from " + bean, e);
+            }
+        }
+        return rs;
+    }
+
+    @SuppressWarnings("unchecked")
+    <T> Maybe<T> decode(Map<String, String> values, Missing behavior)
+    {
+        T bean;
+        try {
+            bean = (T) type.newInstance();
+        }
+        catch (Exception e) {
+            throw new IllegalStateException("unable to instantiate an instance of " + type.getName(), e);
+        }
+
+        for (Property p : writable) {
+            String json_val = values.get(p.key);
+            final Object val;
+            if (json_val != null) {
+                if (p.plain) {
+                    val = mapper.convertValue(json_val, p.type);
+                }
+                else {
+                    try {
+                        val = mapper.readValue(json_val, p.type);
+                    }
+                    catch (IOException e) {
+                        throw new IllegalStateException(e.getMessage());
+                    }
+                }
+            }
+            else {
+                switch (behavior) {
+                    case NullProperty:
+                        val = null;
+                        break;
+                    case RequireAll:
+                        return Maybe.unknown();
+                    default:
+                        throw new UnsupportedOperationException("Not Yet Implemented!");
+                }
+            }
+
+            try {
+                p.setter.invoke(bean, val);
+            }
+            catch (Exception e) {
+                throw new IllegalStateException("unable to write property " + p.name + " to " + bean, e);
+            }
+        }
+
+        return Maybe.definitely(bean);
+    }
+
+    private static class Property
+    {
+        private final String   name;
+        private final String   key;
+        private final Class<?> type;
+        private final boolean  plain;
+        private final Method   getter;
+        private final Method   setter;
+
+        Property(PropertyDescriptor pd)
+        {
+            this.name = pd.getName();
+            this.key = CaseFormat.LOWER_CAMEL.to(CaseFormat.LOWER_HYPHEN, pd.getName());
+            this.type = pd.getPropertyType();
+            this.plain = String.class.equals(type) || Primitives.allPrimitiveTypes().contains(type);
+            this.getter = pd.getReadMethod() == null || pd.getReadMethod().getDeclaringClass().equals(Object.class)
+                          ? null
+                          : accessible(pd.getReadMethod());
+            this.setter = accessible(pd.getWriteMethod());
+        }
+
+        // skips the access check on every call
+        private static Method accessible(Method m)
+        {
+            if (m != null) {
+                try {
+                    m.setAccessible(true);
+                }
+                catch (RuntimeException e) {
+                    // checked each call then, which is what we had anyway
+                }
+            }
+            return m;
+        }
+    }
+}
@@ -0,0 +1,266 @@
+package com.ning.atlas.space;
+
+import com.google.common.base.Optional;
+import com.google.common.base.Throwables;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import com.ning.atlas.logging.Logger;
+import com.ning.atlas.spi.Identity;
+import com.ning.atlas.spi.space.Space;
+import com.ning.atlas.spi.space.SpaceKey;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Keeps values read from another space, including the fact that there is no value for a key,
+ * so components asking again and again for the same credentials or server don't go back to
+ * the store each time. Writes and deletes go straight through and drop what they touch from
+ * the cache, so this must be the only way into the space it wraps while it is in use.
+ * A read which was already loading a key when it was written does not keep what it loaded.
+ * <pre>
+ *   atlas.space.cache-size=10000        # values kept, 0 to not cache at all
+ * </pre>
+ */
+public class CachingSpace extends BaseSpace
+{
+    private static final Logger log = Logger.get(CachingSpace.class);
+
+    public static final String CACHE_SIZE_PROPERTY = "atlas.space.cache-size";
+    public static final long   DEFAULT_CACHE_SIZE  = 10000;
+
+    // keys written are counted in one of these by their hash, and removing everything below an
+    // identity counts in erased, so a read can tell whether a key was written while it loaded
+    private static final int VERSION_STRIPES = 1024;
+
+    private final AtomicLongArray versions = new AtomicLongArray(VERSION_STRIPES);
+    private final AtomicLong      erased   = new AtomicLong();
+
+    private final Space                                     delegate;
+    private final LoadingCache<SpaceKey, Optional<String>> values;
+
+    private CachingSpace(final Space delegate, long maximumSize)
+    {
+        this.delegate = delegate;
+        this.values = CacheBuilder.newBuilder()
+                                  .maximumSize(maximumSize)
+                                  .recordStats()
+                                  .build(new CacheLoader<SpaceKey, Optional<String>>()
+                                  {
+                                      @Override
+                                      public Optional<String> load(SpaceKey key) throws Exception
+                                      {
+                                          return Optional.fromNullable(delegate.get(key.getIdentity(), key.getKey())
+                                                                               .otherwise((String) null));
+                                      }
+
+                                      @Override
+                                      public Map<SpaceKey, Optional<String>> loadAll(Iterable<? extends SpaceKey> keys) throws Exception
+                                      {
+                                          return fetch(keys);
+                                      }
+                                  });
+    }
+
+    public static CachingSpace create(Space delegate, long maximumSize)
+    {
+        return new CachingSpace(delegate, maximumSize);
+    }
+
+    /**
+     * Wrap the space as <code>atlas.space.cache-size</code> says to, which may be not at all.
+     */
+    public static Space create(Space delegate, Map<String, String> properties)
+    {
+        String value = properties.get(CACHE_SIZE_PROPERTY);
+        long size;
+        try {
+            size = value == null ? DEFAULT_CACHE_SIZE : Long.parseLong(value.trim());
+        }
+        catch (NumberFormatException e) {
+            throw new IllegalStateException(String.format("%s must be a number, not '%s'",
+                                                          CACHE_SIZE_PROPERTY, value), e);
+        }
+        return size > 0 ? new CachingSpace(delegate, size) : delegate;
+    }
+
+    /**
+     * Hits, misses, loads and evictions since the space was created
+     */
+    public CacheStats stats()
+    {
+        return values.stats();
+    }
+
+    @Override
+    protected String read(Identity id, String key) throws IOException
+    {
+        SpaceKey k = SpaceKey.from(id, key);
+        long before = version(k);
+        Optional<String> found;
+        try {
+            found = values.getUnchecked(k);
+        }
+        catch (UncheckedExecutionException e) {
+            throw Throwables.propagate(e.getCause());
+        }
+        if (version(k) != before) {
+            values.invalidate(k);
+        }
+        return found.orNull();
+    }
+
+    @Override
+    protected Map<SpaceKey, String> readMany(Collection<SpaceKey> keys) throws IOException
+    {
+        List<SpaceKey> in_order = Lists.newArrayList(keys);
+        long[] before = new long[in_order.size()];
+        for (int i = 0; i < before.length; i++) {
+            before[i] = version(in_order.get(i));
+        }
+
+        Map<SpaceKey, Optional<String>> found;
+        try {
+            found = values.getAll(in_order);
+        }
+        catch (ExecutionException e) {
+            throw Throwables.propagate(e.getCause());
+        }
+        catch (UncheckedExecutionException e) {
+            throw Throwables.propagate(e.getCause());
+        }
+
+        for (int i = 0; i < before.length; i++) {
+            if (version(in_order.get(i)) != before[i]) {
+                values.invalidate(in_order.get(i));
+            }
+        }
+
+        Map<SpaceKey, String> rs = Maps.newHashMap();
+        for (Map.Entry<SpaceKey, Optional<String>> entry : found.entrySet()) {
+            if (entry.getValue().isPresent()) {
+                rs.put(entry.getKey(), entry.getValue().get());
+            }
+        }
+        return rs;
+    }
+
+    @Override
+    protected void write(Identity id, String key, String value) throws IOException
+    {
+        delegate.store(id, key, value);
+        written(SpaceKey.from(id, key));
+        values.invalidate(SpaceKey.from(id, key));
+    }
+
+    @Override
+    protected void writeMany(Map<SpaceKey, String> batch) throws IOException
+    {
+        delegate.storeAll(batch);
+        for (SpaceKey key : batch.keySet()) {
+            written(key);
+        }
+        values.invalidateAll(batch.keySet());
+    }
+
+    @Override
+    protected Map<SpaceKey, String> readAll(Identity prefix) throws IOException
+    {
+        return delegate.getAllFor(prefix);
+    }
+
+    @Override
+    public Set<Identity> findAllIdentities()
+    {
+        return delegate.findAllIdentities();
+    }
+
+    @Override
+    protected void eraseAll(Identity prefix) throws IOException
+    {
+        delegate.deleteAll(prefix);
+        erased.incrementAndGet();
+        if (prefix.isRoot()) {
+            values.invalidateAll();
+            return;
+        }
+        Iterator<SpaceKey> keys = values.asMap().keySet().iterator();
+        while (keys.hasNext()) {
+            Identity id = keys.next().getIdentity();
+            if (id.equals(prefix) || prefix.isParentOf(id)) {
+                keys.remove();
+            }
+        }
+    }
+
+    @Override
+    public void delete(Identity identity, String key)
+    {
+        delegate.delete(identity, key);
+        written(SpaceKey.from(identity, key));
+        values.invalidate(SpaceKey.from(identity, key));
+    }
+
+    @Override
+    public void flush()
+    {
+        delegate.flush();
+        log.debug("space cache %s", values.stats());
+    }
+
+    @Override
+    Object identitiesVersion()
+    {
+        return delegate instanceof BaseSpace ? ((BaseSpace) delegate).identitiesVersion() : null;
+    }
+
+    @Override
+    public void close()
+    {
+        delegate.close();
+        values.invalidateAll();
+    }
+
+    /**
+     * Counted after the write reaches the space below and before the key is dropped from the
+     * cache, so a read that loaded the old value either has it dropped by the write or sees the
+     * count change and drops it itself.
+     */
+    private void written(SpaceKey key)
+    {
+        versions.incrementAndGet(stripe(key));
+    }
+
+    private long version(SpaceKey key)
+    {
+        // both only ever grow, so the sum changes whenever either does
+        return erased.get() + versions.get(stripe(key));
+    }
+
+    private static int stripe(SpaceKey key)
+    {
+        return (key.hashCode() & Integer.MAX_VALUE) % VERSION_STRIPES;
+    }
+
+    private Map<SpaceKey, Optional<String>> fetch(Iterable<? extends SpaceKey> keys)
+    {
+        Map<SpaceKey, Optional<String>> rs = Maps.newHashMap();
+        Map<SpaceKey, String> found = delegate.getAll(Lists.<SpaceKey>newArrayList(keys));
+        for (SpaceKey key : keys) {
+            rs.put(key, Optional.fromNullable(found.get(key)));
+        }
+        return rs;
+    }
+}
@@ -0,0 +1,266 @@
+package com.ning.atlas.space;
+
+import com.google.common.collect.Iterables;
+import com.google.common.collect.LinkedHashMultimap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Multimap;
+import com.google.common.collect.Sets;
+import com.google.common.io.Files;
+import com.ning.atlas.logging.Logger;
+import com.ning.atlas.spi.Identity;
+import com.ning.atlas.spi.space.SpaceKey;
+import org.h2.jdbcx.JdbcConnectionPool;
+import org.skife.jdbi.v2.DBI;
+import org.skife.jdbi.v2.Handle;
+import org.skife.jdbi.v2.Query;
+import org.skife.jdbi.v2.sqlobject.Bind;
+import org.skife.jdbi.v2.sqlobject.SqlBatch;
+import org.skife.jdbi.v2.sqlobject.SqlQuery;
+import org.skife.jdbi.v2.sqlobject.SqlUpdate;
+import org.skife.jdbi.v2.sqlobject.customizers.Mapper;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Space stored in an h2 database, in multi version mode so reads never wait on a write in
+ * progress. Every write is committed as it is made, and a batch of writes in one transaction.
+ * <p/>
+ * In auto server mode the first process to open the database serves it to any others which
+ * open it after, so an <code>atlas ls</code> can read an environment while a converge is
+ * writing to it, rather than failing to open the file. A process which finds the server gone
+ * takes over serving it.
+ * <pre>
+ *   atlas.space.h2.auto-server=true      # share the database with other processes, the default
+ *   atlas.space.h2.lock-timeout-millis=10000
+ * </pre>
+ */
+public class H2BackedSpace extends BaseSpace
+{
+    private static final Logger log = Logger.get(H2BackedSpace.class);
+
+    public static final String AUTO_SERVER_PROPERTY  = "atlas.space.h2.auto-server";
+    public static final String LOCK_TIMEOUT_PROPERTY = "atlas.space.h2.lock-timeout-millis";
+
+    public static final long DEFAULT_LOCK_TIMEOUT_MILLIS = 10000;
+
+    // h2 takes a good deal more parameters than this, but the statements get no cheaper
+    private static final int MAX_IN_LIST = 500;
+
+    private final JdbcConnectionPool pool;
+    private final DBI                dbi;
+    private final Dao                dao;
+    private final boolean            autoServer;
+
+    private H2BackedSpace(File storage, boolean autoServer, long lockTimeout) throws IOException
+    {
+        Files.createParentDirs(storage);
+        String url = String.format("jdbc:h2:%s;MVCC=TRUE;LOCK_TIMEOUT=%d%s",
+                                   storage.getAbsolutePath(), lockTimeout, autoServer ? ";AUTO_SERVER=TRUE" : "");
+        log.debug("storing data in %s", url);
+
+        this.pool = JdbcConnectionPool.create(url, "sa", "");
+        this.dbi = new DBI(pool);
+        this.dao = dbi.onDemand(Dao.class);
+        this.autoServer = autoServer;
+        dao.create();
+    }
+
+    /**
+     * A space not shared with other processes. h2 adds its own suffix to the storage name.
+     */
+    public static H2BackedSpace create(File storage) throws IOException
+    {
+        return new H2BackedSpace(storage, false, DEFAULT_LOCK_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * Create a space configured by <code>atlas.space.h2.*</code> properties, see above.
+     */
+    public static H2BackedSpace create(File storage, Map<String, String> properties) throws IOException
+    {
+        String lock_timeout = properties.get(LOCK_TIMEOUT_PROPERTY);
+        long timeout;
+        try {
+            timeout = lock_timeout == null ? DEFAULT_LOCK_TIMEOUT_MILLIS : Long.parseLong(lock_timeout.trim());
+            if (timeout < 0) {
+                throw new NumberFormatException();
+            }
+        }
+        catch (NumberFormatException e) {
+            throw new IllegalStateException(String.format("%s must be a non-negative number, not '%s'",
+                                                          LOCK_TIMEOUT_PROPERTY, lock_timeout), e);
+        }
+        return new H2BackedSpace(storage, isAutoServer(properties), timeout);
+    }
+
+    static boolean isAutoServer(Map<String, String> properties)
+    {
+        return !"false".equals(properties.get(AUTO_SERVER_PROPERTY));
+    }
+
+    @Override
+    protected String read(Identity id, String key) throws IOException
+    {
+        return dao.read(id.toExternalForm(), key);
+    }
+
+    @Override
+    protected void write(Identity id, String key, String value) throws IOException
+    {
+        dao.write(id.toExternalForm(), key, value);
+    }
+
+    @Override
+    protected void writeMany(Map<SpaceKey, String> values) throws IOException
+    {
+        if (values.isEmpty()) {
+            return;
+        }
+        List<String> ids = Lists.newArrayListWithCapacity(values.size());
+        List<String> keys = Lists.newArrayListWithCapacity(values.size());
+        List<String> vals = Lists.newArrayListWithCapacity(values.size());
+        for (Map.Entry<SpaceKey, String> entry : values.entrySet()) {
+            ids.add(entry.getKey().getIdentity().toExternalForm());
+            keys.add(entry.getKey().getKey());
+            vals.add(entry.getValue());
+        }
+        dao.writeAll(ids, keys, vals);
+    }
+
+    @Override
+    protected Map<SpaceKey, String> readAll(Identity prefix) throws IOException
+    {
+        String parent = prefix.isRoot() ? "" : prefix.toExternalForm();
+        Map<SpaceKey, String> rs = Maps.newHashMap();
+        for (List<String> row : dao.readAll(prefix.toExternalForm(), parent + "/", parent + (char) ('/' + 1))) {
+            rs.put(SpaceKey.from(Identity.valueOf(row.get(0)), row.get(1)), row.get(2));
+        }
+        return rs;
+    }
+
+    /**
+     * As {@link SQLiteBackedSpace#readMany(Collection)}, a query per identity or per key name
+     * rather than one per value.
+     */
+    @Override
+    protected Map<SpaceKey, String> readMany(Collection<SpaceKey> keys) throws IOException
+    {
+        Multimap<String, String> by_key = LinkedHashMultimap.create();
+        Multimap<String, String> by_id = LinkedHashMultimap.create();
+        for (SpaceKey key : keys) {
+            by_key.put(key.getKey(), key.getIdentity().toExternalForm());
+            by_id.put(key.getIdentity().toExternalForm(), key.getKey());
+        }
+        boolean per_id = by_id.keySet().size() < by_key.keySet().size();
+        Multimap<String, String> groups = per_id ? by_id : by_key;
+
+        Map<SpaceKey, String> rs = Maps.newHashMap();
+        Handle h = dbi.open();
+        try {
+            for (Map.Entry<String, Collection<String>> entry : groups.asMap().entrySet()) {
+                for (List<String> chunk : Iterables.partition(entry.getValue(), MAX_IN_LIST)) {
+                    StringBuilder sql = new StringBuilder("select id, key, value from space where ")
+                        .append(per_id ? "id" : "key").append(" = ? and ")
+                        .append(per_id ? "key" : "id").append(" in (");
+                    for (int i = 0; i < chunk.size(); i++) {
+                        sql.append(i == 0 ? "?" : ", ?");
+                    }
+                    sql.append(")");
+
+                    Query<Map<String, Object>> q = h.createQuery(sql.toString()).bind(0, entry.getKey());
+                    for (int i = 0; i < chunk.size(); i++) {
+                        q.bind(i + 1, chunk.get(i));
+                    }
+                    for (List<String> row : q.map(new SQLiteBackedSpace.MyMapper()).list()) {
+                        rs.put(SpaceKey.from(Identity.valueOf(row.get(0)), row.get(1)), row.get(2));
+                    }
+                }
+            }
+        }
+        finally {
+            h.close();
+        }
+        return rs;
+    }
+
+    @Override
+    public Set<Identity> findAllIdentities()
+    {
+        return Sets.newHashSet(dao.findAllIds());
+    }
+
+    /**
+     * Only shared in auto server mode. h2 never hands out a row id twice, and a merge gives the
+     * row a new one, so this changes with every write, not only those adding or removing
+     * identities.
+     */
+    @Override
+    Object identitiesVersion()
+    {
+        return autoServer ? dao.rowsVersion() : null;
+    }
+
+    @Override
+    protected void eraseAll(Identity identity) throws IOException
+    {
+        String parent = identity.isRoot() ? "" : identity.toExternalForm();
+        dao.deleteAllWithId(identity.toExternalForm(), parent + "/", parent + (char) ('/' + 1));
+    }
+
+    @Override
+    public void delete(Identity identity, String key)
+    {
+        dao.delete(identity.toExternalForm(), key);
+    }
+
+    /**
+     * Close every connection, which closes the database once no other process has it open.
+     * The space must not be used after.
+     */
+    @Override
+    public void close()
+    {
+        pool.dispose();
+    }
+
+    public static interface Dao
+    {
+        @SqlUpdate("create table if not exists space ( id varchar not null, key varchar not null, value varchar, " +
+                   "primary key (id, key))")
+        public void create();
+
+        @SqlUpdate("merge into space (id, key, value) values (:id, :key, :value)")
+        void write(@Bind("id") String id, @Bind("key") String key, @Bind("value") String value);
+
+        @SqlBatch("merge into space (id, key, value) values (:id, :key, :value)")
+        void writeAll(@Bind("id") List<String> ids, @Bind("key") List<String> keys, @Bind("value") List<String> values);
+
+        @SqlQuery("select value from space where id = :id and key = :key")
+        String read(@Bind("id") String id, @Bind("key") String key);
+
+        @SqlQuery("select id, key, value from space where id = :id " +
+                  "union all " +
+                  "select id, key, value from space where id >= :from and id < :to")
+        @Mapper(SQLiteBackedSpace.MyMapper.class)
+        List<List<String>> readAll(@Bind("id") String id, @Bind("from") String from, @Bind("to") String to);
+
+        @SqlQuery("select count(*) || '/' || coalesce(max(_rowid_), 0) from space")
+        String rowsVersion();
+
+        @SqlQuery("select distinct id from space")
+        @Mapper(SQLiteBackedSpace.MyIdMapper.class)
+        List<Identity> findAllIds();
+
+        @SqlUpdate("delete from space where id = :id or (id >= :from and id < :to)")
+        void deleteAllWithId(@Bind("id") String id, @Bind("from") String from, @Bind("to") String to);
+
+        @SqlUpdate("delete from space where id = :id and key = :key")
+        void delete(@Bind("id") String id, @Bind("key") String key);
+    }
+}
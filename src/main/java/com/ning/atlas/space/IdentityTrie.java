@@ -0,0 +1,102 @@
+package com.ning.atlas.space;
+
+import com.google.common.base.Splitter;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.ning.atlas.spi.Identity;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Every identity with values in a space, arranged as a tree with a level per part of the
+ * identity, so a query matches one level at a time and skips whole subtrees as soon as a
+ * part fails to match. May hold identities whose values have since been deleted one by
+ * one, so matches still need to be looked up.
+ */
+class IdentityTrie
+{
+    private static final Splitter PARTS = Splitter.on('/').omitEmptyStrings();
+
+    private final Node root = new Node(Identity.root(), null, null);
+
+    synchronized void add(Identity identity)
+    {
+        Node node = root;
+        for (String part : PARTS.split(identity.toExternalForm())) {
+            Node child = node.children.get(part);
+            if (child == null) {
+                // names may have dots in them, types can't be told apart if they do
+                int dot = part.indexOf('.');
+                String type = dot < 0 ? part : part.substring(0, dot);
+                String name = dot < 0 ? "" : part.substring(dot + 1);
+                child = new Node(node.identity.createChild(type, name), type, name);
+                node.children.put(part, child);
+            }
+            node = child;
+        }
+    }
+
+    /**
+     * Remove the identity and everything under it
+     */
+    synchronized void removeAll(Identity identity)
+    {
+        if (identity.isRoot()) {
+            root.children.clear();
+            return;
+        }
+
+        Node parent = null;
+        Node node = root;
+        String last = null;
+        for (String part : PARTS.split(identity.toExternalForm())) {
+            parent = node;
+            last = part;
+            node = node.children.get(part);
+            if (node == null) {
+                return;
+            }
+        }
+        parent.children.remove(last);
+    }
+
+    /**
+     * @return identities exactly as deep as there are segments, each part matching the segment for its level
+     */
+    List<Identity> match(SpaceQuery.Segment[] segments)
+    {
+        List<Identity> rs = Lists.newArrayList();
+        match(root, segments, 0, rs);
+        return rs;
+    }
+
+    private static void match(Node node, SpaceQuery.Segment[] segments, int level, List<Identity> rs)
+    {
+        if (level == segments.length) {
+            rs.add(node.identity);
+            return;
+        }
+        SpaceQuery.Segment segment = segments[level];
+        for (Node child : node.children.values()) {
+            if (segment.matches(child.type, child.name)) {
+                match(child, segments, level + 1, rs);
+            }
+        }
+    }
+
+    private static class Node
+    {
+        private final ConcurrentMap<String, Node> children = Maps.newConcurrentMap();
+        private final Identity identity;
+        private final String   type;
+        private final String   name;
+
+        Node(Identity identity, String type, String name)
+        {
+            this.identity = identity;
+            this.type = type;
+            this.name = name;
+        }
+    }
+}
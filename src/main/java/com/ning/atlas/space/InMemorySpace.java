@@ -1,6 +1,5 @@
 package com.ning.atlas.space;
 
-import com.google.common.collect.MapMaker;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 import com.ning.atlas.spi.Identity;
@@ -9,12 +8,21 @@ import com.ning.atlas.spi.space.SpaceKey;
 import java.io.IOException;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
 
+/**
+ * Values are kept ordered by the external form of their identity, then by key, so an
+ * identity's values, or those of everything under it, are a contiguous range rather than
+ * a scan of the whole space.
+ */
 public class InMemorySpace extends BaseSpace
 {
+    // sorts before '/', so an identity's own keys come before those of its children
+    private static final char KEY_SEPARATOR = '\u0000';
 
-    private final ConcurrentMap<SpaceKey, String> values = new MapMaker().concurrencyLevel(2).makeMap();
+    private final ConcurrentSkipListMap<String, Map.Entry<SpaceKey, String>> values =
+        new ConcurrentSkipListMap<String, Map.Entry<SpaceKey, String>>();
 
     public static InMemorySpace newInstance()
     {
@@ -24,23 +32,25 @@ public class InMemorySpace extends BaseSpace
     @Override
     protected String read(Identity id, String key) throws IOException
     {
-        return values.get(SpaceKey.from(id, key));
+        Map.Entry<SpaceKey, String> entry = values.get(indexKey(id, key));
+        return entry == null ? null : entry.getValue();
     }
 
     @Override
     protected void write(Identity id, String key, String value) throws IOException
     {
-        values.put(SpaceKey.from(id, key), value);
+        values.put(indexKey(id, key), Maps.immutableEntry(SpaceKey.from(id, key), value));
     }
 
     @Override
     protected Map<SpaceKey, String> readAll(Identity prefix) throws IOException
     {
         Map<SpaceKey, String> rs = Maps.newHashMap();
-        for (Map.Entry<SpaceKey, String> entry : values.entrySet()) {
-            if (prefix.equals(entry.getKey().getIdentity()) || prefix.isParentOf(entry.getKey().getIdentity())) {
-                rs.put(entry.getKey(), entry.getValue());
-            }
+        for (Map.Entry<SpaceKey, String> entry : own(prefix).values()) {
+            rs.put(entry.getKey(), entry.getValue());
+        }
+        for (Map.Entry<SpaceKey, String> entry : descendants(prefix).values()) {
+            rs.put(entry.getKey(), entry.getValue());
         }
         return rs;
     }
@@ -49,29 +59,43 @@ public class InMemorySpace extends BaseSpace
     public Set<Identity> findAllIdentities()
     {
         Set<Identity> rs = Sets.newHashSet();
-        for (SpaceKey key : values.keySet()) {
-            rs.add(key.getIdentity());
+        for (Map.Entry<SpaceKey, String> entry : values.values()) {
+            rs.add(entry.getKey().getIdentity());
         }
         return rs;
     }
 
     @Override
-    public void deleteAll(Identity identity)
+    protected void eraseAll(Identity identity) throws IOException
     {
-        Set<SpaceKey> keys = Sets.newHashSet();
-        for (SpaceKey key : values.keySet()) {
-            if (identity.equals(key.getIdentity())) {
-                keys.add(key);
-            }
-        }
-        for (SpaceKey key : keys) {
-            values.remove(key);
-        }
+        own(identity).clear();
+        descendants(identity).clear();
     }
 
     @Override
     public void delete(Identity identity, String key)
     {
-        values.remove(SpaceKey.from(identity, key));
+        values.remove(indexKey(identity, key));
+    }
+
+    private static String indexKey(Identity id, String key)
+    {
+        return id.toExternalForm() + KEY_SEPARATOR + key;
+    }
+
+    private ConcurrentNavigableMap<String, Map.Entry<SpaceKey, String>> own(Identity id)
+    {
+        String ext = id.toExternalForm();
+        return values.subMap(ext + KEY_SEPARATOR, ext + (char) (KEY_SEPARATOR + 1));
+    }
+
+    /**
+     * Everything whose external form starts with this one's followed by a '/'
+     */
+    private ConcurrentNavigableMap<String, Map.Entry<SpaceKey, String>> descendants(Identity id)
+    {
+        // the root is "/" rather than "", yet its children don't start with "//"
+        String ext = id.isRoot() ? "" : id.toExternalForm();
+        return values.subMap(ext + '/', ext + (char) ('/' + 1));
     }
 }
@@ -0,0 +1,390 @@
+package com.ning.atlas.space;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Closeables;
+import com.google.common.io.Files;
+import com.ning.atlas.logging.Logger;
+import com.ning.atlas.spi.Identity;
+import com.ning.atlas.spi.space.SpaceKey;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Keeps every value in memory, as {@link InMemorySpace} does, and appends each change to a
+ * memory mapped log which is replayed when the space is opened again. A write is a copy into
+ * the mapping rather than a transaction, and is only forced to disk on {@link #flush()}, which
+ * deployments call at the end of each stage.
+ * <p/>
+ * Each record is its length, a crc32 of the rest, an op, then the identity, key and value.
+ * Replay stops at the first record which is cut short or does not match its crc, which is
+ * where a crash part way through an append leaves the log. Once most of the log is values
+ * since overwritten or deleted, a flush rewrites it holding only what is live.
+ * <p/>
+ * One process at a time writes the log, holding a lock on a file beside it. Another process
+ * opening it meanwhile, as <code>atlas ls</code> during a converge does, gets the space as it
+ * was then, read only, and leaves the log as it found it.
+ * <p/>
+ * The log is a single mapping, so it holds at most {@link #MAX_CAPACITY} bytes, a little under
+ * 2GB. Appending past that first rewrites the log, and fails if what is live does not fit.
+ */
+public class LogBackedSpace extends InMemorySpace
+{
+    private static final Logger log = Logger.get(LogBackedSpace.class);
+
+    private static final byte PUT        = 1;
+    private static final byte DELETE     = 2;
+    private static final byte DELETE_ALL = 3;
+
+    // length and crc
+    private static final int HEADER = 8;
+
+    // positions in a mapping are ints
+    public static final int MAX_CAPACITY = Integer.MAX_VALUE - 8;
+
+    private static final int  INITIAL_CAPACITY = 1 << 20;
+    private static final long MIN_COMPACTION   = 1 << 20;
+
+    private final File             file;
+    private final int              maxCapacity;
+    private final RandomAccessFile lockFile;
+    private final FileLock         lock;
+
+    // everything below is guarded by this
+    private RandomAccessFile raf;
+    private MappedByteBuffer buffer;
+    private long             live;
+    private boolean          compacting;
+
+    private LogBackedSpace(File file, int maxCapacity) throws IOException
+    {
+        this.file = file;
+        this.maxCapacity = maxCapacity;
+        this.lockFile = new RandomAccessFile(new File(file.getPath() + ".lock"), "rw");
+        this.lock = tryLock(lockFile.getChannel());
+        if (lock == null) {
+            log.info("%s is being written by another process, reading it as it is now", file);
+        }
+        open();
+        replay();
+    }
+
+    public static LogBackedSpace create(File storage) throws IOException
+    {
+        return new LogBackedSpace(storage, MAX_CAPACITY);
+    }
+
+    static LogBackedSpace create(File storage, int maxCapacity) throws IOException
+    {
+        return new LogBackedSpace(storage, maxCapacity);
+    }
+
+    /**
+     * @return null if another process, or another space in this one, has the log
+     */
+    private static FileLock tryLock(FileChannel channel) throws IOException
+    {
+        try {
+            return channel.tryLock();
+        }
+        catch (OverlappingFileLockException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return whether this space is the one writing the log, rather than reading it as it
+     *         was when opened
+     */
+    public boolean isWritable()
+    {
+        return lock != null;
+    }
+
+    @Override
+    protected synchronized void write(Identity id, String key, String value) throws IOException
+    {
+        put(id, key, value);
+    }
+
+    @Override
+    protected synchronized void writeMany(Map<SpaceKey, String> values) throws IOException
+    {
+        for (Map.Entry<SpaceKey, String> entry : values.entrySet()) {
+            put(entry.getKey().getIdentity(), entry.getKey().getKey(), entry.getValue());
+        }
+    }
+
+    @Override
+    public synchronized void delete(Identity identity, String key)
+    {
+        String old;
+        try {
+            old = read(identity, key);
+            append(DELETE, identity, key, null);
+        }
+        catch (IOException e) {
+            throw new IllegalStateException("unable to write to " + file, e);
+        }
+        if (old != null) {
+            live -= recordSize(identity, key, old);
+        }
+        super.delete(identity, key);
+    }
+
+    @Override
+    protected synchronized void eraseAll(Identity identity) throws IOException
+    {
+        append(DELETE_ALL, identity, "", null);
+        for (Map.Entry<SpaceKey, String> entry : readAll(identity).entrySet()) {
+            live -= recordSize(entry.getKey().getIdentity(), entry.getKey().getKey(), entry.getValue());
+        }
+        super.eraseAll(identity);
+    }
+
+    /**
+     * Force everything written so far to disk, first rewriting the log if it is mostly garbage.
+     */
+    @Override
+    public synchronized void flush()
+    {
+        if (lock == null) {
+            return;
+        }
+        try {
+            if (buffer.position() > MIN_COMPACTION && buffer.position() > 2 * live) {
+                compact();
+            }
+            buffer.force();
+        }
+        catch (IOException e) {
+            throw new IllegalStateException("unable to flush " + file, e);
+        }
+    }
+
+    /**
+     * Flush, then release the log. The space must not be used after.
+     */
+    @Override
+    public synchronized void close()
+    {
+        flush();
+        Closeables.closeQuietly(raf);
+        // closing the file releases the lock
+        Closeables.closeQuietly(lockFile);
+    }
+
+    private void put(Identity id, String key, String value) throws IOException
+    {
+        String old = read(id, key);
+        append(PUT, id, key, value);
+        if (old != null) {
+            live -= recordSize(id, key, old);
+        }
+        live += recordSize(id, key, value);
+        super.write(id, key, value);
+    }
+
+    private void append(byte op, Identity id, String key, String value) throws IOException
+    {
+        if (lock == null) {
+            throw new IOException(file + " is being written by another process, it was opened read only");
+        }
+        byte[] body = encode(op, id.toExternalForm(), key, value);
+        if (buffer.remaining() < HEADER + body.length) {
+            long needed = (long) buffer.position() + HEADER + body.length;
+            if (needed > maxCapacity && !compacting && buffer.position() > live) {
+                compact();
+                needed = (long) buffer.position() + HEADER + body.length;
+            }
+            if (needed > maxCapacity) {
+                throw new IOException(String.format("%s is full, %d live bytes and no room for %d more",
+                                                    file, live, HEADER + body.length));
+            }
+            if (buffer.remaining() < HEADER + body.length) {
+                remap(Math.min(maxCapacity, Math.max(2L * buffer.capacity(), needed)));
+            }
+        }
+        CRC32 crc = new CRC32();
+        crc.update(body);
+        buffer.putInt(body.length);
+        buffer.putInt((int) crc.getValue());
+        buffer.put(body);
+    }
+
+    private static byte[] encode(byte op, String id, String key, String value)
+    {
+        byte[] i = id.getBytes(Charsets.UTF_8);
+        byte[] k = key.getBytes(Charsets.UTF_8);
+        byte[] v = value == null ? new byte[0] : value.getBytes(Charsets.UTF_8);
+        ByteBuffer body = ByteBuffer.allocate(1 + 12 + i.length + k.length + v.length);
+        body.put(op);
+        body.putInt(i.length).put(i);
+        body.putInt(k.length).put(k);
+        // a null value is stored as such, as it is in the other spaces
+        body.putInt(value == null ? -1 : v.length).put(v);
+        return body.array();
+    }
+
+    private static String string(ByteBuffer body)
+    {
+        int length = body.getInt();
+        if (length < 0) {
+            return null;
+        }
+        String s = new String(body.array(), body.position(), length, Charsets.UTF_8);
+        body.position(body.position() + length);
+        return s;
+    }
+
+    // near enough, only used to tell when the log is mostly garbage
+    private static long recordSize(Identity id, String key, String value)
+    {
+        return HEADER + 13 + id.toExternalForm().length() + key.length() + (value == null ? 0 : value.length());
+    }
+
+    private void open() throws IOException
+    {
+        if (lock == null) {
+            raf = new RandomAccessFile(file, "r");
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, Math.min(raf.length(), MAX_CAPACITY));
+            return;
+        }
+        raf = new RandomAccessFile(file, "rw");
+        long length = Math.max(raf.length(), Math.min(INITIAL_CAPACITY, maxCapacity));
+        raf.setLength(length);
+        buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+    }
+
+    private void remap(long capacity) throws IOException
+    {
+        int position = buffer.position();
+        buffer.force();
+        raf.setLength(capacity);
+        buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        buffer.position(position);
+    }
+
+    private void replay() throws IOException
+    {
+        int records = 0;
+        while (buffer.remaining() >= HEADER) {
+            int start = buffer.position();
+            int length = buffer.getInt();
+            int crc = buffer.getInt();
+            if (length <= 0 || length > buffer.remaining()) {
+                buffer.position(start);
+                break;
+            }
+            byte[] bytes = new byte[length];
+            buffer.get(bytes);
+            CRC32 check = new CRC32();
+            check.update(bytes);
+            if ((int) check.getValue() != crc) {
+                buffer.position(start);
+                break;
+            }
+
+            ByteBuffer body = ByteBuffer.wrap(bytes);
+            byte op = body.get();
+            Identity id = Identity.valueOf(string(body));
+            String key = string(body);
+            String value = string(body);
+            switch (op) {
+                case PUT:
+                    String old = read(id, key);
+                    if (old != null) {
+                        live -= recordSize(id, key, old);
+                    }
+                    live += recordSize(id, key, value);
+                    super.write(id, key, value);
+                    break;
+                case DELETE:
+                    String gone = read(id, key);
+                    if (gone != null) {
+                        live -= recordSize(id, key, gone);
+                    }
+                    super.delete(id, key);
+                    break;
+                case DELETE_ALL:
+                    for (Map.Entry<SpaceKey, String> entry : readAll(id).entrySet()) {
+                        live -= recordSize(entry.getKey().getIdentity(), entry.getKey().getKey(), entry.getValue());
+                    }
+                    super.eraseAll(id);
+                    break;
+                default:
+                    throw new IOException("unknown op " + op + " at " + start + " in " + file);
+            }
+            records++;
+        }
+
+        if (lock == null) {
+            // the rest may be a record the writer is part way through
+            log.debug("read %d records from %s", records, file);
+            return;
+        }
+
+        // anything after the last good record is from an append cut short, clear it so it is
+        // not mistaken for records once appends carry on over it
+        int end = buffer.position();
+        boolean torn = false;
+        while (buffer.hasRemaining()) {
+            if (buffer.get() != 0) {
+                torn = true;
+                buffer.put(buffer.position() - 1, (byte) 0);
+            }
+        }
+        buffer.position(end);
+        if (torn) {
+            log.warn("discarded a partly written record at %d in %s", end, file);
+        }
+        log.debug("replayed %d records from %s", records, file);
+    }
+
+    /**
+     * Write what is live to a new log and swap it in for the old one
+     */
+    private void compact() throws IOException
+    {
+        File next = new File(file.getPath() + ".compact");
+        next.delete();
+
+        RandomAccessFile old_raf = raf;
+        MappedByteBuffer old_buffer = buffer;
+
+        raf = new RandomAccessFile(next, "rw");
+        long capacity = Math.min(maxCapacity, Math.max(INITIAL_CAPACITY, 2 * live));
+        raf.setLength(capacity);
+        buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        compacting = true;
+        try {
+            for (Map.Entry<SpaceKey, String> entry : readAll(Identity.root()).entrySet()) {
+                append(PUT, entry.getKey().getIdentity(), entry.getKey().getKey(), entry.getValue());
+            }
+        }
+        catch (IOException e) {
+            // carry on with the old log
+            Closeables.closeQuietly(raf);
+            next.delete();
+            raf = old_raf;
+            buffer = old_buffer;
+            throw e;
+        }
+        finally {
+            compacting = false;
+        }
+        buffer.force();
+
+        log.debug("compacted %s from %d bytes to %d", file, old_buffer.position(), buffer.position());
+        Closeables.closeQuietly(old_raf);
+        Files.move(next, file);
+    }
+}
@@ -1,18 +1,45 @@
 package com.ning.atlas.space;
 
-import com.google.common.base.Predicate;
-import com.google.common.base.Predicates;
 import com.google.common.base.Splitter;
+import com.google.common.base.Throwables;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
 import com.google.common.collect.Lists;
-import org.apache.commons.lang3.tuple.Pair;
+import com.google.common.util.concurrent.UncheckedExecutionException;
 
-import javax.annotation.Nullable;
 import java.util.Iterator;
 import java.util.List;
 import java.util.regex.Pattern;
 
 public class QueryParser
 {
+    // templates ask the same few questions of every host
+    private static final LoadingCache<String, SpaceQuery> plans =
+        CacheBuilder.newBuilder()
+                    .maximumSize(512)
+                    .build(new CacheLoader<String, SpaceQuery>()
+                    {
+                        @Override
+                        public SpaceQuery load(String expression) throws Exception
+                        {
+                            return new QueryParser().parse(expression);
+                        }
+                    });
+
+    /**
+     * Parse the expression, or hand back the query already parsed from it
+     */
+    public static SpaceQuery compile(String expression)
+    {
+        try {
+            return plans.getUnchecked(expression);
+        }
+        catch (UncheckedExecutionException e) {
+            throw Throwables.propagate(e.getCause());
+        }
+    }
+
     public SpaceQuery parse(String expression)
     {
         Iterator<String> blah = Splitter.on(':').split(expression).iterator();
@@ -22,68 +49,36 @@ public class QueryParser
         Iterator<String> parts = Splitter.on('/').split(id_query).iterator();
         parts.next(); // skip root
 
-        final List<Predicate<Pair<String, String>>> tests = Lists.newArrayList();
+        List<SpaceQuery.Segment> segments = Lists.newArrayList();
 
         while (parts.hasNext()) {
             String part = parts.next();
             if ("*".equals(part)) {
                 // match anything
-                tests.add(Predicates.<Pair<String, String>>alwaysTrue());
+                segments.add(new SpaceQuery.Segment(null, null, null, null));
             }
             else {
                 Iterator<String> s = Splitter.on('.').split(part).iterator();
                 String type = s.next();
-
-                final Predicate<String> type_test;
-                if ("*".equals(type)) {
-                    // any type
-                    type_test = Predicates.alwaysTrue();
-                }
-                else if (isRegexPattern(type)) {
-                    type_test = regex(type);
-                }
-                else {
-                    type_test = Predicates.equalTo(type);
-                }
-
                 String name = s.next();
-                final Predicate<String> name_test;
-                if ("*".equals(name)) {
-                    name_test = Predicates.alwaysTrue();
-                }
-                else if (isRegexPattern(name)) {
-                    name_test = regex(name);
-                }
-                else {
-                    name_test = Predicates.equalTo(name);
-                }
-                tests.add(new Predicate<Pair<String, String>>()
-                {
-                    @Override
-                    public boolean apply(Pair<String, String> input)
-                    {
-                        return type_test.apply(input.getKey()) && name_test.apply(input.getValue());
-                    }
-                });
+                segments.add(new SpaceQuery.Segment(literal(type), pattern(type), literal(name), pattern(name)));
             }
         }
 
-        return new SpaceQuery(tests, key);
+        return new SpaceQuery(segments.toArray(new SpaceQuery.Segment[segments.size()]), key);
     }
 
-    private boolean isRegexPattern(String s) {
-        return s.startsWith("<") && s.endsWith(">");
+    private static String literal(String s)
+    {
+        return "*".equals(s) || isRegexPattern(s) ? null : s;
     }
 
-    private Predicate<String> regex(String s) {
-        final Pattern p = Pattern.compile(s.substring(1, s.length() -1));
-        return new Predicate<String>()
-        {
-            @Override
-            public boolean apply(@Nullable String input)
-            {
-                return p.matcher(input).matches();
-            }
-        };
+    private static Pattern pattern(String s)
+    {
+        return isRegexPattern(s) ? Pattern.compile(s.substring(1, s.length() - 1)) : null;
+    }
+
+    private static boolean isRegexPattern(String s) {
+        return s.startsWith("<") && s.endsWith(">");
     }
 }
@@ -1,29 +1,79 @@
 package com.ning.atlas.space;
 
+import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.LinkedHashMultimap;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Multimap;
 import com.google.common.collect.Sets;
 import com.google.common.io.Files;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.ning.atlas.logging.Logger;
 import com.ning.atlas.spi.Identity;
 import com.ning.atlas.spi.space.Space;
 import com.ning.atlas.spi.space.SpaceKey;
 import org.skife.jdbi.v2.DBI;
+import org.skife.jdbi.v2.DefaultStatementBuilder;
+import org.skife.jdbi.v2.Handle;
+import org.skife.jdbi.v2.Query;
 import org.skife.jdbi.v2.StatementContext;
 import org.skife.jdbi.v2.sqlobject.Bind;
+import org.skife.jdbi.v2.sqlobject.SqlBatch;
 import org.skife.jdbi.v2.sqlobject.SqlQuery;
 import org.skife.jdbi.v2.sqlobject.SqlUpdate;
 import org.skife.jdbi.v2.sqlobject.customizers.Mapper;
+import org.skife.jdbi.v2.sqlobject.mixins.GetHandle;
 import org.skife.jdbi.v2.tweak.ResultSetMapper;
+import org.skife.jdbi.v2.tweak.StatementBuilder;
+import org.skife.jdbi.v2.util.StringMapper;
 
 import java.io.File;
 import java.io.IOException;
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
+/**
+ * Space stored in a sqlite database. By default each write is its own autocommitted
+ * statement. {@link #createWriteBehind(File, int, long, TimeUnit)} instead queues writes
+ * and commits them in a single transaction per batch, once the batch is big enough or has
+ * waited long enough, and on {@link #flush()} or {@link #close()}. Queued writes are visible
+ * to reads on this space before they are committed. Those not yet committed when the jvm
+ * exits are committed by a shutdown hook, but a crash loses them, so write behind is only
+ * for callers which can afford that.
+ * <p/>
+ * {@link #create(File, Map)} configures the space from atlas.conf properties:
+ * <pre>
+ *   atlas.space.journal-mode=wal         # wal or delete, left as the file has it if unset
+ *   atlas.space.synchronous=normal       # sqlite synchronous, sqlite's default (full) if unset
+ *   atlas.space.readers=4                # connections kept open for reads, 0 opens one per call
+ *   atlas.space.write-behind=false       # queue and batch writes, off by default
+ *   atlas.space.batch-size=256
+ *   atlas.space.max-delay-millis=100
+ * </pre>
+ * With readers, writes go through one more connection held open for writing, until
+ * {@link #close()}, and every held connection keeps its most recently used prepared
+ * statements. In wal mode reads on those connections carry on while a batch is being
+ * committed rather than waiting for it.
+ */
 public class SQLiteBackedSpace extends BaseSpace
 {
     private static final Logger log = Logger.get(SQLiteBackedSpace.class);
@@ -37,96 +87,754 @@ public class SQLiteBackedSpace extends BaseSpace
         }
     }
 
-    private final Dao dao;
+    public static final String JOURNAL_MODE_PROPERTY = "atlas.space.journal-mode";
+    public static final String SYNCHRONOUS_PROPERTY  = "atlas.space.synchronous";
+    public static final String READERS_PROPERTY      = "atlas.space.readers";
+    public static final String WRITE_BEHIND_PROPERTY = "atlas.space.write-behind";
+    public static final String BATCH_SIZE_PROPERTY   = "atlas.space.batch-size";
+    public static final String MAX_DELAY_PROPERTY    = "atlas.space.max-delay-millis";
 
-    private SQLiteBackedSpace(File dbFile) throws IOException
+    // well under sqlite's limit of 999 parameters to a statement
+    private static final int MAX_IN_LIST = 500;
+
+    // prepared statements kept per held connection, the fixed ones plus in lists of a few sizes
+    private static final int STATEMENTS_PER_CONNECTION = 32;
+
+    public static final int  DEFAULT_BATCH_SIZE       = 256;
+    public static final long DEFAULT_MAX_DELAY_MILLIS = 100;
+
+    // the two modes which stick to the database file rather than a connection
+    private static final Set<String> JOURNAL_MODES = ImmutableSet.of("delete", "wal");
+    private static final Set<String> SYNCHRONOUS   = ImmutableSet.of("off", "normal", "full");
+
+    private final DBI dbi;
+
+    // does every write, and every read when there are no readers
+    private final Dao    writer;
+    private final Object writing = new Object();
+
+    // connections held open for reads, null to open one per read
+    private final BlockingQueue<Dao> readers;
+
+    // write behind state, flusher is null when writing through
+    private final int                      batchSize;
+    private final long                     maxDelay;
+    private final TimeUnit                 maxDelayUnit;
+    private final ScheduledExecutorService flusher;
+    private final Thread                   flushOnExit;
+    private final Object                   flushing = new Object();
+    private final Object                   lock     = new Object();
+
+    // guarded by lock
+    private Map<SpaceKey, String> pending   = Maps.newLinkedHashMap();
+    private Map<SpaceKey, String> inFlight  = Collections.emptyMap();
+    private boolean               scheduled = false;
+    private long                  commits   = 0;
+
+    private SQLiteBackedSpace(File dbFile,
+                              String journalMode,
+                              Properties pragmas,
+                              int readers,
+                              int batchSize,
+                              long maxDelay,
+                              TimeUnit maxDelayUnit) throws IOException
     {
         Files.createParentDirs(dbFile);
-        log.debug("storing data in %s", dbFile.getAbsolutePath());
+        log.debug("storing data in %s with %s and %d readers", dbFile.getAbsolutePath(), pragmas, readers);
 
         String url = "jdbc:sqlite:" + dbFile.getAbsolutePath();
-        DBI dbi = new DBI(url);
-        this.dao = dbi.onDemand(Dao.class);
+        // the driver applies the pragmas to each connection it opens
+        this.dbi = new DBI(url, pragmas);
+        if (journalMode != null) {
+            // journal_mode returns a row, which the driver won't take as a connection property
+            Handle h = dbi.open();
+            try {
+                String mode = h.createQuery("pragma journal_mode=" + journalMode).map(StringMapper.FIRST).first();
+                log.debug("journal mode for %s is %s", dbFile.getAbsolutePath(), mode);
+            }
+            finally {
+                h.close();
+            }
+        }
+        if (readers > 0) {
+            this.writer = holdOpen(dbi);
+            this.readers = new ArrayBlockingQueue<Dao>(readers);
+            for (int i = 0; i < readers; i++) {
+                this.readers.add(holdOpen(dbi));
+            }
+        }
+        else {
+            this.writer = dbi.onDemand(Dao.class);
+            this.readers = null;
+        }
 
-        dao.create();
+        writer.create();
+        writer.createIdentitiesVersion();
+        writer.startIdentitiesVersion();
+        writer.createIdentityAdded();
+        writer.createIdentityRemoved();
+
+        this.batchSize = batchSize;
+        this.maxDelay = maxDelay;
+        this.maxDelayUnit = maxDelayUnit;
+        if (batchSize > 0) {
+            this.flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                                                                          .setDaemon(true)
+                                                                          .setNameFormat("space-flusher-%d")
+                                                                          .build());
+            this.flushOnExit = new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    flush();
+                }
+            }, "space-flush-on-exit");
+            Runtime.getRuntime().addShutdownHook(flushOnExit);
+        }
+        else {
+            this.flusher = null;
+            this.flushOnExit = null;
+        }
+    }
+
+    private static Dao holdOpen(DBI dbi)
+    {
+        Handle h = dbi.open();
+        h.setStatementBuilder(new CachingStatements(STATEMENTS_PER_CONNECTION));
+        return h.attach(Dao.class);
     }
 
     public static Space create(File storage) throws IOException
     {
-        return new SQLiteBackedSpace(storage);
+        return new SQLiteBackedSpace(storage, null, new Properties(), 0, 0, 0, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Create a space configured by <code>atlas.space.*</code> properties, see above.
+     */
+    public static SQLiteBackedSpace create(File storage, Map<String, String> properties) throws IOException
+    {
+        String journal = properties.get(JOURNAL_MODE_PROPERTY);
+        if (journal != null) {
+            journal = oneOf(JOURNAL_MODE_PROPERTY, journal, JOURNAL_MODES);
+        }
+        Properties pragmas = new Properties();
+        String synchronous = properties.get(SYNCHRONOUS_PROPERTY);
+        if (synchronous != null) {
+            pragmas.setProperty("synchronous", oneOf(SYNCHRONOUS_PROPERTY, synchronous, SYNCHRONOUS));
+        }
+
+        int readers = (int) number(properties, READERS_PROPERTY, 0);
+        boolean write_behind = "true".equals(properties.get(WRITE_BEHIND_PROPERTY));
+        int batch_size = write_behind ? (int) number(properties, BATCH_SIZE_PROPERTY, DEFAULT_BATCH_SIZE) : 0;
+        long max_delay = number(properties, MAX_DELAY_PROPERTY, DEFAULT_MAX_DELAY_MILLIS);
+
+        Preconditions.checkState(!write_behind || batch_size > 0, "%s must be positive", BATCH_SIZE_PROPERTY);
+        return new SQLiteBackedSpace(storage, journal, pragmas, readers, batch_size, max_delay, TimeUnit.MILLISECONDS);
+    }
+
+    private static String oneOf(String property, String value, Set<String> allowed)
+    {
+        String v = value.trim().toLowerCase();
+        if (!allowed.contains(v)) {
+            throw new IllegalStateException(String.format("%s must be one of %s, not '%s'",
+                                                          property, allowed, value));
+        }
+        return v.toUpperCase();
+    }
+
+    private static long number(Map<String, String> properties, String property, long otherwise)
+    {
+        String value = properties.get(property);
+        try {
+            long n = value == null ? otherwise : Long.parseLong(value.trim());
+            if (n < 0) {
+                throw new NumberFormatException();
+            }
+            return n;
+        }
+        catch (NumberFormatException e) {
+            throw new IllegalStateException(String.format("%s must be a non-negative number, not '%s'",
+                                                          property, value), e);
+        }
+    }
+
+    public static SQLiteBackedSpace createWriteBehind(File storage) throws IOException
+    {
+        return createWriteBehind(storage, DEFAULT_BATCH_SIZE, DEFAULT_MAX_DELAY_MILLIS, TimeUnit.MILLISECONDS);
     }
 
+    /**
+     * Queue writes, committing them in one transaction when batchSize have queued up or the
+     * oldest has waited maxDelay, whichever comes first.
+     */
+    public static SQLiteBackedSpace createWriteBehind(File storage,
+                                                      int batchSize,
+                                                      long maxDelay,
+                                                      TimeUnit unit) throws IOException
+    {
+        Preconditions.checkArgument(batchSize > 0, "batch size must be positive");
+        return new SQLiteBackedSpace(storage, null, new Properties(), 0, batchSize, maxDelay, unit);
+    }
 
     @Override
     protected String read(Identity id, String key) throws IOException
     {
-        return dao.read(id.toExternalForm(), key);
+        if (flusher != null) {
+            SpaceKey sk = SpaceKey.from(id, key);
+            synchronized (lock) {
+                if (pending.containsKey(sk)) {
+                    return pending.get(sk);
+                }
+                if (inFlight.containsKey(sk)) {
+                    return inFlight.get(sk);
+                }
+            }
+        }
+        Dao reader = leaseReader();
+        try {
+            return reader.read(id.toExternalForm(), key);
+        }
+        finally {
+            releaseReader(reader);
+        }
     }
 
     @Override
     protected void write(Identity id, String key, String value) throws IOException
     {
-        dao.write(id.toExternalForm(), key, value);
+        if (flusher == null) {
+            synchronized (writing) {
+                writer.write(id.toExternalForm(), key, value);
+            }
+            return;
+        }
+        enqueue(Collections.singletonMap(SpaceKey.from(id, key), value));
+    }
+
+    /**
+     * One batch, in one transaction, rather than a statement per value
+     */
+    @Override
+    protected void writeMany(Map<SpaceKey, String> values) throws IOException
+    {
+        if (values.isEmpty()) {
+            return;
+        }
+        if (flusher == null) {
+            commit(values);
+            return;
+        }
+        enqueue(values);
+    }
+
+    private void enqueue(Map<SpaceKey, String> values)
+    {
+        boolean full;
+        synchronized (lock) {
+            pending.putAll(values);
+            full = pending.size() >= batchSize;
+            if (!full && !scheduled) {
+                scheduled = true;
+                flusher.schedule(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        try {
+                            flush();
+                        }
+                        catch (RuntimeException e) {
+                            log.warn(e, "unable to flush queued writes to sqlite");
+                        }
+                    }
+                }, maxDelay, maxDelayUnit);
+            }
+        }
+        if (full) {
+            // the writer which fills the batch pays for committing it, which keeps the queue bounded
+            flush();
+        }
+    }
+
+    private void commit(Map<SpaceKey, String> batch)
+    {
+        List<String> ids = Lists.newArrayListWithCapacity(batch.size());
+        List<String> keys = Lists.newArrayListWithCapacity(batch.size());
+        List<String> values = Lists.newArrayListWithCapacity(batch.size());
+        for (Map.Entry<SpaceKey, String> entry : batch.entrySet()) {
+            ids.add(entry.getKey().getIdentity().toExternalForm());
+            keys.add(entry.getKey().getKey());
+            values.add(entry.getValue());
+        }
+        synchronized (writing) {
+            writer.writeAll(ids, keys, values);
+        }
+    }
+
+    /**
+     * Commit every queued write in a single transaction, returning once they are durable.
+     */
+    @Override
+    public void flush()
+    {
+        if (flusher == null) {
+            return;
+        }
+        synchronized (flushing) {
+            Map<SpaceKey, String> batch;
+            synchronized (lock) {
+                scheduled = false;
+                if (pending.isEmpty()) {
+                    return;
+                }
+                batch = pending;
+                inFlight = batch;
+                pending = Maps.newLinkedHashMap();
+            }
+
+            try {
+                commit(batch);
+            }
+            catch (RuntimeException e) {
+                // put them back under anything written since, so they are retried on the next flush
+                synchronized (lock) {
+                    batch.putAll(pending);
+                    pending = batch;
+                    inFlight = Collections.emptyMap();
+                }
+                throw e;
+            }
+            synchronized (lock) {
+                inFlight = Collections.emptyMap();
+                commits++;
+            }
+        }
+    }
+
+    /**
+     * Commit whatever is queued, stop the thread which commits on a timer, and close the handles
+     * held open for the writer and readers. The space must not be used after.
+     */
+    @Override
+    public void close()
+    {
+        if (flusher != null) {
+            flusher.shutdown();
+            flush();
+            try {
+                Runtime.getRuntime().removeShutdownHook(flushOnExit);
+            }
+            catch (IllegalStateException e) {
+                // already shutting down, the hook runs anyway
+            }
+        }
+        if (readers != null) {
+            writer.getHandle().close();
+            for (Dao reader : readers) {
+                reader.getHandle().close();
+            }
+        }
     }
 
     @Override
     protected Map<SpaceKey, String> readAll(Identity prefix) throws IOException
     {
-        List<List<String>> pairs = dao.readAll(prefix.toExternalForm(), prefix.toExternalForm() + "/%");
+        long seen = commitsSoFar();
+        List<List<String>> pairs = readAllFromTable(prefix);
+        Map<SpaceKey, String> queued = queuedIfNoCommitSince(seen);
+        if (queued == null) {
+            synchronized (flushing) {
+                pairs = readAllFromTable(prefix);
+                queued = queued();
+            }
+        }
+
         Map<SpaceKey, String> rs = Maps.newHashMap();
         for (List<String> pair : pairs) {
             Identity id = Identity.valueOf(pair.get(0));
             SpaceKey key = SpaceKey.from(id, pair.get(1));
             rs.put(key, pair.get(2));
         }
+        for (Map.Entry<SpaceKey, String> entry : queued.entrySet()) {
+            Identity id = entry.getKey().getIdentity();
+            if (prefix.isRoot() || prefix.equals(id) || prefix.isParentOf(id)) {
+                rs.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return rs;
+    }
+
+    private List<List<String>> readAllFromTable(Identity prefix)
+    {
+        Dao reader = leaseReader();
+        try {
+            return reader.readAll(prefix.toExternalForm(), childrenFrom(prefix), childrenTo(prefix));
+        }
+        finally {
+            releaseReader(reader);
+        }
+    }
+
+    /**
+     * Children of an identity are the ids in [childrenFrom, childrenTo), a range the primary
+     * key index on (id, key) answers directly, where a like pattern would scan the table.
+     */
+    private static String childrenFrom(Identity id)
+    {
+        return parentForm(id) + "/";
+    }
+
+    private static String childrenTo(Identity id)
+    {
+        return parentForm(id) + (char) ('/' + 1);
+    }
+
+    // the root is "/" rather than "", yet its children don't start with "//"
+    private static String parentForm(Identity id)
+    {
+        return id.isRoot() ? "" : id.toExternalForm();
+    }
+
+    private Dao leaseReader()
+    {
+        if (readers == null) {
+            return writer;
+        }
+        try {
+            return readers.take();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted waiting for a connection to read from", e);
+        }
+    }
+
+    private void releaseReader(Dao reader)
+    {
+        if (readers != null) {
+            readers.add(reader);
+        }
+    }
+
+    /**
+     * One query per identity, or per key name when there are fewer of those, each covering up
+     * to {@link #MAX_IN_LIST} keys or identities, rather than one per identity and key.
+     */
+    @Override
+    protected Map<SpaceKey, String> readMany(Collection<SpaceKey> keys) throws IOException
+    {
+        long seen = commitsSoFar();
+        Map<SpaceKey, String> rs = readManyFromTable(keys);
+        Map<SpaceKey, String> queued = queuedIfNoCommitSince(seen);
+        if (queued == null) {
+            synchronized (flushing) {
+                rs = readManyFromTable(keys);
+                queued = queued();
+            }
+        }
+
+        for (SpaceKey key : keys) {
+            if (queued.containsKey(key)) {
+                rs.put(key, queued.get(key));
+            }
+        }
+        return rs;
+    }
+
+    private Map<SpaceKey, String> readManyFromTable(Collection<SpaceKey> keys)
+    {
+        Multimap<String, String> by_key = LinkedHashMultimap.create();
+        Multimap<String, String> by_id = LinkedHashMultimap.create();
+        for (SpaceKey key : keys) {
+            by_key.put(key.getKey(), key.getIdentity().toExternalForm());
+            by_id.put(key.getIdentity().toExternalForm(), key.getKey());
+        }
+        // a bean's properties are one identity and many keys, a query's matches the reverse
+        boolean per_id = by_id.keySet().size() < by_key.keySet().size();
+        Multimap<String, String> groups = per_id ? by_id : by_key;
+
+        Map<SpaceKey, String> rs = Maps.newHashMap();
+        for (Map.Entry<String, Collection<String>> entry : groups.asMap().entrySet()) {
+            for (List<String> chunk : Iterables.partition(entry.getValue(), MAX_IN_LIST)) {
+                List<List<String>> rows = per_id
+                                          ? selectIn("id", entry.getKey(), "key", chunk)
+                                          : selectIn("key", entry.getKey(), "id", chunk);
+                for (List<String> row : rows) {
+                    rs.put(SpaceKey.from(Identity.valueOf(row.get(0)), row.get(1)), row.get(2));
+                }
+            }
+        }
         return rs;
     }
 
+    private List<List<String>> selectIn(String column, String value, String inColumn, List<String> in)
+    {
+        StringBuilder sql = new StringBuilder("select id, key, value from space where ")
+            .append(column).append(" = ? and ").append(inColumn).append(" in (");
+        for (int i = 0; i < in.size(); i++) {
+            sql.append(i == 0 ? "?" : ", ?");
+        }
+        sql.append(")");
+
+        Dao reader = leaseReader();
+        // connections opened per call don't outlive it, so borrow one just for this
+        Handle h = readers == null ? dbi.open() : reader.getHandle();
+        try {
+            Query<Map<String, Object>> q = h.createQuery(sql.toString()).bind(0, value);
+            for (int i = 0; i < in.size(); i++) {
+                q.bind(i + 1, in.get(i));
+            }
+            return q.map(new MyMapper()).list();
+        }
+        finally {
+            if (readers == null) {
+                h.close();
+            }
+            releaseReader(reader);
+        }
+    }
+
+    private Map<SpaceKey, String> queued()
+    {
+        if (flusher == null) {
+            return Collections.emptyMap();
+        }
+        synchronized (lock) {
+            Map<SpaceKey, String> rs = Maps.newHashMap(inFlight);
+            rs.putAll(pending);
+            return rs;
+        }
+    }
+
+    private long commitsSoFar()
+    {
+        if (flusher == null) {
+            return 0;
+        }
+        synchronized (lock) {
+            return commits;
+        }
+    }
+
+    /**
+     * The writes queued now, to lay over what was just read from the table, as long as no batch
+     * was committed since the read began. Anything queued is newer than what is in the table
+     * then, where a batch committed during the read may have put newer values in the table
+     * than a copy of the queue taken before it, and one taken after may miss values which
+     * reached the table too late for the read.
+     *
+     * @return null if a batch was committed, and the read should be done again while holding
+     *         off commits
+     */
+    private Map<SpaceKey, String> queuedIfNoCommitSince(long seen)
+    {
+        if (flusher == null) {
+            return Collections.emptyMap();
+        }
+        synchronized (lock) {
+            if (commits != seen) {
+                return null;
+            }
+            Map<SpaceKey, String> rs = Maps.newHashMap(inFlight);
+            rs.putAll(pending);
+            return rs;
+        }
+    }
 
     @Override
     public Set<Identity> findAllIdentities()
     {
-        return Sets.newHashSet(dao.findAllIds());
+        long seen = commitsSoFar();
+        Set<Identity> rs = findAllIdsInTable();
+        Map<SpaceKey, String> queued = queuedIfNoCommitSince(seen);
+        if (queued == null) {
+            synchronized (flushing) {
+                rs = findAllIdsInTable();
+                queued = queued();
+            }
+        }
+        for (SpaceKey key : queued.keySet()) {
+            rs.add(key.getIdentity());
+        }
+        return rs;
+    }
+
+    /**
+     * Counted by triggers, as any process may write the file
+     */
+    @Override
+    Object identitiesVersion()
+    {
+        Dao reader = leaseReader();
+        try {
+            return reader.identitiesVersion();
+        }
+        finally {
+            releaseReader(reader);
+        }
+    }
+
+    private Set<Identity> findAllIdsInTable()
+    {
+        Dao reader = leaseReader();
+        try {
+            return Sets.newHashSet(reader.findAllIds());
+        }
+        finally {
+            releaseReader(reader);
+        }
     }
 
     @Override
-    public void deleteAll(Identity identity)
+    protected void eraseAll(Identity identity) throws IOException
     {
-        dao.deleteAllWithId(identity.toExternalForm(), identity.toExternalForm() + "/%");
+        // commit queued writes first so none of them land after, and resurrect, what is deleted
+        flush();
+        synchronized (writing) {
+            writer.deleteAllWithId(identity.toExternalForm(), childrenFrom(identity), childrenTo(identity));
+        }
     }
 
     @Override
     public void delete(Identity identity, String key)
     {
-        dao.delete(identity.toExternalForm(), key);
+        flush();
+        synchronized (writing) {
+            writer.delete(identity.toExternalForm(), key);
+        }
     }
 
-    public static interface Dao
+    public static interface Dao extends GetHandle
     {
         @SqlUpdate("create table if not exists space ( id varchar, key varchar, value varchar, primary key (id, key))")
         public void create();
 
+        @SqlUpdate("create table if not exists space_version ( identities integer not null )")
+        void createIdentitiesVersion();
+
+        @SqlUpdate("insert into space_version (identities) select 0 where not exists (select 1 from space_version)")
+        void startIdentitiesVersion();
+
+        // before the insert, as a replace has the identity already
+        @SqlUpdate("create trigger if not exists space_identity_added before insert on space " +
+                   "when not exists (select 1 from space where id = new.id) " +
+                   "begin update space_version set identities = identities + 1; end")
+        void createIdentityAdded();
+
+        @SqlUpdate("create trigger if not exists space_identity_removed after delete on space " +
+                   "when not exists (select 1 from space where id = old.id) " +
+                   "begin update space_version set identities = identities + 1; end")
+        void createIdentityRemoved();
+
+        @SqlQuery("select identities from space_version")
+        long identitiesVersion();
+
         @SqlUpdate("insert or replace into space (id, key, value) values (:id, :key, :value)")
         void write(@Bind("id") String id, @Bind("key") String key, @Bind("value") String value);
 
+        @SqlBatch("insert or replace into space (id, key, value) values (:id, :key, :value)")
+        void writeAll(@Bind("id") List<String> ids, @Bind("key") List<String> keys, @Bind("value") List<String> values);
+
         @SqlQuery("select value from space where id = :id and key = :key")
         String read(@Bind("id") String id, @Bind("key") String key);
 
-        @SqlQuery("select id, key, value from space where (id = :id) or (id like :id_pattern)")
+        @SqlQuery("select id, key, value from space where id = :id " +
+                  "union all " +
+                  "select id, key, value from space where id >= :from and id < :to")
         @Mapper(MyMapper.class)
-        List<List<String>> readAll(@Bind("id") String id, @Bind("id_pattern") String idPattern);
+        List<List<String>> readAll(@Bind("id") String id, @Bind("from") String from, @Bind("to") String to);
 
         @SqlQuery("select distinct id from space")
         @Mapper(MyIdMapper.class)
         List<Identity> findAllIds();
 
-        @SqlUpdate("delete from space where id = :id or id like :id_pattern")
-        void deleteAllWithId(@Bind("id") String id, @Bind("id_pattern") String pattern);
+        @SqlUpdate("delete from space where id = :id or (id >= :from and id < :to)")
+        void deleteAllWithId(@Bind("id") String id, @Bind("from") String from, @Bind("to") String to);
 
         @SqlUpdate("delete from space where id = :id and key = :key")
         void delete(@Bind("id") String id, @Bind("key") String key);
     }
 
+    /**
+     * Keeps the statements a held connection prepares, so each read or write after the first
+     * only binds and runs its statement. A connection is used by one thread at a time, the
+     * writer under its lock and a reader while leased, so the statements are never shared.
+     * Jdbi's own caching builder is deprecated, and keeps every statement until the connection
+     * closes, where the in lists here vary in size.
+     */
+    private static class CachingStatements implements StatementBuilder
+    {
+        private final StatementBuilder               builder = new DefaultStatementBuilder();
+        private final Map<String, PreparedStatement> statements;
+
+        CachingStatements(final int size)
+        {
+            this.statements = new LinkedHashMap<String, PreparedStatement>(size, 0.75f, true)
+            {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest)
+                {
+                    if (size() <= size) {
+                        return false;
+                    }
+                    closeQuietly(eldest.getValue());
+                    return true;
+                }
+            };
+        }
+
+        @Override
+        public PreparedStatement create(Connection conn, String sql, StatementContext ctx) throws SQLException
+        {
+            PreparedStatement stmt = statements.get(sql);
+            if (stmt != null) {
+                stmt.clearParameters();
+                return stmt;
+            }
+            stmt = builder.create(conn, sql, ctx);
+            statements.put(sql, stmt);
+            return stmt;
+        }
+
+        @Override
+        public void close(Connection conn, String sql, Statement stmt) throws SQLException
+        {
+            // kept for the next use, closing its result set already let go of the rows. Jdbi
+            // passes the sql as written here, not as rewritten for create(), so look for the
+            // statement itself.
+            if (!statements.containsValue(stmt)) {
+                builder.close(conn, sql, stmt);
+            }
+        }
+
+        @Override
+        public void close(Connection conn)
+        {
+            for (PreparedStatement stmt : statements.values()) {
+                closeQuietly(stmt);
+            }
+            statements.clear();
+        }
+
+        @Override
+        public CallableStatement createCall(Connection conn, String sql, StatementContext ctx) throws SQLException
+        {
+            return builder.createCall(conn, sql, ctx);
+        }
+
+        private static void closeQuietly(Statement stmt)
+        {
+            try {
+                stmt.close();
+            }
+            catch (SQLException e) {
+                log.warn(e, "unable to close prepared statement");
+            }
+        }
+    }
+
     public static class MyIdMapper implements ResultSetMapper<Identity>
     {
 
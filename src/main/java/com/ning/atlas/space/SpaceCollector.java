@@ -0,0 +1,276 @@
+package com.ning.atlas.space;
+
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.ning.atlas.logging.Logger;
+import com.ning.atlas.spi.Identity;
+import com.ning.atlas.spi.space.Core;
+import com.ning.atlas.spi.space.Space;
+import com.ning.atlas.spi.space.SpaceKey;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Mark and sweep for a space. Every identity written during a deployment, or read and found
+ * to hold a value, is marked, as is every host in the system map, and at the end of the deployment identities which were
+ * not are candidates for removal. An identity is kept when it, something above it, or
+ * something below it was marked, so a live host keeps its children and its system keeps its
+ * own values. A candidate is only removed once it has gone unmarked for several deployments
+ * in a row. Both a dry run and a sweep keep those counts in the space, under
+ * <code>/atlas.core/gc.unmarked</code>, so nothing is written unless one is asked for.
+ * Collection is set up in the environment, as worker pool limits are:
+ * <pre>
+ *   set "atlas.space.gc" => "sweep",            # off (the default), dry-run (only reports) or sweep
+ *       "atlas.space.gc.retain" => 3,           # deployments an identity may go unmarked
+ *       "atlas.space.gc.keep" => "/atlas.core"  # identities never removed, with what is below them
+ * </pre>
+ */
+public class SpaceCollector
+{
+    private static final Logger log = Logger.get(SpaceCollector.class);
+
+    public static final String MODE_PROPERTY   = "atlas.space.gc";
+    public static final String RETAIN_PROPERTY = "atlas.space.gc.retain";
+    public static final String KEEP_PROPERTY   = "atlas.space.gc.keep";
+
+    public static final int DEFAULT_RETAIN = 3;
+
+    // how many deployments in a row each candidate has gone unmarked, by external form
+    static final Identity UNMARKED = Core.ID.createChild("gc", "unmarked");
+
+    public static enum Mode
+    {
+        Off, DryRun, Sweep
+    }
+
+    private static final Map<String, Mode> MODES = ImmutableMap.of("off", Mode.Off,
+                                                                   "dry-run", Mode.DryRun,
+                                                                   "sweep", Mode.Sweep);
+
+    private final Space          space;
+    private final Mode           mode;
+    private final int            retain;
+    private final List<Identity> keep;
+
+    SpaceCollector(Space space, Mode mode, int retain, List<Identity> keep)
+    {
+        this.space = space;
+        this.mode = mode;
+        this.retain = retain;
+        this.keep = keep;
+    }
+
+    /**
+     * Collect the space as the <code>atlas.space.gc.*</code> properties say, see above. Only a
+     * {@link BaseSpace} can be marked, any other space is never collected.
+     */
+    public static SpaceCollector create(Space space, Map<String, String> properties)
+    {
+        String mode_name = properties.get(MODE_PROPERTY);
+        Mode mode = mode_name == null ? Mode.Off : MODES.get(mode_name.trim().toLowerCase());
+        if (mode == null) {
+            throw new IllegalStateException(String.format("%s must be one of %s, not '%s'",
+                                                          MODE_PROPERTY, MODES.keySet(), mode_name));
+        }
+
+        String retain_value = properties.get(RETAIN_PROPERTY);
+        int retain;
+        try {
+            retain = retain_value == null ? DEFAULT_RETAIN : Integer.parseInt(retain_value.trim());
+            if (retain < 1) {
+                throw new NumberFormatException();
+            }
+        }
+        catch (NumberFormatException e) {
+            throw new IllegalStateException(String.format("%s must be a positive number, not '%s'",
+                                                          RETAIN_PROPERTY, retain_value), e);
+        }
+
+        ImmutableList.Builder<Identity> keep = ImmutableList.builder();
+        String keep_value = properties.get(KEEP_PROPERTY);
+        if (keep_value == null) {
+            keep.add(Core.ID);
+        }
+        else {
+            for (String id : Splitter.on(',').trimResults().omitEmptyStrings().split(keep_value)) {
+                keep.add(Identity.valueOf(id));
+            }
+        }
+        // where the counts live, else a dry run could have them collected out from under it
+        keep.add(UNMARKED);
+
+        if (mode != Mode.Off && !(space instanceof BaseSpace)) {
+            log.debug("not collecting %s, it cannot be marked", space);
+            mode = Mode.Off;
+        }
+        return new SpaceCollector(space, mode, retain, keep.build());
+    }
+
+    /**
+     * Start marking, at the start of a deployment
+     */
+    public void start()
+    {
+        if (mode != Mode.Off) {
+            ((BaseSpace) space).startMarking();
+        }
+    }
+
+    /**
+     * Stop marking and collect what was not marked, or in a dry run report what would be.
+     *
+     * @param live identities to count as marked, such as every host in the system map
+     */
+    public Report finish(Collection<Identity> live)
+    {
+        if (mode == Mode.Off) {
+            return new Report(false, Collections.<Identity>emptySet(), 0);
+        }
+
+        Set<Identity> marked = Sets.newHashSet(((BaseSpace) space).stopMarking());
+        marked.addAll(live);
+
+        // everything marked and everything above it
+        Set<String> kept = Sets.newHashSet();
+        for (Identity id : marked) {
+            for (String ext = id.toExternalForm(); ext.length() > 0; ext = parent(ext)) {
+                if (!kept.add(ext)) {
+                    break;
+                }
+            }
+        }
+        Set<String> below = Sets.newHashSet();
+        for (Identity id : marked) {
+            below.add(id.toExternalForm());
+        }
+        for (Identity id : keep) {
+            kept.add(id.toExternalForm());
+            below.add(id.toExternalForm());
+        }
+
+        Map<String, Integer> counts = Maps.newHashMap();
+        for (Map.Entry<SpaceKey, String> entry : space.getAllFor(UNMARKED).entrySet()) {
+            if (entry.getKey().getIdentity().equals(UNMARKED)) {
+                counts.put(entry.getKey().getKey(), Integer.valueOf(entry.getValue()));
+            }
+        }
+
+        Map<SpaceKey, String> still_unmarked = Maps.newHashMap();
+        Set<Identity> collectable = Sets.newTreeSet(new Comparator<Identity>()
+        {
+            @Override
+            public int compare(Identity a, Identity b)
+            {
+                return a.toExternalForm().compareTo(b.toExternalForm());
+            }
+        });
+        for (Identity id : space.findAllIdentities()) {
+            String ext = id.toExternalForm();
+            if (id.isRoot() || kept.contains(ext) || isBelow(ext, below)) {
+                continue;
+            }
+            Integer previous = counts.remove(ext);
+            int unmarked = (previous == null ? 0 : previous) + 1;
+            if (unmarked >= retain) {
+                collectable.add(id);
+            }
+            if (unmarked < retain || mode == Mode.DryRun) {
+                still_unmarked.put(SpaceKey.from(UNMARKED, ext), String.valueOf(unmarked));
+            }
+        }
+
+        // whatever is left was marked this time, or has gone
+        for (String ext : counts.keySet()) {
+            space.delete(UNMARKED, ext);
+        }
+        space.storeAll(still_unmarked);
+
+        int keys = 0;
+        for (Identity id : collectable) {
+            for (SpaceKey key : space.getAllFor(id).keySet()) {
+                // only its own values, those of anything below it are up to their own counts
+                if (key.getIdentity().equals(id)) {
+                    keys++;
+                    if (mode == Mode.Sweep) {
+                        space.delete(id, key.getKey());
+                    }
+                }
+            }
+            if (mode == Mode.Sweep) {
+                space.delete(UNMARKED, id.toExternalForm());
+            }
+        }
+        space.flush();
+
+        Report report = new Report(mode == Mode.DryRun, collectable, keys);
+        log.info("%s", report);
+        return report;
+    }
+
+    private static String parent(String ext)
+    {
+        int slash = ext.lastIndexOf('/');
+        return slash <= 0 ? "" : ext.substring(0, slash);
+    }
+
+    private static boolean isBelow(String ext, Set<String> ancestors)
+    {
+        for (String p = parent(ext); p.length() > 0; p = parent(p)) {
+            if (ancestors.contains(p)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public static class Report
+    {
+        private final boolean       dryRun;
+        private final Set<Identity> collected;
+        private final int           keys;
+
+        Report(boolean dryRun, Set<Identity> collected, int keys)
+        {
+            this.dryRun = dryRun;
+            this.collected = ImmutableSet.copyOf(collected);
+            this.keys = keys;
+        }
+
+        public boolean isDryRun()
+        {
+            return dryRun;
+        }
+
+        /**
+         * @return identities whose values were removed, or would have been in a dry run
+         */
+        public Set<Identity> getCollected()
+        {
+            return collected;
+        }
+
+        /**
+         * @return how many values were removed, or would have been
+         */
+        public int getKeys()
+        {
+            return keys;
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format("space gc %s %d values from %d identities: %s",
+                                 dryRun ? "would remove" : "removed", keys, collected.size(), collected);
+        }
+    }
+}
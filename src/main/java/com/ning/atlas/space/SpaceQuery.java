@@ -1,47 +1,56 @@
 package com.ning.atlas.space;
 
 import com.google.common.base.Predicate;
-import com.google.common.base.Splitter;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
 import com.ning.atlas.spi.Identity;
 import com.ning.atlas.spi.Maybe;
 import com.ning.atlas.spi.space.Space;
+import com.ning.atlas.spi.space.SpaceKey;
 import org.apache.commons.lang3.tuple.Pair;
 
-import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.regex.Pattern;
 
+/**
+ * A parsed query, safe to share between threads and to run any number of times. Values come
+ * back in no particular order: spaces with an identity index yield them in the order the
+ * index is walked, others in the order of {@link Space#findAllIdentities()}.
+ */
 public class SpaceQuery
 {
-    private final List<Predicate<Pair<String, String>>> tests;
-    private final String key;
+    private final Segment[] segments;
+    private final String    key;
 
+    SpaceQuery(Segment[] segments, String key)
+    {
+        this.segments = segments;
+        this.key = key;
+    }
+
+    /**
+     * A query testing each level of an identity, as (type, name), with its own predicate,
+     * rather than one parsed by {@link QueryParser}
+     */
     public SpaceQuery(List<Predicate<Pair<String, String>>> tests, String key)
     {
-        this.tests = tests;
+        this.segments = new Segment[tests.size()];
+        for (int i = 0; i < segments.length; i++) {
+            segments[i] = new Segment(tests.get(i));
+        }
         this.key = key;
     }
 
     public Set<String> query(Space space) {
+        if (space instanceof BaseSpace) {
+            return query((BaseSpace) space);
+        }
+
         Set<String> rs = Sets.newLinkedHashSet();
-        OUTER:
         for (Identity identity : space.findAllIdentities()) {
-            Iterator<String> parts = Splitter.on('/').split(identity.toExternalForm()).iterator();
-            parts.next(); // skip root
-            Iterator<Predicate<Pair<String, String>>> test_itty = tests.iterator();
-
-            while (parts.hasNext() && test_itty.hasNext()) {
-                String part_together = parts.next();
-                Predicate<Pair<String, String>> test = test_itty.next();
-                Iterator<String> pitty = Splitter.on('.').split(part_together).iterator();
-                Pair<String, String> part = Pair.of(pitty.next(), pitty.next());
-                if (!test.apply(part)) {
-                    continue OUTER;
-                }
-            }
-
-            if (!parts.hasNext() && !test_itty.hasNext()) {
+            if (matches(identity.toExternalForm())) {
                 Maybe<String> maybe = space.get(identity, key);
                 if (maybe.isKnown()) {
                     rs.add(maybe.getValue());
@@ -50,4 +59,100 @@ public class SpaceQuery
         }
         return rs;
     }
+
+    /**
+     * Walks the space's identity index instead of every identity, then fetches the key for
+     * all the matches at once.
+     */
+    private Set<String> query(BaseSpace space)
+    {
+        List<SpaceKey> keys = Lists.newArrayList();
+        for (Identity identity : space.identities().match(segments)) {
+            keys.add(SpaceKey.from(identity, key));
+        }
+
+        Map<SpaceKey, String> values = space.getAll(keys);
+
+        Set<String> rs = Sets.newLinkedHashSet();
+        for (SpaceKey k : keys) {
+            String value = values.get(k);
+            if (value != null) {
+                rs.add(value);
+            }
+        }
+        return rs;
+    }
+
+    private boolean matches(String external_form)
+    {
+        // "/type.name/type.name", the leading '/' is the root
+        int start = 1;
+        for (Segment segment : segments) {
+            if (start >= external_form.length()) {
+                return false;
+            }
+            int end = external_form.indexOf('/', start);
+            if (end < 0) {
+                end = external_form.length();
+            }
+            int dot = external_form.indexOf('.', start);
+            if (dot < 0 || dot > end) {
+                dot = end;
+            }
+            if (!segment.matches(external_form.substring(start, dot),
+                                 dot == end ? "" : external_form.substring(dot + 1, end))) {
+                return false;
+            }
+            start = end + 1;
+        }
+        return start >= external_form.length();
+    }
+
+    /**
+     * The test for one level of an identity. A null pattern and literal together match anything.
+     */
+    static final class Segment
+    {
+        private final String  type;
+        private final Pattern typePattern;
+        private final String  name;
+        private final Pattern namePattern;
+
+        // only for queries built from predicates
+        private final Predicate<Pair<String, String>> test;
+
+        Segment(String type, Pattern typePattern, String name, Pattern namePattern)
+        {
+            this.type = type;
+            this.typePattern = typePattern;
+            this.name = name;
+            this.namePattern = namePattern;
+            this.test = null;
+        }
+
+        Segment(Predicate<Pair<String, String>> test)
+        {
+            this.type = null;
+            this.typePattern = null;
+            this.name = null;
+            this.namePattern = null;
+            this.test = test;
+        }
+
+        boolean matches(String type, String name)
+        {
+            if (test != null) {
+                return test.apply(Pair.of(type, name));
+            }
+            return matches(this.type, this.typePattern, type) && matches(this.name, this.namePattern, name);
+        }
+
+        private static boolean matches(String literal, Pattern pattern, String value)
+        {
+            if (literal != null) {
+                return literal.equals(value);
+            }
+            return pattern == null || pattern.matcher(value).matches();
+        }
+    }
 }
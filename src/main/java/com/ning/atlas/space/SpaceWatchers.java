@@ -0,0 +1,129 @@
+package com.ning.atlas.space;
+
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ListMultimap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.ning.atlas.spi.Identity;
+import com.ning.atlas.spi.space.SpaceKey;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Futures waiting on the next value stored for a key, or for anything at or below an
+ * identity, as {@link com.ning.atlas.ActualScratch} does for scratch values.
+ */
+final class SpaceWatchers
+{
+    private final Object lock = new Object();
+
+    // guarded by lock
+    private final ListMultimap<SpaceKey, SettableFuture<String>> keys     = ArrayListMultimap.create();
+    private final ListMultimap<String, SettableFuture<SpaceKey>> prefixes = ArrayListMultimap.create();
+
+    // nearly always false, so stores need not take the lock
+    private volatile boolean watching;
+
+    ListenableFuture<String> watch(final SpaceKey key)
+    {
+        final SettableFuture<String> watcher = SettableFuture.create();
+        synchronized (lock) {
+            keys.put(key, watcher);
+            watching = true;
+        }
+        watcher.addListener(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                // a watcher given up on, say after a timeout, is no longer of any interest
+                if (watcher.isCancelled()) {
+                    synchronized (lock) {
+                        keys.remove(key, watcher);
+                        watching = !keys.isEmpty() || !prefixes.isEmpty();
+                    }
+                }
+            }
+        }, MoreExecutors.sameThreadExecutor());
+        return watcher;
+    }
+
+    ListenableFuture<SpaceKey> watchPrefix(Identity prefix)
+    {
+        final String ext = prefix.toExternalForm();
+        final SettableFuture<SpaceKey> watcher = SettableFuture.create();
+        synchronized (lock) {
+            prefixes.put(ext, watcher);
+            watching = true;
+        }
+        watcher.addListener(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                if (watcher.isCancelled()) {
+                    synchronized (lock) {
+                        prefixes.remove(ext, watcher);
+                        watching = !keys.isEmpty() || !prefixes.isEmpty();
+                    }
+                }
+            }
+        }, MoreExecutors.sameThreadExecutor());
+        return watcher;
+    }
+
+    /**
+     * Satisfy whatever was watching the values just stored
+     */
+    void stored(Map<SpaceKey, String> values)
+    {
+        if (!watching) {
+            return;
+        }
+
+        List<Map.Entry<SettableFuture<String>, String>> to_set = Lists.newArrayList();
+        List<Map.Entry<SettableFuture<SpaceKey>, SpaceKey>> to_set_prefix = Lists.newArrayList();
+        synchronized (lock) {
+            for (Map.Entry<SpaceKey, String> entry : values.entrySet()) {
+                for (SettableFuture<String> watcher : keys.removeAll(entry.getKey())) {
+                    to_set.add(Maps.immutableEntry(watcher, entry.getValue()));
+                }
+                if (!prefixes.isEmpty()) {
+                    for (String ext : ancestry(entry.getKey().getIdentity())) {
+                        for (SettableFuture<SpaceKey> watcher : prefixes.removeAll(ext)) {
+                            to_set_prefix.add(Maps.immutableEntry(watcher, entry.getKey()));
+                        }
+                    }
+                }
+            }
+            watching = !keys.isEmpty() || !prefixes.isEmpty();
+        }
+
+        // outside the lock, listeners run on this thread and may well watch again
+        for (Map.Entry<SettableFuture<String>, String> entry : to_set) {
+            entry.getKey().set(entry.getValue());
+        }
+        for (Map.Entry<SettableFuture<SpaceKey>, SpaceKey> entry : to_set_prefix) {
+            entry.getKey().set(entry.getValue());
+        }
+    }
+
+    /**
+     * The identity and everything above it, root included
+     */
+    private static List<String> ancestry(Identity id)
+    {
+        List<String> rs = Lists.newArrayList();
+        String ext = id.toExternalForm();
+        while (ext.length() > 1) {
+            rs.add(ext);
+            ext = ext.substring(0, ext.lastIndexOf('/'));
+        }
+        rs.add("/");
+        return rs;
+    }
+}
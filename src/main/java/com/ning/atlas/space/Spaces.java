@@ -0,0 +1,61 @@
+package com.ning.atlas.space;
+
+import com.google.common.collect.ImmutableSet;
+import com.ning.atlas.spi.space.Space;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Opens the space for an environment, stored in its directory under <code>.atlas</code>, as
+ * atlas.conf says to:
+ * <pre>
+ *   atlas.space.backend=sqlite           # sqlite (the default), h2 or log
+ * </pre>
+ * Each backend takes its own <code>atlas.space.*</code> properties as well, the space is
+ * cached as {@link CachingSpace} says, and its history kept as {@link VersionedSpace} says.
+ * A cache does not see writes made by another process, so an h2 space shared with others is
+ * only cached when a cache size is given explicitly.
+ */
+public class Spaces
+{
+    public static final String BACKEND_PROPERTY = "atlas.space.backend";
+
+    private static final Set<String> BACKENDS = ImmutableSet.of("sqlite", "h2", "log");
+
+    private Spaces()
+    {
+    }
+
+    public static Space forEnvironment(File envDir, Map<String, String> properties) throws IOException
+    {
+        // outermost, so copying the value a write replaces is a read from the cache
+        return VersionedSpace.create(open(envDir, properties), properties);
+    }
+
+    private static Space open(File envDir, Map<String, String> properties) throws IOException
+    {
+        String value = properties.get(BACKEND_PROPERTY);
+        String backend = value == null ? "sqlite" : value.trim().toLowerCase();
+        if (!BACKENDS.contains(backend)) {
+            throw new IllegalStateException(String.format("%s must be one of %s, not '%s'",
+                                                          BACKEND_PROPERTY, BACKENDS, value));
+        }
+
+        if ("h2".equals(backend)) {
+            Space space = H2BackedSpace.create(new File(envDir, "space"), properties);
+            if (H2BackedSpace.isAutoServer(properties)
+                && !properties.containsKey(CachingSpace.CACHE_SIZE_PROPERTY)) {
+                return space;
+            }
+            return CachingSpace.create(space, properties);
+        }
+        else if ("log".equals(backend)) {
+            // already entirely in memory
+            return LogBackedSpace.create(new File(envDir, "space.log"));
+        }
+        return CachingSpace.create(SQLiteBackedSpace.create(new File(envDir, "space.db"), properties), properties);
+    }
+}
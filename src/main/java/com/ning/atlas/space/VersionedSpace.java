@@ -0,0 +1,453 @@
+package com.ning.atlas.space;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.ning.atlas.logging.Logger;
+import com.ning.atlas.spi.Identity;
+import com.ning.atlas.spi.space.Core;
+import com.ning.atlas.spi.space.Space;
+import com.ning.atlas.spi.space.SpaceKey;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Keeps what another space held at the end of each of the last several generations, so it can
+ * be read as it was then, see {@link #asOf(long)}. Deployments seal a generation with
+ * {@link #snapshot()} at the end of each stage, and with {@link #deployed()} once done.
+ * <p/>
+ * A snapshot is copy on write. The first time a key is changed in a generation, the value it
+ * had before is copied to that generation's undo log, kept in the wrapped space under
+ * <code>/atlas.core/space.history</code>, so a generation costs one value for each key changed
+ * in it rather than a copy of the space. Reading as of generation N starts from the current
+ * value and takes the oldest undo entry after N, if there is one. The history does not show
+ * up in reads of, or deletes from, the rest of the space.
+ * <p/>
+ * Copying costs a read and a write of the wrapped space for the first change to each key in a
+ * generation, and writers take turns at it, so history is only kept when asked for.
+ * <pre>
+ *   atlas.space.history=0                # generations kept, 0 (the default) keeps no history
+ * </pre>
+ */
+public class VersionedSpace extends BaseSpace
+{
+    private static final Logger log = Logger.get(VersionedSpace.class);
+
+    public static final String HISTORY_PROPERTY = "atlas.space.history";
+    public static final int    DEFAULT_HISTORY  = 0;
+
+    static final Identity HISTORY = Core.ID.createChild("space", "history");
+
+    private static final String GENERATION = "generation";
+    private static final String OLDEST     = "oldest";
+    private static final String DEPLOYED   = "deployed";
+
+    // undo entries, the value before or that there was none
+    private static final String ABSENT = "-";
+    private static final String VALUE  = "=";
+
+    private final Space delegate;
+    private final int   retain;
+
+    // writes hold the read lock so they never straddle a snapshot, which holds the write lock
+    private final ReadWriteLock sealing = new ReentrantReadWriteLock();
+
+    // the open generation, and the oldest whose undo log is kept
+    private volatile long generation;
+    private volatile long oldest;
+
+    // guarded by copying, keys changed in the open generation, already in its undo log
+    private final Object        copying = new Object();
+    private final Set<SpaceKey> copied  = Sets.newHashSet();
+
+    private VersionedSpace(Space delegate, int retain)
+    {
+        this.delegate = delegate;
+        this.retain = retain;
+        this.generation = Long.parseLong(delegate.get(HISTORY, GENERATION).otherwise("0"));
+        this.oldest = Long.parseLong(delegate.get(HISTORY, OLDEST).otherwise("0"));
+    }
+
+    public static VersionedSpace create(Space delegate, int retain)
+    {
+        return new VersionedSpace(delegate, retain);
+    }
+
+    /**
+     * Wrap the space as <code>atlas.space.history</code> says to, which may be not at all.
+     */
+    public static Space create(Space delegate, Map<String, String> properties)
+    {
+        String value = properties.get(HISTORY_PROPERTY);
+        int retain;
+        try {
+            retain = value == null ? DEFAULT_HISTORY : Integer.parseInt(value.trim());
+            if (retain < 0) {
+                throw new NumberFormatException();
+            }
+        }
+        catch (NumberFormatException e) {
+            throw new IllegalStateException(String.format("%s must be a non-negative number, not '%s'",
+                                                          HISTORY_PROPERTY, value), e);
+        }
+        return retain > 0 ? new VersionedSpace(delegate, retain) : delegate;
+    }
+
+    /**
+     * @return the generation now being written
+     */
+    public long getGeneration()
+    {
+        return generation;
+    }
+
+    /**
+     * Seal the open generation, so it can be read as it is now, and start the next one. Undo
+     * logs for generations beyond those kept are dropped.
+     *
+     * @return the generation sealed
+     */
+    public long snapshot()
+    {
+        sealing.writeLock().lock();
+        try {
+            long sealed = generation;
+            generation = sealed + 1;
+            synchronized (copying) {
+                copied.clear();
+            }
+
+            Map<SpaceKey, String> state = Maps.newHashMap();
+            state.put(SpaceKey.from(HISTORY, GENERATION), String.valueOf(generation));
+            if (generation - oldest >= retain) {
+                for (; generation - oldest >= retain; oldest++) {
+                    delegate.deleteAll(generationId(oldest));
+                }
+                state.put(SpaceKey.from(HISTORY, OLDEST), String.valueOf(oldest));
+            }
+            delegate.storeAll(state);
+            log.debug("sealed space generation %d", sealed);
+            return sealed;
+        }
+        finally {
+            sealing.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Seal the open generation as what a deployment left behind, see {@link #getLastDeployed()}
+     */
+    public long deployed()
+    {
+        long sealed = snapshot();
+        delegate.store(HISTORY, DEPLOYED, String.valueOf(sealed));
+        return sealed;
+    }
+
+    /**
+     * @return the generation sealed at the end of the last deployment, -1 if there has not been one
+     */
+    public long getLastDeployed()
+    {
+        return Long.parseLong(delegate.get(HISTORY, DEPLOYED).otherwise("-1"));
+    }
+
+    /**
+     * The space as it was when the generation was sealed, or as it is now for the open
+     * generation. The view is read only, and good until the generation is no longer kept.
+     */
+    public Space asOf(long generation)
+    {
+        long open = this.generation;
+        long earliest = Math.max(0, oldest - 1);
+        if (generation < earliest || generation > open) {
+            throw new IllegalArgumentException(String.format("generation %d is not kept, only %d through %d",
+                                                             generation, earliest, open));
+        }
+        return new Snapshot(generation);
+    }
+
+    @Override
+    protected String read(Identity id, String key) throws IOException
+    {
+        return delegate.get(id, key).otherwise((String) null);
+    }
+
+    @Override
+    protected Map<SpaceKey, String> readMany(Collection<SpaceKey> keys) throws IOException
+    {
+        return delegate.getAll(keys);
+    }
+
+    @Override
+    protected void write(Identity id, String key, String value) throws IOException
+    {
+        sealing.readLock().lock();
+        try {
+            copy(Collections.singleton(SpaceKey.from(id, key)));
+            delegate.store(id, key, value);
+        }
+        finally {
+            sealing.readLock().unlock();
+        }
+    }
+
+    @Override
+    protected void writeMany(Map<SpaceKey, String> values) throws IOException
+    {
+        sealing.readLock().lock();
+        try {
+            copy(values.keySet());
+            delegate.storeAll(values);
+        }
+        finally {
+            sealing.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void delete(Identity identity, String key)
+    {
+        sealing.readLock().lock();
+        try {
+            copy(Collections.singleton(SpaceKey.from(identity, key)));
+            delegate.delete(identity, key);
+        }
+        finally {
+            sealing.readLock().unlock();
+        }
+    }
+
+    @Override
+    protected void eraseAll(Identity prefix) throws IOException
+    {
+        sealing.readLock().lock();
+        try {
+            Map<SpaceKey, String> doomed = readAll(prefix);
+            copy(doomed.keySet());
+            if (prefix.isRoot() || prefix.equals(HISTORY) || prefix.isParentOf(HISTORY)) {
+                // one at a time, to leave the history be
+                for (SpaceKey key : doomed.keySet()) {
+                    delegate.delete(key.getIdentity(), key.getKey());
+                }
+            }
+            else {
+                delegate.deleteAll(prefix);
+            }
+        }
+        finally {
+            sealing.readLock().unlock();
+        }
+    }
+
+    @Override
+    protected Map<SpaceKey, String> readAll(Identity prefix) throws IOException
+    {
+        Map<SpaceKey, String> rs = Maps.newHashMap(delegate.getAllFor(prefix));
+        if (!isHistory(prefix)) {
+            Iterator<SpaceKey> keys = rs.keySet().iterator();
+            while (keys.hasNext()) {
+                if (isHistory(keys.next().getIdentity())) {
+                    keys.remove();
+                }
+            }
+        }
+        return rs;
+    }
+
+    @Override
+    public Set<Identity> findAllIdentities()
+    {
+        Set<Identity> rs = Sets.newHashSet();
+        for (Identity id : delegate.findAllIdentities()) {
+            if (!isHistory(id)) {
+                rs.add(id);
+            }
+        }
+        return rs;
+    }
+
+    @Override
+    public void flush()
+    {
+        delegate.flush();
+    }
+
+    @Override
+    Object identitiesVersion()
+    {
+        return delegate instanceof BaseSpace ? ((BaseSpace) delegate).identitiesVersion() : null;
+    }
+
+    @Override
+    public void close()
+    {
+        delegate.close();
+    }
+
+    /**
+     * Put what the keys hold now in the open generation's undo log, unless it has them already.
+     * Keys are only remembered as copied since this space was opened, so the log itself is
+     * checked too, else reopening mid generation would overwrite the values a key had before
+     * it with those it was changed to.
+     */
+    private void copy(Collection<SpaceKey> keys)
+    {
+        synchronized (copying) {
+            Map<SpaceKey, SpaceKey> fresh = Maps.newHashMap();
+            for (SpaceKey key : keys) {
+                if (!copied.contains(key) && !isHistory(key.getIdentity())) {
+                    fresh.put(key, SpaceKey.from(undoId(generation, key.getIdentity()), key.getKey()));
+                }
+            }
+            if (fresh.isEmpty()) {
+                return;
+            }
+
+            // the values and any undo entries they have already, in one read
+            List<SpaceKey> wanted = Lists.newArrayListWithCapacity(fresh.size() * 2);
+            wanted.addAll(fresh.keySet());
+            wanted.addAll(fresh.values());
+            Map<SpaceKey, String> before = delegate.getAll(wanted);
+
+            Map<SpaceKey, String> undo = Maps.newHashMap();
+            for (Map.Entry<SpaceKey, SpaceKey> entry : fresh.entrySet()) {
+                if (!before.containsKey(entry.getValue())) {
+                    String value = before.get(entry.getKey());
+                    undo.put(entry.getValue(), value == null ? ABSENT : VALUE + value);
+                }
+            }
+            if (!undo.isEmpty()) {
+                delegate.storeAll(undo);
+            }
+            copied.addAll(fresh.keySet());
+        }
+    }
+
+    private static boolean isHistory(Identity id)
+    {
+        return id.equals(HISTORY) || HISTORY.isParentOf(id);
+    }
+
+    private static Identity generationId(long generation)
+    {
+        return HISTORY.createChild("generation", String.valueOf(generation));
+    }
+
+    private static Identity undoId(long generation, Identity id)
+    {
+        return Identity.valueOf(generationId(generation).toExternalForm() + (id.isRoot() ? "" : id.toExternalForm()));
+    }
+
+    private static Identity fromUndo(long generation, Identity undo)
+    {
+        return Identity.valueOf(undo.toExternalForm().substring(generationId(generation).toExternalForm().length()));
+    }
+
+    /**
+     * Reads the current values then undoes every generation after the one it shows. The
+     * current values come first, as a write copies the value it replaces to the undo log before
+     * making it, so whatever a read sees of the one it sees of the other too.
+     */
+    private class Snapshot extends BaseSpace
+    {
+        private final long asOf;
+
+        Snapshot(long asOf)
+        {
+            this.asOf = asOf;
+        }
+
+        @Override
+        protected String read(Identity id, String key) throws IOException
+        {
+            return readMany(Collections.singleton(SpaceKey.from(id, key))).get(SpaceKey.from(id, key));
+        }
+
+        @Override
+        protected Map<SpaceKey, String> readMany(Collection<SpaceKey> keys) throws IOException
+        {
+            Map<SpaceKey, String> rs = Maps.newHashMap(delegate.getAll(keys));
+            Set<SpaceKey> remaining = Sets.newLinkedHashSet(keys);
+            long open = generation;
+            for (long g = asOf + 1; g <= open && !remaining.isEmpty(); g++) {
+                Map<SpaceKey, SpaceKey> undo_keys = Maps.newHashMap();
+                for (SpaceKey key : remaining) {
+                    undo_keys.put(SpaceKey.from(undoId(g, key.getIdentity()), key.getKey()), key);
+                }
+                for (Map.Entry<SpaceKey, String> entry : delegate.getAll(undo_keys.keySet()).entrySet()) {
+                    SpaceKey key = undo_keys.get(entry.getKey());
+                    remaining.remove(key);
+                    undo(rs, key, entry.getValue());
+                }
+            }
+            return rs;
+        }
+
+        @Override
+        protected Map<SpaceKey, String> readAll(Identity prefix) throws IOException
+        {
+            Map<SpaceKey, String> rs = VersionedSpace.this.readAll(prefix);
+            // newest first, so the oldest undo of a key is the one left standing
+            for (long g = generation; g > asOf; g--) {
+                for (Map.Entry<SpaceKey, String> entry : delegate.getAllFor(undoId(g, prefix)).entrySet()) {
+                    Identity id = fromUndo(g, entry.getKey().getIdentity());
+                    undo(rs, SpaceKey.from(id, entry.getKey().getKey()), entry.getValue());
+                }
+            }
+            return rs;
+        }
+
+        private void undo(Map<SpaceKey, String> values, SpaceKey key, String undo)
+        {
+            if (undo.startsWith(VALUE)) {
+                values.put(key, undo.substring(VALUE.length()));
+            }
+            else {
+                values.remove(key);
+            }
+        }
+
+        @Override
+        public Set<Identity> findAllIdentities()
+        {
+            Set<Identity> rs = Sets.newHashSet();
+            for (SpaceKey key : getAllFor(Identity.root()).keySet()) {
+                rs.add(key.getIdentity());
+            }
+            return rs;
+        }
+
+        @Override
+        protected void write(Identity id, String key, String value) throws IOException
+        {
+            throw new UnsupportedOperationException("generation " + asOf + " is read only");
+        }
+
+        @Override
+        protected void writeMany(Map<SpaceKey, String> values) throws IOException
+        {
+            throw new UnsupportedOperationException("generation " + asOf + " is read only");
+        }
+
+        @Override
+        protected void eraseAll(Identity prefix) throws IOException
+        {
+            throw new UnsupportedOperationException("generation " + asOf + " is read only");
+        }
+
+        @Override
+        public void delete(Identity identity, String key)
+        {
+            throw new UnsupportedOperationException("generation " + asOf + " is read only");
+        }
+    }
+}
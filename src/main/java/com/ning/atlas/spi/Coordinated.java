@@ -0,0 +1,40 @@
+package com.ning.atlas.spi;
+
+import com.ning.atlas.Host;
+
+import java.util.Collection;
+
+/**
+ * Implemented by a {@link Component} whose step on a host has to be ordered against steps on
+ * other hosts. A converge otherwise runs each host's steps one after another, as soon as the
+ * host's previous step is done, whatever other hosts are doing.
+ * <p/>
+ * Steps are ordered by name. A step waiting for a name begins once every step producing it
+ * has succeeded, and is skipped if one of them fails. A step which puts a scratch value
+ * produces the value's key.
+ */
+public interface Coordinated
+{
+    /**
+     * There once every host has been provisioned, or has failed to be, for steps which render
+     * what is known of every host
+     */
+    String EVERY_HOST = "@every-host";
+
+    /**
+     * @return names the step for the uri makes available to other steps once it succeeds
+     */
+    Collection<String> produces(Host host, Uri<? extends Component> uri);
+
+    /**
+     * @return names the step for the uri waits for, a name no step produces being there already
+     */
+    Collection<String> waitsFor(Host host, Uri<? extends Component> uri);
+
+    /**
+     * @return scratch keys the step for the uri waits to be put. A key fails the step if a step
+     *         producing it fails, or if nothing puts it within
+     *         <code>atlas.converge.scratch-timeout</code> seconds of the converge starting.
+     */
+    Collection<String> waitsForScratch(Host host, Uri<? extends Component> uri);
+}
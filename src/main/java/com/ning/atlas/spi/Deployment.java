@@ -1,7 +1,9 @@
 package com.ning.atlas.spi;
 
 import com.ning.atlas.Environment;
+import com.ning.atlas.SSHConnections;
 import com.ning.atlas.SystemMap;
+import com.ning.atlas.WorkerPools;
 import com.ning.atlas.spi.bus.NotificationBus;
 import com.ning.atlas.spi.space.Space;
 
@@ -12,4 +14,6 @@ public interface Deployment
     public Scratch getScratch();
     public Environment getEnvironment();
     public NotificationBus getEventBus();
+    public WorkerPools getWorkerPools();
+    public SSHConnections getSSHConnections();
 }
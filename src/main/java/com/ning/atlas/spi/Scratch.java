@@ -1,8 +1,15 @@
 package com.ning.atlas.spi;
 
+import com.google.common.util.concurrent.ListenableFuture;
+
 public interface Scratch
 {
     public void put(String key, String value);
 
     public Maybe<String> get(String key);
+
+    /**
+     * A future satisfied by the value of key, as soon as one is available.
+     */
+    public ListenableFuture<String> watch(String key);
 }
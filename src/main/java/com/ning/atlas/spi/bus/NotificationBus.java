@@ -4,6 +4,8 @@ public interface NotificationBus
 {
     public void subscribe(Scope scope, Object listener);
 
+    public void post(Object event);
+
     public void unsubscribe(Object listener);
 
     public static enum Scope {
@@ -0,0 +1,32 @@
+package com.ning.atlas.spi.bus;
+
+import com.ning.atlas.spi.Identity;
+
+/**
+ * A line of output from a command run on a server
+ */
+public class RemoteOutput extends ServerEvent
+{
+    private final boolean error;
+    private final String  line;
+
+    public RemoteOutput(Identity serverId, boolean error, String line)
+    {
+        super(serverId);
+        this.error = error;
+        this.line = line;
+    }
+
+    /**
+     * @return true if the line was written to stderr rather than stdout
+     */
+    public boolean isError()
+    {
+        return error;
+    }
+
+    public String getLine()
+    {
+        return line;
+    }
+}
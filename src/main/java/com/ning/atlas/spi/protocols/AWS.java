@@ -4,7 +4,9 @@ import static org.jclouds.concurrent.MoreExecutors.sameThreadExecutor;
 
 import java.util.Set;
 import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicReference;
 
 import org.jclouds.ContextBuilder;
@@ -21,12 +23,11 @@ import org.jclouds.elb.ELBApi;
 import org.jclouds.elb.ELBApiMetadata;
 import org.jclouds.iam.IAMApi;
 import org.jclouds.iam.IAMApiMetadata;
-import org.jclouds.predicates.RetryablePredicate;
 import org.jclouds.rds.RDSApi;
 import org.jclouds.rds.RDSApiMetadata;
 
-import com.google.common.base.Predicate;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.google.inject.Module;
 import com.ning.atlas.config.AtlasConfiguration;
 import com.ning.atlas.spi.Identity;
@@ -37,6 +38,8 @@ public class AWS
 {
     public static final Identity ID = Core.ID.createChild("aws", "config");
 
+    private static final String READY = "ready";
+
     /**
      * Safe to cache forever as we don't delete and create in same process
      */
@@ -56,29 +59,35 @@ public class AWS
         
         final AWSEC2Client ec2Api = AWS.ec2Api(creds);
 
-        initEC2GroupCache(ec2Api);
-        if (existingEc2Groups.contains(groupName)) {
-            return;
-        }
-
-        Predicate<String> retryer = new RetryablePredicate<String>(new Predicate<String>(){
-
-            @Override
-            public boolean apply(String input) {
-                return ec2Api.getSecurityGroupServices().describeSecurityGroupsInRegion(
-                        null, input).size() == 1;
+        // before looking, so the provisioner finishing in between is not missed
+        ListenableFuture<String> ready = space.watch(ec2SecurityGroupId(groupName), READY);
+        try {
+            initEC2GroupCache(ec2Api);
+            if (existingEc2Groups.contains(groupName)) {
+                return;
             }
-            
-        }, unit.toMillis(time));
 
-        if (retryer.apply(groupName)) 
-        {
-            existingEc2Groups.add(groupName);
-            return;
+            if (awaitReady(ready, time, unit)
+                || ec2Api.getSecurityGroupServices().describeSecurityGroupsInRegion(null, groupName).size() == 1)
+            {
+                existingEc2Groups.add(groupName);
+                return;
+            }
+        }
+        finally {
+            ready.cancel(false);
         }
         throw new InterruptedException("timed out waiting for security group " + groupName);
     }
 
+    /**
+     * Record that the group exists, waking anything in {@link #waitForEC2SecurityGroup}
+     */
+    public static void ec2SecurityGroupReady(String groupName, Space space)
+    {
+        space.store(ec2SecurityGroupId(groupName), READY, "true");
+    }
+
     public static void waitForRDSSecurityGroup(String groupName,
                                                Space space,
                                                long time,
@@ -92,28 +101,62 @@ public class AWS
         
         final RDSApi rdsApi = AWS.rdsApi(creds);
 
-        initRDSGroupCache(rdsApi);
-        if (existingRdsGroups.contains(groupName)) {
-            return;
-        }
-        
-        Predicate<String> retryer = new RetryablePredicate<String>(new Predicate<String>(){
-
-            @Override
-            public boolean apply(String input) {
-                return rdsApi.getSubnetGroupApi().get(input) != null;
+        ListenableFuture<String> ready = space.watch(rdsSecurityGroupId(groupName), READY);
+        try {
+            initRDSGroupCache(rdsApi);
+            if (existingRdsGroups.contains(groupName)) {
+                return;
             }
-            
-        }, unit.toMillis(time));
 
-        if (retryer.apply(groupName)) 
-        {
-            existingRdsGroups.add(groupName);
-            return;
+            if (awaitReady(ready, time, unit) || rdsApi.getSubnetGroupApi().get(groupName) != null) {
+                existingRdsGroups.add(groupName);
+                return;
+            }
+        }
+        finally {
+            ready.cancel(false);
         }
         throw new InterruptedException("timed out waiting for security group " + groupName);
     }
 
+    /**
+     * Record that the group exists, waking anything in {@link #waitForRDSSecurityGroup}
+     */
+    public static void rdsSecurityGroupReady(String groupName, Space space)
+    {
+        space.store(rdsSecurityGroupId(groupName), READY, "true");
+    }
+
+    private static Identity ec2SecurityGroupId(String groupName)
+    {
+        return ID.createChild("ec2-security-group", groupName);
+    }
+
+    private static Identity rdsSecurityGroupId(String groupName)
+    {
+        return ID.createChild("rds-security-group", groupName);
+    }
+
+    /**
+     * Wait for the provisioner creating the group to say it is done, rather than asking AWS
+     * over and over. False if it did not within the time, in which case it is worth asking
+     * AWS once more in case the group was made some other way.
+     */
+    private static boolean awaitReady(ListenableFuture<String> ready, long time, TimeUnit unit)
+        throws InterruptedException
+    {
+        try {
+            ready.get(time, unit);
+            return true;
+        }
+        catch (TimeoutException e) {
+            return false;
+        }
+        catch (ExecutionException e) {
+            return false;
+        }
+    }
+
     private static synchronized void initEC2GroupCache(AWSEC2Client ec2)
     {
 
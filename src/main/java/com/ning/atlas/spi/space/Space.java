@@ -1,13 +1,16 @@
 package com.ning.atlas.spi.space;
 
+import com.google.common.util.concurrent.ListenableFuture;
 import com.ning.atlas.spi.Identity;
 import com.ning.atlas.spi.Maybe;
 
+import java.util.Collection;
 import java.util.Map;
 import java.util.Set;
 
 /**
- * @todo Add garbage collection via mark and sweep (marked if read or written during a deployment, sweep at end)
+ * Values which go unused deployment after deployment are collected by mark and sweep, see
+ * {@link com.ning.atlas.space.SpaceCollector}.
  */
 public interface Space
 {
@@ -21,6 +24,21 @@ public interface Space
 
     Map<SpaceKey, String> getAllFor(Identity id);
 
+    /**
+     * Look up many keys at once, leaving out those with no value
+     */
+    Map<SpaceKey, String> getAll(Collection<SpaceKey> keys);
+
+    /**
+     * Read a bean for each identity at once, leaving out identities missing any of its properties
+     */
+    <T> Map<Identity, T> getBeans(Collection<Identity> ids, Class<T> type);
+
+    /**
+     * Store many values at once
+     */
+    void storeAll(Map<SpaceKey, String> values);
+
     Set<Identity> findAllIdentities();
 
     void deleteAll(Identity identity);
@@ -30,4 +48,27 @@ public interface Space
     void delete(Identity identity, String key);
 
     Set<String> query(String expression);
+
+    /**
+     * A future satisfied by the next value stored for the key through this space, rather than
+     * polling for it. Watch before reading the current value so one stored in between is not
+     * missed, and cancel the future if giving up on it.
+     */
+    ListenableFuture<String> watch(Identity id, String key);
+
+    /**
+     * A future satisfied by the key of the next value stored for the identity, or anything below
+     * it, through this space.
+     */
+    ListenableFuture<SpaceKey> watchPrefix(Identity prefix);
+
+    /**
+     * Make every write so far durable, for spaces which do not write through.
+     */
+    void flush();
+
+    /**
+     * Flush, then release whatever the space holds open. The space must not be used after.
+     */
+    void close();
 }
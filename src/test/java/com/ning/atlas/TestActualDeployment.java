@@ -1,13 +1,21 @@
 package com.ning.atlas;
 
 import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.Futures;
+import com.ning.atlas.components.ErrorProvisioner;
+import com.ning.atlas.components.ScratchInstaller;
+import com.ning.atlas.components.WaitForScratchValueInstaller;
 import com.ning.atlas.components.noop.NoOpInstaller;
 import com.ning.atlas.components.noop.NoOpProvisioner;
 import com.ning.atlas.plugin.StaticPluginSystem;
 import com.ning.atlas.space.InMemorySpace;
+import com.ning.atlas.spi.BaseComponent;
+import com.ning.atlas.spi.Component;
+import com.ning.atlas.spi.Deployment;
 import com.ning.atlas.spi.Identity;
 import com.ning.atlas.spi.Installer;
 import com.ning.atlas.spi.Provisioner;
+import com.ning.atlas.spi.Status;
 import com.ning.atlas.spi.space.Space;
 import com.ning.atlas.spi.Uri;
 import org.apache.commons.lang3.tuple.Pair;
@@ -17,9 +25,16 @@ import org.junit.Test;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import static java.util.Arrays.asList;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.not;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
 import static org.junit.matchers.JUnitMatchers.hasItem;
 
 public class TestActualDeployment
@@ -101,4 +116,331 @@ public class TestActualDeployment
         assertThat(NoOpInstaller.getInstalled(),
                    hasItem(Pair.of(Identity.valueOf("/root.0/child.b"), Uri.<Installer>valueOf("foo:install"))));
     }
+
+    @Test
+    public void testSlowProvisionDoesNotHoldBackOtherHosts() throws Exception
+    {
+        ServerTemplate slow = new ServerTemplate("slow",
+                                                 Uri.<Base>valueOf("gated"),
+                                                 asList("0"),
+                                                 Collections.<Uri<Installer>>emptyList(),
+                                                 Collections.<String, Object>emptyMap());
+        ServerTemplate fast = new ServerTemplate("fast",
+                                                 Uri.<Base>valueOf("base"),
+                                                 asList("0"),
+                                                 asList(Uri.<Installer>valueOf("open:gate")),
+                                                 Collections.<String, Object>emptyMap());
+        SystemTemplate root = new SystemTemplate("root",
+                                                 Collections.<String, Object>emptyMap(),
+                                                 asList("0"),
+                                                 Arrays.<Template>asList(slow, fast));
+
+        StaticPluginSystem plugins = new StaticPluginSystem();
+        plugins.registerProvisioner("noop", NoOpProvisioner.class, Collections.<String, String>emptyMap());
+        plugins.registerProvisioner("gated", GatedProvisioner.class, Collections.<String, String>emptyMap());
+        plugins.registerInstaller("open", GateOpeningInstaller.class, Collections.<String, String>emptyMap());
+
+        Map<String, Base> bases = ImmutableMap.of("base", new Base(Uri.<Provisioner>valueOf("noop:happy"),
+                                                                   Collections.<Uri<Installer>>emptyList()),
+                                                  "gated", new Base(Uri.<Provisioner>valueOf("gated:slow"),
+                                                                    Collections.<Uri<Installer>>emptyList()));
+        Environment gated_env = new Environment("gated",
+                                                plugins,
+                                                Collections.<String, Map<String, String>>emptyMap(),
+                                                Collections.<String, Map<String, String>>emptyMap(),
+                                                Collections.<String, Map<String, String>>emptyMap(),
+                                                bases,
+                                                Collections.<String, String>emptyMap());
+
+        GatedProvisioner.reset();
+        gated_env.planDeploymentFor(root.normalize(gated_env), InMemorySpace.newInstance()).converge();
+
+        // the fast host must install while the slow host is still provisioning
+        assertThat(GatedProvisioner.wasOpened(), equalTo(true));
+    }
+
+    @Test
+    public void testFailedProvisionFailsConvergeButKeepsUnwindData() throws Exception
+    {
+        ServerTemplate broken = new ServerTemplate("broken",
+                                                   Uri.<Base>valueOf("broken"),
+                                                   asList("0"),
+                                                   asList(Uri.<Installer>valueOf("foo:install")),
+                                                   Collections.<String, Object>emptyMap());
+        ServerTemplate fine = new ServerTemplate("fine",
+                                                 Uri.<Base>valueOf("base"),
+                                                 asList("0"),
+                                                 asList(Uri.<Installer>valueOf("foo:install")),
+                                                 Collections.<String, Object>emptyMap());
+        SystemTemplate root = new SystemTemplate("root",
+                                                 Collections.<String, Object>emptyMap(),
+                                                 asList("0"),
+                                                 Arrays.<Template>asList(broken, fine));
+
+        StaticPluginSystem plugins = new StaticPluginSystem();
+        plugins.registerProvisioner("noop", NoOpProvisioner.class, Collections.<String, String>emptyMap());
+        plugins.registerProvisioner("error", ErrorProvisioner.class, Collections.<String, String>emptyMap());
+        plugins.registerInstaller("foo", NoOpInstaller.class, Collections.<String, String>emptyMap());
+
+        Map<String, Base> bases = ImmutableMap.of("base", new Base(Uri.<Provisioner>valueOf("noop:happy"),
+                                                                   Collections.<Uri<Installer>>emptyList()),
+                                                  "broken", new Base(Uri.<Provisioner>valueOf("error:no-capacity"),
+                                                                     Collections.<Uri<Installer>>emptyList()));
+        Environment broken_env = new Environment("broken",
+                                                 plugins,
+                                                 Collections.<String, Map<String, String>>emptyMap(),
+                                                 Collections.<String, Map<String, String>>emptyMap(),
+                                                 Collections.<String, Map<String, String>>emptyMap(),
+                                                 bases,
+                                                 Collections.<String, String>emptyMap());
+
+        NoOpInstaller.reset();
+        try {
+            broken_env.planDeploymentFor(root.normalize(broken_env), space).converge();
+            fail("converge should have failed");
+        }
+        catch (IllegalStateException e) {
+            // expected
+        }
+
+        // the broken host goes no further, the other host is unaffected
+        Identity broken_id = Identity.valueOf("/root.0/broken.0");
+        Identity fine_id = Identity.valueOf("/root.0/fine.0");
+        assertThat(NoOpInstaller.getInstalled(),
+                   not(hasItem(Pair.of(broken_id, Uri.<Installer>valueOf("foo:install")))));
+        assertThat(NoOpInstaller.getInstalled(),
+                   hasItem(Pair.of(fine_id, Uri.<Installer>valueOf("foo:install"))));
+
+        // so a later destroy can find what was provisioned
+        assertThat(space.get(fine_id.createChild("atlas", "unwind"), "provisioner").isKnown(), equalTo(true));
+    }
+
+    @Test
+    public void testSystemMapWaitsForEveryHost() throws Exception
+    {
+        ServerTemplate slow = new ServerTemplate("slow",
+                                                 Uri.<Base>valueOf("slow"),
+                                                 asList("0"),
+                                                 Collections.<Uri<Installer>>emptyList(),
+                                                 Collections.<String, Object>emptyMap());
+        ServerTemplate fast = new ServerTemplate("fast",
+                                                 Uri.<Base>valueOf("base"),
+                                                 asList("0"),
+                                                 asList(Uri.<Installer>valueOf("atlas")),
+                                                 Collections.<String, Object>emptyMap());
+        SystemTemplate root = new SystemTemplate("root",
+                                                 Collections.<String, Object>emptyMap(),
+                                                 asList("0"),
+                                                 Arrays.<Template>asList(slow, fast));
+
+        StaticPluginSystem plugins = new StaticPluginSystem();
+        plugins.registerProvisioner("noop", NoOpProvisioner.class, Collections.<String, String>emptyMap());
+        plugins.registerProvisioner("slow", SlowProvisioner.class, Collections.<String, String>emptyMap());
+        plugins.registerInstaller("atlas", MapRecordingInstaller.class, Collections.<String, String>emptyMap());
+
+        Map<String, Base> bases = ImmutableMap.of("base", new Base(Uri.<Provisioner>valueOf("noop:happy"),
+                                                                   Collections.<Uri<Installer>>emptyList()),
+                                                  "slow", new Base(Uri.<Provisioner>valueOf("slow:slow"),
+                                                                   Collections.<Uri<Installer>>emptyList()));
+        Environment slow_env = new Environment("slow",
+                                               plugins,
+                                               Collections.<String, Map<String, String>>emptyMap(),
+                                               Collections.<String, Map<String, String>>emptyMap(),
+                                               Collections.<String, Map<String, String>>emptyMap(),
+                                               bases,
+                                               Collections.<String, String>emptyMap());
+
+        SlowProvisioner.provisioned.set(false);
+        MapRecordingInstaller.sawEveryHost.set(false);
+        slow_env.planDeploymentFor(root.normalize(slow_env), InMemorySpace.newInstance()).converge();
+
+        assertThat(MapRecordingInstaller.sawEveryHost.get(), equalTo(true));
+    }
+
+    @Test(timeout = 10000)
+    public void testWaitForFailsWithItsProducer() throws Exception
+    {
+        ServerTemplate broken = new ServerTemplate("broken",
+                                                   Uri.<Base>valueOf("broken"),
+                                                   asList("0"),
+                                                   asList(Uri.<Installer>valueOf("scratch:ready=yes")),
+                                                   Collections.<String, Object>emptyMap());
+        ServerTemplate waiting = new ServerTemplate("waiting",
+                                                    Uri.<Base>valueOf("base"),
+                                                    asList("0"),
+                                                    asList(Uri.<Installer>valueOf("wait-for:ready"),
+                                                           Uri.<Installer>valueOf("foo:install")),
+                                                    Collections.<String, Object>emptyMap());
+        SystemTemplate root = new SystemTemplate("root",
+                                                 Collections.<String, Object>emptyMap(),
+                                                 asList("0"),
+                                                 Arrays.<Template>asList(broken, waiting));
+        Environment waiting_env = waitingEnvironment(Collections.<String, String>emptyMap());
+
+        NoOpInstaller.reset();
+        try {
+            waiting_env.planDeploymentFor(root.normalize(waiting_env), space).converge();
+            fail("converge should have failed");
+        }
+        catch (IllegalStateException e) {
+            // expected
+        }
+        assertThat(NoOpInstaller.getInstalled(),
+                   not(hasItem(Pair.of(Identity.valueOf("/root.0/waiting.0"), Uri.<Installer>valueOf("foo:install")))));
+    }
+
+    @Test(timeout = 10000)
+    public void testWaitForTimesOutWhenNothingPutsIt() throws Exception
+    {
+        ServerTemplate waiting = new ServerTemplate("waiting",
+                                                    Uri.<Base>valueOf("base"),
+                                                    asList("0"),
+                                                    asList(Uri.<Installer>valueOf("wait-for:never")),
+                                                    Collections.<String, Object>emptyMap());
+        SystemTemplate root = new SystemTemplate("root",
+                                                 Collections.<String, Object>emptyMap(),
+                                                 asList("0"),
+                                                 Arrays.<Template>asList(waiting));
+        Environment waiting_env = waitingEnvironment(ImmutableMap.of(ConvergeGraph.SCRATCH_TIMEOUT_PROPERTY, "1"));
+
+        try {
+            waiting_env.planDeploymentFor(root.normalize(waiting_env), space).converge();
+            fail("converge should have failed");
+        }
+        catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    private static Environment waitingEnvironment(Map<String, String> properties)
+    {
+        StaticPluginSystem plugins = new StaticPluginSystem();
+        plugins.registerProvisioner("noop", NoOpProvisioner.class, Collections.<String, String>emptyMap());
+        plugins.registerProvisioner("error", ErrorProvisioner.class, Collections.<String, String>emptyMap());
+        plugins.registerInstaller("foo", NoOpInstaller.class, Collections.<String, String>emptyMap());
+        plugins.registerInstaller("scratch", ScratchInstaller.class, Collections.<String, String>emptyMap());
+        plugins.registerInstaller("wait-for", WaitForScratchValueInstaller.class, Collections.<String, String>emptyMap());
+
+        Map<String, Base> bases = ImmutableMap.of("base", new Base(Uri.<Provisioner>valueOf("noop:happy"),
+                                                                   Collections.<Uri<Installer>>emptyList()),
+                                                  "broken", new Base(Uri.<Provisioner>valueOf("error:no-capacity"),
+                                                                     Collections.<Uri<Installer>>emptyList()));
+        return new Environment("waiting",
+                               plugins,
+                               Collections.<String, Map<String, String>>emptyMap(),
+                               Collections.<String, Map<String, String>>emptyMap(),
+                               Collections.<String, Map<String, String>>emptyMap(),
+                               bases,
+                               properties);
+    }
+
+    public static class SlowProvisioner extends BaseComponent implements Provisioner
+    {
+        private static final AtomicBoolean provisioned = new AtomicBoolean(false);
+
+        @Override
+        public Future<Status> provision(Host node, Uri<Provisioner> uri, Deployment deployment)
+        {
+            try {
+                Thread.sleep(200);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            provisioned.set(true);
+            return Futures.immediateFuture(Status.okay());
+        }
+
+        @Override
+        public Future<Status> destroy(Identity hostId, Uri<Provisioner> uri, Deployment deployment)
+        {
+            return Futures.immediateFuture(Status.okay());
+        }
+
+        @Override
+        public Future<String> describe(Host server, Uri<? extends Component> uri, Deployment deployment)
+        {
+            return Futures.immediateFuture("take a while");
+        }
+    }
+
+    public static class MapRecordingInstaller extends AtlasInstaller
+    {
+        private static final AtomicBoolean sawEveryHost = new AtomicBoolean(false);
+
+        public MapRecordingInstaller(Map<String, String> attributes)
+        {
+            super(attributes);
+        }
+
+        @Override
+        public String perform(Host host, Uri<? extends Component> uri, Deployment deployment) throws Exception
+        {
+            sawEveryHost.set(SlowProvisioner.provisioned.get());
+            return "recorded";
+        }
+    }
+
+    public static class GatedProvisioner extends BaseComponent implements Provisioner
+    {
+        private static CountDownLatch gate   = new CountDownLatch(1);
+        private static AtomicBoolean  opened = new AtomicBoolean(false);
+
+        static void reset()
+        {
+            gate = new CountDownLatch(1);
+            opened.set(false);
+        }
+
+        static boolean wasOpened()
+        {
+            return opened.get();
+        }
+
+        @Override
+        public Future<Status> provision(Host node, Uri<Provisioner> uri, Deployment deployment)
+        {
+            try {
+                opened.set(gate.await(10, TimeUnit.SECONDS));
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return Futures.immediateFuture(Status.okay());
+        }
+
+        @Override
+        public Future<Status> destroy(Identity hostId, Uri<Provisioner> uri, Deployment deployment)
+        {
+            return Futures.immediateFuture(Status.okay());
+        }
+
+        @Override
+        public Future<String> describe(Host server, Uri<? extends Component> uri, Deployment deployment)
+        {
+            return Futures.immediateFuture("wait for the gate to open");
+        }
+    }
+
+    public static class GateOpeningInstaller extends BaseComponent implements Installer
+    {
+        @Override
+        public Future<Status> install(Host server, Uri<Installer> uri, Deployment deployment)
+        {
+            GatedProvisioner.gate.countDown();
+            return Futures.immediateFuture(Status.okay());
+        }
+
+        @Override
+        public Future<Status> uninstall(Identity hostId, Uri<Installer> uri, Deployment deployment)
+        {
+            return Futures.immediateFuture(Status.okay());
+        }
+
+        @Override
+        public Future<String> describe(Host server, Uri<? extends Component> uri, Deployment deployment)
+        {
+            return Futures.immediateFuture("open the gate");
+        }
+    }
 }
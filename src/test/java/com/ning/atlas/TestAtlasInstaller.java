@@ -0,0 +1,115 @@
+package com.ning.atlas;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableMap;
+import com.ning.atlas.plugin.StaticPluginSystem;
+import com.ning.atlas.space.InMemorySpace;
+import com.ning.atlas.spi.Installer;
+import com.ning.atlas.spi.Provisioner;
+import com.ning.atlas.spi.Uri;
+import com.ning.atlas.spi.protocols.Server;
+import com.ning.atlas.spi.space.Space;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+
+import static java.util.Arrays.asList;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+public class TestAtlasInstaller
+{
+    private ActualDeployment deployment;
+    private Space            space;
+    private Host             first;
+    private Host             second;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        ServerTemplate child = new ServerTemplate("child",
+                                                  Uri.<Base>valueOf("base"),
+                                                  asList("a", "b"),
+                                                  Collections.<Uri<Installer>>emptyList(),
+                                                  Collections.<String, Object>emptyMap());
+
+        SystemTemplate root = new SystemTemplate("root",
+                                                 Collections.<String, Object>emptyMap(),
+                                                 asList("0"),
+                                                 Arrays.<Template>asList(child));
+
+        Map<String, Base> bases = ImmutableMap.of("base", new Base(Uri.<Provisioner>valueOf("noop:happy"),
+                                                                   Collections.<Uri<Installer>>emptyList()));
+        Environment env = new Environment("hello",
+                                          new StaticPluginSystem(),
+                                          Collections.<String, Map<String, String>>emptyMap(),
+                                          Collections.<String, Map<String, String>>emptyMap(),
+                                          Collections.<String, Map<String, String>>emptyMap(),
+                                          bases,
+                                          Collections.<String, String>emptyMap());
+
+        SystemMap map = root.normalize(env);
+        space = InMemorySpace.newInstance();
+        deployment = new ActualDeployment(map, env, space);
+
+        Iterator<Host> hosts = map.findLeaves().iterator();
+        first = hosts.next();
+        second = hosts.next();
+    }
+
+    @Test
+    public void testSystemMapRenderedOnce() throws Exception
+    {
+        space.store(first.getId(), new Server("10.0.0.1"));
+
+        AtlasInstaller installer = new AtlasInstaller(Collections.<String, String>emptyMap());
+        installer.start(deployment);
+
+        byte[] once = installer.renderSystemMap(deployment);
+        byte[] twice = installer.renderSystemMap(deployment);
+        assertThat(twice, sameInstance(once));
+        assertThat(new String(once, Charsets.UTF_8),
+                   equalTo(installer.generateSystemMap(space, deployment.getEnvironment(), deployment.getSystemMap())));
+    }
+
+    @Test
+    public void testStoringServerInvalidatesSystemMap() throws Exception
+    {
+        space.store(first.getId(), new Server("10.0.0.1"));
+
+        AtlasInstaller installer = new AtlasInstaller(Collections.<String, String>emptyMap());
+        installer.start(deployment);
+
+        byte[] before = installer.renderSystemMap(deployment);
+        assertThat(new String(before, Charsets.UTF_8).contains("10.0.0.2"), equalTo(false));
+
+        // no event needed, what was stored is in the very next map
+        space.store(second.getId(), new Server("10.0.0.2"));
+
+        byte[] after = installer.renderSystemMap(deployment);
+        assertThat(after, not(sameInstance(before)));
+        assertThat(new String(after, Charsets.UTF_8).contains("10.0.0.2"), equalTo(true));
+    }
+
+    @Test
+    public void testStoringAttributesInvalidatesSystemMap() throws Exception
+    {
+        space.store(first.getId(), new Server("10.0.0.1"));
+
+        AtlasInstaller installer = new AtlasInstaller(Collections.<String, String>emptyMap());
+        installer.start(deployment);
+
+        byte[] before = installer.renderSystemMap(deployment);
+        space.store(first.getId(), "extra-atlas-attributes", "{\"role\":\"primary\"}");
+
+        byte[] after = installer.renderSystemMap(deployment);
+        assertThat(new String(before, Charsets.UTF_8).contains("primary"), equalTo(false));
+        assertThat(new String(after, Charsets.UTF_8).contains("primary"), equalTo(true));
+    }
+}
@@ -0,0 +1,82 @@
+package com.ning.atlas;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Runs batch scripts through a local sh, standing in for the remote shell
+ */
+public class TestCommandBatch
+{
+    @Test
+    public void testAllStepsSucceed() throws Exception
+    {
+        CommandBatch batch = new CommandBatch(null).add("echo hello").add("echo %s", "world");
+        CommandBatch.Markers markers = new CommandBatch.Markers(2);
+
+        List<String> out = runLocally(batch.script(markers.marker()), markers);
+
+        assertThat(out, equalTo(Arrays.asList("hello", "world")));
+        assertThat(markers.statuses(), equalTo(Arrays.asList(0, 0)));
+    }
+
+    @Test
+    public void testStopsAtFirstFailure() throws Exception
+    {
+        CommandBatch batch = new CommandBatch(null).add("echo one").add("exit 3").add("echo three");
+        CommandBatch.Markers markers = new CommandBatch.Markers(3);
+
+        List<String> out = runLocally(batch.script(markers.marker()), markers);
+
+        assertThat(out, equalTo(Arrays.asList("one")));
+        assertThat(markers.statuses(), equalTo(Arrays.asList(0, 3, null)));
+    }
+
+    @Test
+    public void testOutputWithoutTrailingNewline() throws Exception
+    {
+        CommandBatch batch = new CommandBatch(null).add("printf partial").add("echo next");
+        CommandBatch.Markers markers = new CommandBatch.Markers(2);
+
+        List<String> out = runLocally(batch.script(markers.marker()), markers);
+
+        assertThat(out, equalTo(Arrays.asList("partial", "next")));
+        assertThat(markers.statuses(), equalTo(Arrays.asList(0, 0)));
+    }
+
+    @Test
+    public void testFailedBatchResult() throws Exception
+    {
+        BatchResult rs = new BatchResult(3, "", "no such file",
+                                         Arrays.asList("ls", "cat nope", "ls"),
+                                         Arrays.asList(0, 3, null));
+        assertThat(rs.isSuccess(), equalTo(false));
+        assertThat(rs.getFailedStep(), equalTo(1));
+        assertThat(rs.toString(), equalTo("step 2 of 3, 'cat nope', exited with 3: no such file"));
+    }
+
+    private static List<String> runLocally(String script, CommandBatch.Markers markers) throws Exception
+    {
+        Process p = new ProcessBuilder("sh", "-c", script).start();
+        BufferedReader in = new BufferedReader(new InputStreamReader(p.getInputStream(), Charsets.UTF_8));
+        List<String> lines = Lists.newArrayList();
+        String line;
+        while (null != (line = in.readLine())) {
+            line = markers.strip(line);
+            if (line != null) {
+                lines.add(line);
+            }
+        }
+        p.waitFor();
+        return lines;
+    }
+}
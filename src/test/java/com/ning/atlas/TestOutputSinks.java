@@ -0,0 +1,110 @@
+package com.ning.atlas;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.io.Files;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.List;
+import java.util.Set;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+public class TestOutputSinks
+{
+    @Test
+    public void testTailKeepsLastCharacters() throws Exception
+    {
+        OutputSinks.Tail tail = OutputSinks.tail(OutputSink.Stream.stdout, 8);
+        tail.line(OutputSink.Stream.stdout, "hello");
+        assertThat(tail.getTail(), equalTo("hello\n"));
+
+        tail.line(OutputSink.Stream.stdout, "world");
+        assertThat(tail.getTail(), equalTo("o\nworld\n"));
+    }
+
+    @Test
+    public void testTailIgnoresOtherStream() throws Exception
+    {
+        OutputSinks.Tail tail = OutputSinks.tail(OutputSink.Stream.stdout, 64);
+        tail.line(OutputSink.Stream.stderr, "oops");
+        tail.line(OutputSink.Stream.stdout, "fine");
+        assertThat(tail.getTail(), equalTo("fine\n"));
+    }
+
+    @Test
+    public void testTailOfHugeLine() throws Exception
+    {
+        OutputSinks.Tail tail = OutputSinks.tail(OutputSink.Stream.stdout, 4);
+        tail.line(OutputSink.Stream.stdout, "abcdefghij");
+        assertThat(tail.getTail(), equalTo("hij\n"));
+    }
+
+    @Test
+    public void testRotatingFile() throws Exception
+    {
+        File dir = Files.createTempDir();
+        File log = new File(new File(dir, "logs"), "host.log");
+
+        OutputSink sink = OutputSinks.rotatingFile(log, 10, 2);
+        sink.line(OutputSink.Stream.stdout, "one");
+        sink.line(OutputSink.Stream.stdout, "two");
+        sink.line(OutputSink.Stream.stdout, "three");
+        sink.line(OutputSink.Stream.stderr, "four");
+        sink.line(OutputSink.Stream.stdout, "five");
+        sink.close();
+
+        assertThat(Files.toString(log, Charsets.UTF_8), equalTo("five\n"));
+        assertThat(Files.toString(new File(log.getPath() + ".1"), Charsets.UTF_8), equalTo("[stderr] four\n"));
+        assertThat(Files.toString(new File(log.getPath() + ".2"), Charsets.UTF_8), equalTo("one\ntwo\nthree\n"));
+        assertThat(new File(log.getPath() + ".3").exists(), equalTo(false));
+    }
+
+    @Test
+    public void testSinksOnOneFileShareIt() throws Exception
+    {
+        File dir = Files.createTempDir();
+        final File log = new File(dir, "host.log");
+
+        List<Thread> writers = Lists.newArrayList();
+        for (int i = 0; i < 4; i++) {
+            final String name = "writer-" + i;
+            writers.add(new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    OutputSink sink = OutputSinks.rotatingFile(log, 1024, 100);
+                    for (int j = 0; j < 500; j++) {
+                        sink.line(OutputSink.Stream.stdout, name + " " + j);
+                    }
+                    sink.close();
+                }
+            }));
+        }
+        for (Thread writer : writers) {
+            writer.start();
+        }
+        for (Thread writer : writers) {
+            writer.join();
+        }
+
+        // every line is in exactly one of the files, whole
+        Set<String> lines = Sets.newHashSet();
+        int count = 0;
+        for (File file : dir.listFiles()) {
+            // rotated once it passed the limit, not once per sink
+            assertThat(file.length() < 1024 + 16, equalTo(true));
+            for (String line : Files.readLines(file, Charsets.UTF_8)) {
+                lines.add(line);
+                count++;
+            }
+        }
+        assertThat(count, equalTo(2000));
+        assertThat(lines.size(), equalTo(2000));
+        assertThat(lines.contains("writer-3 499"), equalTo(true));
+    }
+}
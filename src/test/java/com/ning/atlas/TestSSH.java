@@ -0,0 +1,119 @@
+package com.ning.atlas;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Reads the streams of a local process, standing in for a remote command
+ */
+public class TestSSH
+{
+    @Test(timeout = 10000)
+    public void testLotsOfStderrBeforeStdout() throws Exception
+    {
+        // far more than a pipe, or a channel window, holds before anyone reads it
+        Process p = new ProcessBuilder(Arrays.asList("sh", "-c",
+                                                     "i=0; while [ $i -lt 20000 ]; do echo \"error $i\" >&2; i=$((i+1)); done; echo done"))
+            .start();
+        p.getOutputStream().close();
+
+        OutputSinks.Tail stdout = OutputSinks.tail(OutputSink.Stream.stdout, 64);
+        OutputSinks.Tail stderr = OutputSinks.tail(OutputSink.Stream.stderr, 64);
+        ExecutorService pumps = Executors.newCachedThreadPool();
+        try {
+            SSH.pumpBoth(p.getInputStream(), p.getErrorStream(), OutputSinks.tee(stdout, stderr), null, "localhost", pumps);
+        }
+        finally {
+            pumps.shutdown();
+        }
+
+        assertThat(p.waitFor(), equalTo(0));
+        assertThat(stdout.getTail(), equalTo("done\n"));
+        assertThat(stderr.getTail().endsWith("error 19999\n"), equalTo(true));
+    }
+
+    @Test
+    public void testLongLinesAreCut() throws Exception
+    {
+        StringBuilder huge = new StringBuilder();
+        for (int i = 0; i < SSH.MAX_LINE_CHARS + 100; i++) {
+            huge.append('x');
+        }
+        BufferedReader reader = new BufferedReader(new StringReader(huge + "\r\nshort\rlast"));
+        StringBuilder line = new StringBuilder();
+
+        assertThat(SSH.readLine(reader, line).length(), equalTo(SSH.MAX_LINE_CHARS));
+        assertThat(SSH.readLine(reader, line), equalTo("short"));
+        assertThat(SSH.readLine(reader, line), equalTo("last"));
+        assertThat(SSH.readLine(reader, line), equalTo(null));
+    }
+
+    @Test
+    public void testReplaceFile() throws Exception
+    {
+        File dir = Files.createTempDir();
+        File target = new File(dir, "it's here.json");
+        Files.write("old", target, Charsets.UTF_8);
+
+        assertThat(replace(target.getPath(), null, null, "new"), equalTo(0));
+        assertThat(Files.toString(target, Charsets.UTF_8), equalTo("new"));
+        // nothing left behind
+        assertThat(dir.list().length, equalTo(1));
+    }
+
+    @Test
+    public void testReplaceIntoDirectory() throws Exception
+    {
+        File dir = Files.createTempDir();
+
+        assertThat(replace(dir.getPath() + "/", "motd", null, "hello"), equalTo(0));
+        assertThat(Files.toString(new File(dir, "motd"), Charsets.UTF_8), equalTo("hello"));
+
+        // without a name for it, a directory is not something to write to
+        assertThat(replace(dir.getPath(), null, null, "hello"), equalTo(1));
+        assertThat(dir.list().length, equalTo(1));
+    }
+
+    @Test
+    public void testReplaceWithMode() throws Exception
+    {
+        File dir = Files.createTempDir();
+        File target = new File(dir, "run.sh");
+
+        assertThat(replace(target.getPath(), null, "755", "#!/bin/sh\n"), equalTo(0));
+        assertThat(target.canExecute(), equalTo(true));
+
+        assertThat(replace(target.getPath(), null, null, "#!/bin/sh\n"), equalTo(0));
+        assertThat(target.canExecute(), equalTo(false));
+    }
+
+    private static int replace(String path, String name, String mode, String content) throws Exception
+    {
+        Process p = new ProcessBuilder(Arrays.asList("sh", "-c", SSH.replaceScript(path, name, mode, ""))).start();
+        OutputStream in = p.getOutputStream();
+        try {
+            in.write(content.getBytes(Charsets.UTF_8));
+            in.close();
+        }
+        catch (IOException e) {
+            // a script refusing the target exits without reading what is sent
+        }
+        ByteStreams.toByteArray(p.getInputStream());
+        ByteStreams.toByteArray(p.getErrorStream());
+        return p.waitFor();
+    }
+}
@@ -0,0 +1,108 @@
+package com.ning.atlas;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+public class TestWorkerPools
+{
+    @Test
+    public void testLimitsFromProperties() throws Exception
+    {
+        WorkerPools pools = new WorkerPools(ImmutableMap.of("atlas.concurrency.apt", "5",
+                                                            "atlas.concurrency.default", "7"));
+        assertThat(pools.getLimit("apt"), equalTo(5));
+        assertThat(pools.getLimit("ec2"), equalTo(7));
+    }
+
+    @Test
+    public void testDeploymentPoolsAreNotSchemePools() throws Exception
+    {
+        WorkerPools pools = new WorkerPools(ImmutableMap.of("atlas.concurrency.atlas", "2",
+                                                            "atlas.concurrency.@converge", "9"));
+        assertThat(pools.get(WorkerPools.CONVERGE) == pools.get("atlas"), equalTo(false));
+        assertThat(pools.get(WorkerPools.EVENTS) == pools.get("events"), equalTo(false));
+        assertThat(pools.getLimit("atlas"), equalTo(2));
+        assertThat(pools.getLimit(WorkerPools.CONVERGE), equalTo(9));
+    }
+
+    @Test
+    public void testDefaultLimit() throws Exception
+    {
+        WorkerPools pools = new WorkerPools(Collections.<String, String>emptyMap());
+        assertThat(pools.getLimit("apt"), equalTo(WorkerPools.DEFAULT_LIMIT));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testBadLimit() throws Exception
+    {
+        new WorkerPools(ImmutableMap.of("atlas.concurrency.apt", "lots")).get("apt");
+    }
+
+    @Test
+    public void testQueuesBeyondLimit() throws Exception
+    {
+        WorkerPools pools = new WorkerPools(ImmutableMap.of("atlas.concurrency.apt", "2"));
+        ListeningExecutorService apt = pools.get("apt");
+
+        final CountDownLatch running = new CountDownLatch(2);
+        final CountDownLatch release = new CountDownLatch(1);
+        for (int i = 0; i < 5; i++) {
+            apt.submit(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    running.countDown();
+                    try {
+                        release.await();
+                    }
+                    catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+        }
+
+        assertThat(running.await(5, TimeUnit.SECONDS), equalTo(true));
+        assertThat(pools.getActiveCount("apt"), equalTo(2));
+        assertThat(pools.getQueueDepth("apt"), equalTo(3));
+
+        release.countDown();
+        apt.shutdown();
+        assertThat(apt.awaitTermination(5, TimeUnit.SECONDS), equalTo(true));
+        assertThat(pools.getLargestPoolSize("apt"), equalTo(2));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testBadThreadsMode() throws Exception
+    {
+        new WorkerPools(ImmutableMap.of("atlas.threads", "green"));
+    }
+
+    @Test
+    public void testVirtualMode() throws Exception
+    {
+        // falls back to platform threads on jvms without virtual threads
+        WorkerPools pools = new WorkerPools(ImmutableMap.of("atlas.threads", "virtual"));
+        assertThat(pools.get("apt").submit(new Callable<String>()
+        {
+            @Override
+            public String call() throws Exception
+            {
+                return "done";
+            }
+        }).get(5, TimeUnit.SECONDS), equalTo("done"));
+
+        int expected_limit = pools.isVirtual() ? Integer.MAX_VALUE : WorkerPools.DEFAULT_LIMIT;
+        assertThat(pools.getLimit("apt"), equalTo(expected_limit));
+    }
+}
@@ -1,6 +1,9 @@
 package com.ning.atlas.space;
 
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.ning.atlas.spi.Identity;
 import com.ning.atlas.spi.Maybe;
 import com.ning.atlas.spi.space.Missing;
@@ -16,6 +19,7 @@ import org.junit.Test;
 import java.io.IOException;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import static org.hamcrest.CoreMatchers.equalTo;
 import static org.hamcrest.CoreMatchers.nullValue;
@@ -91,6 +95,131 @@ public abstract class BaseSpaceTest
         assertThat(rs.get(SpaceKey.from(id, "flavor")), equalTo("strawberry"));
     }
 
+    @Test
+    public void testReadAllSkipsSiblingsSharingAPrefix() throws Exception
+    {
+        Identity id = Identity.root().createChild("test", "0");
+        space.store(id, "hello", "world");
+        space.store(Identity.root().createChild("test", "0-1"), "hello", "sibling");
+        space.store(Identity.root().createChild("test", "01"), "hello", "sibling");
+        space.store(Identity.root().createChild("TEST", "0"), "hello", "sibling");
+
+        Map<SpaceKey, String> rs = space.getAllFor(id);
+        assertThat(rs.size(), equalTo(1));
+        assertThat(rs.get(SpaceKey.from(id, "hello")), equalTo("world"));
+    }
+
+    @Test
+    public void testDeleteAllRemovesChildren() throws Exception
+    {
+        Identity id = Identity.root().createChild("test", "0");
+        Identity sibling = Identity.root().createChild("test", "01");
+        space.store(id, "hello", "world");
+        space.store(id.createChild("color", "wheel"), "favorite", "color");
+        space.store(sibling, "hello", "sibling");
+
+        space.deleteAll(id);
+
+        assertThat(space.getAllFor(id).size(), equalTo(0));
+        assertThat(space.get(id.createChild("color", "wheel"), "favorite").isKnown(), equalTo(false));
+        assertThat(space.get(sibling, "hello").getValue(), equalTo("sibling"));
+    }
+
+    @Test
+    public void testStoreAllAndGetAll() throws Exception
+    {
+        Identity a = Identity.root().createChild("test", "0");
+        Identity b = Identity.root().createChild("test", "1");
+        Map<SpaceKey, String> values = ImmutableMap.of(SpaceKey.from(a, "hello"), "world",
+                                                       SpaceKey.from(a, "flavor"), "strawberry",
+                                                       SpaceKey.from(b, "hello"), "there");
+        space.storeAll(values);
+
+        Map<SpaceKey, String> rs = space.getAll(Lists.newArrayList(SpaceKey.from(a, "hello"),
+                                                                   SpaceKey.from(a, "flavor"),
+                                                                   SpaceKey.from(b, "hello"),
+                                                                   SpaceKey.from(b, "flavor")));
+        assertThat(rs, equalTo(values));
+        assertThat(space.query("/test.*:hello"), equalTo((Set<String>) ImmutableSet.of("world", "there")));
+    }
+
+    @Test
+    public void testGetBeans() throws Exception
+    {
+        Identity a = Identity.root().createChild("test", "0");
+        Identity b = Identity.root().createChild("test", "1");
+        Identity c = Identity.root().createChild("test", "2");
+
+        Thing t = new Thing();
+        t.setName("Freddy");
+        t.setAgeOfPetDog(14);
+        space.store(a, t);
+
+        NameOnly no = new NameOnly();
+        no.setName("Sam");
+        space.store(b, no);
+
+        Map<Identity, Thing> rs = space.getBeans(Lists.newArrayList(a, b, c), Thing.class);
+        assertThat(rs, equalTo((Map<Identity, Thing>) ImmutableMap.of(a, t)));
+    }
+
+    @Test
+    public void testRootHoldsEverything() throws Exception
+    {
+        Identity id = Identity.root().createChild("test", "0");
+        space.store(id, "hello", "world");
+        space.store(id.createChild("color", "wheel"), "favorite", "color");
+
+        assertThat(space.getAllFor(Identity.root()).size(), equalTo(2));
+
+        space.deleteAll(Identity.root());
+        assertThat(space.getAllFor(id).size(), equalTo(0));
+        assertThat(space.findAllIdentities().size(), equalTo(0));
+    }
+
+    @Test
+    public void testWatch() throws Exception
+    {
+        Identity id = Identity.root().createChild("test", "0");
+        ListenableFuture<String> hello = space.watch(id, "hello");
+        ListenableFuture<String> other = space.watch(id, "other");
+
+        space.store(id, "goodbye", "world");
+        assertThat(hello.isDone(), equalTo(false));
+
+        space.store(id, "hello", "world");
+        assertThat(hello.get(), equalTo("world"));
+        assertThat(other.isDone(), equalTo(false));
+
+        // only the next value, not one already there
+        assertThat(space.watch(id, "hello").isDone(), equalTo(false));
+
+        Thing t = new Thing();
+        t.setName("Freddy");
+        ListenableFuture<String> name = space.watch(id, "name");
+        space.store(id, t);
+        assertThat(name.get(), equalTo("Freddy"));
+
+        other.cancel(false);
+        space.store(id, "other", "thing");
+        assertThat(other.isCancelled(), equalTo(true));
+    }
+
+    @Test
+    public void testWatchPrefix() throws Exception
+    {
+        Identity id = Identity.root().createChild("test", "0");
+        Identity child = id.createChild("color", "wheel");
+        ListenableFuture<SpaceKey> below = space.watchPrefix(id);
+        ListenableFuture<SpaceKey> anything = space.watchPrefix(Identity.root());
+        ListenableFuture<SpaceKey> elsewhere = space.watchPrefix(Identity.root().createChild("test", "1"));
+
+        space.storeAll(ImmutableMap.of(SpaceKey.from(child, "favorite"), "color"));
+        assertThat(below.get(), equalTo(SpaceKey.from(child, "favorite")));
+        assertThat(anything.get(), equalTo(SpaceKey.from(child, "favorite")));
+        assertThat(elsewhere.isDone(), equalTo(false));
+    }
+
     @Test
     public void testOtherObjectsSameProperties() throws Exception
     {
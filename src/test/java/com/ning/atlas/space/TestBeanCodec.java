@@ -0,0 +1,51 @@
+package com.ning.atlas.space;
+
+import com.google.common.collect.ImmutableMap;
+import com.ning.atlas.spi.Maybe;
+import com.ning.atlas.spi.space.Missing;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+public class TestBeanCodec
+{
+    @Test
+    public void testOneCodecPerClass() throws Exception
+    {
+        assertThat(BeanCodec.forType(BaseSpaceTest.Thing.class),
+                   sameInstance(BeanCodec.forType(BaseSpaceTest.Thing.class)));
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception
+    {
+        BeanCodec codec = BeanCodec.forType(BaseSpaceTest.ComplexThing.class);
+        BaseSpaceTest.ComplexThing ct = new BaseSpaceTest.ComplexThing();
+        ct.setName("fred");
+        ct.setNumbers(Arrays.asList(1, 2, 3));
+
+        Map<String, String> values = codec.encode(ct);
+        assertThat(values, equalTo((Map<String, String>) ImmutableMap.of("name", "fred",
+                                                                          "numbers", "[1,2,3]")));
+
+        BaseSpaceTest.ComplexThing it = codec.<BaseSpaceTest.ComplexThing>decode(values, Missing.RequireAll)
+                                             .getValue();
+        assertThat(it.getName(), equalTo("fred"));
+        assertThat(it.getNumbers(), equalTo(ct.getNumbers()));
+    }
+
+    @Test
+    public void testKeysAreHyphenated() throws Exception
+    {
+        BeanCodec codec = BeanCodec.forType(BaseSpaceTest.Thing.class);
+        assertThat(codec.keys(), equalTo(Arrays.asList("age-of-pet-dog", "name")));
+
+        Maybe<BaseSpaceTest.Thing> partial = codec.decode(ImmutableMap.of("name", "Freddy"), Missing.RequireAll);
+        assertThat(partial.isKnown(), equalTo(false));
+    }
+}
@@ -0,0 +1,165 @@
+package com.ning.atlas.space;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.ning.atlas.spi.Identity;
+import com.ning.atlas.spi.space.Space;
+import com.ning.atlas.spi.space.SpaceKey;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+public class TestCachingSpace extends BaseSpaceTest
+{
+    private File tmp;
+
+    @Override
+    protected Space createSpace() throws IOException
+    {
+        this.tmp = File.createTempFile("atlas", ".db");
+        return CachingSpace.create(SQLiteBackedSpace.create(tmp), 100);
+    }
+
+    @Override
+    protected void destroySpace(Space space) throws IOException
+    {
+        tmp.delete();
+    }
+
+    @Test
+    public void testRepeatedReadsAreHits() throws Exception
+    {
+        InMemorySpace backing = InMemorySpace.newInstance();
+        CachingSpace space = CachingSpace.create(backing, 100);
+
+        Identity id = Identity.root().createChild("test", "0");
+        backing.store(id, "hello", "world");
+
+        assertThat(space.get(id, "hello").getValue(), equalTo("world"));
+        assertThat(space.get(id, "hello").getValue(), equalTo("world"));
+        assertThat(space.get(id, "missing").isKnown(), equalTo(false));
+        assertThat(space.get(id, "missing").isKnown(), equalTo(false));
+
+        assertThat(space.stats().hitCount(), equalTo(2L));
+        assertThat(space.stats().missCount(), equalTo(2L));
+    }
+
+    @Test
+    public void testWritesAndDeletesInvalidate() throws Exception
+    {
+        CachingSpace space = CachingSpace.create(InMemorySpace.newInstance(), 100);
+
+        Identity id = Identity.root().createChild("test", "0");
+        Identity child = id.createChild("color", "wheel");
+        assertThat(space.get(id, "hello").isKnown(), equalTo(false));
+
+        space.store(id, "hello", "world");
+        space.store(child, "favorite", "color");
+        assertThat(space.get(id, "hello").getValue(), equalTo("world"));
+        assertThat(space.get(child, "favorite").getValue(), equalTo("color"));
+
+        space.delete(id, "hello");
+        assertThat(space.get(id, "hello").isKnown(), equalTo(false));
+
+        space.deleteAll(id);
+        assertThat(space.get(child, "favorite").isKnown(), equalTo(false));
+    }
+
+    @Test
+    public void testEviction() throws Exception
+    {
+        CachingSpace space = CachingSpace.create(InMemorySpace.newInstance(), 2);
+
+        Identity id = Identity.root().createChild("test", "0");
+        for (int i = 0; i < 10; i++) {
+            space.get(id, "key-" + i);
+        }
+        assertThat(space.stats().evictionCount(), equalTo(8L));
+    }
+
+    @Test
+    public void testSizeZeroDoesNotCache() throws Exception
+    {
+        Space backing = InMemorySpace.newInstance();
+
+        assertThat(CachingSpace.create(backing, ImmutableMap.of(CachingSpace.CACHE_SIZE_PROPERTY, "0")),
+                   sameInstance(backing));
+        assertThat(CachingSpace.create(backing, ImmutableMap.<String, String>of()),
+                   instanceOf(CachingSpace.class));
+    }
+
+    @Test
+    public void testWriteDuringLoadIsNotHidden() throws Exception
+    {
+        assertWriteDuringLoadIsSeen(null);
+        assertWriteDuringLoadIsSeen("10.0.0.1");
+    }
+
+    /**
+     * Store a new value for a key while a read of it through the cache has read what the space
+     * below held, but not yet returned, then read it again.
+     */
+    private static void assertWriteDuringLoadIsSeen(String old) throws Exception
+    {
+        final Identity id = Identity.root().createChild("test", "0");
+        final CountDownLatch loaded = new CountDownLatch(1);
+        final CountDownLatch written = new CountDownLatch(1);
+        InMemorySpace backing = new InMemorySpace()
+        {
+            @Override
+            protected Map<SpaceKey, String> readMany(Collection<SpaceKey> keys) throws IOException
+            {
+                Map<SpaceKey, String> rs = super.readMany(keys);
+                loaded.countDown();
+                try {
+                    written.await(10, TimeUnit.SECONDS);
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return rs;
+            }
+        };
+        if (old != null) {
+            backing.store(id, "ip", old);
+        }
+        final CachingSpace cs = CachingSpace.create(backing, 100);
+
+        ExecutorService reader = Executors.newSingleThreadExecutor();
+        try {
+            Future<Map<SpaceKey, String>> read = reader.submit(new Callable<Map<SpaceKey, String>>()
+            {
+                @Override
+                public Map<SpaceKey, String> call() throws Exception
+                {
+                    return cs.getAll(ImmutableList.of(SpaceKey.from(id, "ip")));
+                }
+            });
+            loaded.await(10, TimeUnit.SECONDS);
+            cs.store(id, "ip", "10.0.0.2");
+            written.countDown();
+            read.get(10, TimeUnit.SECONDS);
+        }
+        finally {
+            reader.shutdownNow();
+        }
+
+        assertThat(cs.get(id, "ip").getValue(), equalTo("10.0.0.2"));
+        assertThat(cs.getAll(ImmutableList.of(SpaceKey.from(id, "ip"))).get(SpaceKey.from(id, "ip")),
+                   equalTo("10.0.0.2"));
+    }
+}
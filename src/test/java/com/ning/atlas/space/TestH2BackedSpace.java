@@ -0,0 +1,87 @@
+package com.ning.atlas.space;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.Files;
+import com.ning.atlas.spi.Identity;
+import com.ning.atlas.spi.space.Space;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.junit.Assert.assertThat;
+
+public class TestH2BackedSpace extends BaseSpaceTest
+{
+    private File tmp;
+
+    @Override
+    protected Space createSpace() throws IOException
+    {
+        this.tmp = Files.createTempDir();
+        return H2BackedSpace.create(new File(tmp, "space"));
+    }
+
+    @Override
+    protected void destroySpace(Space space) throws IOException
+    {
+        ((H2BackedSpace) space).close();
+    }
+
+    @Test
+    public void testSharedBetweenSpaces() throws Exception
+    {
+        File dir = Files.createTempDir();
+        H2BackedSpace one = H2BackedSpace.create(new File(dir, "space"), ImmutableMap.<String, String>of());
+        H2BackedSpace two = H2BackedSpace.create(new File(dir, "space"), ImmutableMap.<String, String>of());
+
+        Identity id = Identity.root().createChild("test", "0");
+        one.store(id, "hello", "world");
+        assertThat(two.get(id, "hello").getValue(), equalTo("world"));
+        two.deleteAll(id);
+        assertThat(one.get(id, "hello").isKnown(), equalTo(false));
+
+        one.close();
+        two.close();
+    }
+
+    @Test
+    public void testQuerySeesIdentitiesFromAnotherSpace() throws Exception
+    {
+        File dir = Files.createTempDir();
+        H2BackedSpace one = H2BackedSpace.create(new File(dir, "space"), ImmutableMap.<String, String>of());
+        H2BackedSpace two = H2BackedSpace.create(new File(dir, "space"), ImmutableMap.<String, String>of());
+
+        one.store(Identity.valueOf("/sys.0/host.0"), "address", "10.0.0.1");
+        assertThat(one.query("/sys.0/host.*:address").size(), equalTo(1));
+
+        two.store(Identity.valueOf("/sys.0/host.1"), "address", "10.0.0.2");
+        assertThat(one.query("/sys.0/host.*:address").size(), equalTo(2));
+
+        one.close();
+        two.close();
+    }
+
+    @Test
+    public void testSelectedByBackend() throws Exception
+    {
+        File dir = Files.createTempDir();
+        Space shared = Spaces.forEnvironment(dir, ImmutableMap.of(Spaces.BACKEND_PROPERTY, "h2",
+                                                                  VersionedSpace.HISTORY_PROPERTY, "0"));
+        assertThat(shared, instanceOf(H2BackedSpace.class));
+        ((H2BackedSpace) shared).close();
+
+        Space cached = Spaces.forEnvironment(dir, ImmutableMap.of(Spaces.BACKEND_PROPERTY, "h2",
+                                                                  H2BackedSpace.AUTO_SERVER_PROPERTY, "false",
+                                                                  VersionedSpace.HISTORY_PROPERTY, "0"));
+        assertThat(cached, instanceOf(CachingSpace.class));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testUnknownBackend() throws Exception
+    {
+        Spaces.forEnvironment(Files.createTempDir(), ImmutableMap.of(Spaces.BACKEND_PROPERTY, "berkeley"));
+    }
+}
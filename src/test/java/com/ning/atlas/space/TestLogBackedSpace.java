@@ -0,0 +1,220 @@
+package com.ning.atlas.space;
+
+import com.google.common.base.Strings;
+import com.google.common.io.Files;
+import com.ning.atlas.spi.Identity;
+import com.ning.atlas.spi.space.Space;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestLogBackedSpace extends BaseSpaceTest
+{
+    private File tmp;
+
+    @Override
+    protected Space createSpace() throws IOException
+    {
+        this.tmp = File.createTempFile("atlas", ".log");
+        return LogBackedSpace.create(tmp);
+    }
+
+    @Override
+    protected void destroySpace(Space space) throws IOException
+    {
+        space.close();
+        tmp.delete();
+    }
+
+    @Test
+    public void testReopen() throws Exception
+    {
+        File log = File.createTempFile("atlas", ".log");
+        Identity id = Identity.root().createChild("test", "0");
+        Identity child = id.createChild("color", "wheel");
+
+        LogBackedSpace space = LogBackedSpace.create(log);
+        space.store(id, "hello", "world");
+        space.store(id, "flavor", "strawberry");
+        space.store(child, "favorite", "color");
+        space.store(id, "hello", "there");
+        space.delete(id, "flavor");
+        space.deleteAll(child);
+        space.store(id, "nothing", null);
+        space.close();
+
+        LogBackedSpace again = LogBackedSpace.create(log);
+        assertThat(again.get(id, "hello").getValue(), equalTo("there"));
+        assertThat(again.get(id, "flavor").isKnown(), equalTo(false));
+        assertThat(again.get(child, "favorite").isKnown(), equalTo(false));
+        assertThat(again.getAllFor(id).size(), equalTo(2));
+        again.close();
+        log.delete();
+    }
+
+    @Test
+    public void testTornRecordIsDiscarded() throws Exception
+    {
+        File log = File.createTempFile("atlas", ".log");
+        Identity id = Identity.root().createChild("test", "0");
+
+        LogBackedSpace space = LogBackedSpace.create(log);
+        space.store(id, "first", "1");
+        space.store(id, "second", "2");
+        space.close();
+
+        // as if the process died part way through copying the last record
+        byte[] bytes = Files.toByteArray(log);
+        int end = bytes.length;
+        while (bytes[end - 1] == 0) {
+            end--;
+        }
+        bytes[end - 1] ^= 0xFF;
+        Files.write(bytes, log);
+
+        space = LogBackedSpace.create(log);
+        assertThat(space.get(id, "first").getValue(), equalTo("1"));
+        assertThat(space.get(id, "second").isKnown(), equalTo(false));
+        space.store(id, "third", "3");
+        space.close();
+
+        space = LogBackedSpace.create(log);
+        assertThat(space.get(id, "first").getValue(), equalTo("1"));
+        assertThat(space.get(id, "second").isKnown(), equalTo(false));
+        assertThat(space.get(id, "third").getValue(), equalTo("3"));
+        space.close();
+        log.delete();
+    }
+
+    @Test
+    public void testCompaction() throws Exception
+    {
+        File log = File.createTempFile("atlas", ".log");
+        Identity id = Identity.root().createChild("test", "0");
+        String filler = Strings.repeat("x", 200);
+
+        LogBackedSpace space = LogBackedSpace.create(log);
+        for (int i = 0; i < 20000; i++) {
+            space.store(id, "counter", filler + i);
+        }
+        space.store(id, "other", "value");
+        long grown = log.length();
+
+        space.flush();
+        assertTrue(log.length() < grown);
+        assertThat(space.get(id, "counter").getValue(), equalTo(filler + 19999));
+
+        // appends carry on into the compacted log
+        space.store(id, "after", "compaction");
+        space.close();
+
+        space = LogBackedSpace.create(log);
+        assertThat(space.get(id, "counter").getValue(), equalTo(filler + 19999));
+        assertThat(space.get(id, "other").getValue(), equalTo("value"));
+        assertThat(space.get(id, "after").getValue(), equalTo("compaction"));
+        space.close();
+        log.delete();
+    }
+
+    @Test
+    public void testSecondSpaceIsReadOnly() throws Exception
+    {
+        File log = File.createTempFile("atlas", ".log");
+        Identity id = Identity.root().createChild("test", "0");
+
+        LogBackedSpace writer = LogBackedSpace.create(log);
+        writer.store(id, "hello", "world");
+        writer.flush();
+
+        LogBackedSpace reader = LogBackedSpace.create(log);
+        assertThat(writer.isWritable(), equalTo(true));
+        assertThat(reader.isWritable(), equalTo(false));
+        assertThat(reader.get(id, "hello").getValue(), equalTo("world"));
+        try {
+            reader.store(id, "hello", "there");
+            fail("wrote to a log another space has");
+        }
+        catch (IllegalStateException e) {
+            // expected
+        }
+        reader.close();
+
+        writer.store(id, "hello", "again");
+        writer.close();
+
+        LogBackedSpace next = LogBackedSpace.create(log);
+        assertThat(next.isWritable(), equalTo(true));
+        assertThat(next.get(id, "hello").getValue(), equalTo("again"));
+        next.close();
+        log.delete();
+    }
+
+    @Test
+    public void testReaderLeavesPartialRecordAlone() throws Exception
+    {
+        File log = File.createTempFile("atlas", ".log");
+        Identity id = Identity.root().createChild("test", "0");
+
+        LogBackedSpace writer = LogBackedSpace.create(log);
+        writer.store(id, "first", "1");
+        writer.flush();
+
+        // as if the writer were part way through copying its next record
+        byte[] bytes = Files.toByteArray(log);
+        int end = bytes.length;
+        while (bytes[end - 1] == 0) {
+            end--;
+        }
+        byte[] partial = new byte[]{0, 0, 0, 40, 1, 2, 3, 4, 5, 6};
+        RandomAccessFile raf = new RandomAccessFile(log, "rw");
+        raf.seek(end);
+        raf.write(partial);
+        raf.close();
+
+        LogBackedSpace reader = LogBackedSpace.create(log);
+        assertThat(reader.get(id, "first").getValue(), equalTo("1"));
+        reader.close();
+
+        byte[] after = Arrays.copyOfRange(Files.toByteArray(log), end, end + partial.length);
+        assertThat(Arrays.equals(after, partial), equalTo(true));
+        writer.close();
+        log.delete();
+    }
+
+    @Test
+    public void testFullLog() throws Exception
+    {
+        File log = File.createTempFile("atlas", ".log");
+        Identity id = Identity.root().createChild("test", "0");
+        String filler = Strings.repeat("x", 1000);
+
+        LogBackedSpace space = LogBackedSpace.create(log, 1 << 20);
+
+        // several times the limit, but mostly garbage, so rewriting the log makes room
+        for (int i = 0; i < 5000; i++) {
+            space.store(id, "counter", filler + i);
+        }
+        assertTrue(log.length() <= 1 << 20);
+
+        try {
+            for (int i = 0; i < 5000; i++) {
+                space.store(id, "key-" + i, filler);
+            }
+            fail("stored more than the log holds");
+        }
+        catch (IllegalStateException e) {
+            // expected
+        }
+        assertThat(space.get(id, "counter").getValue(), equalTo(filler + 4999));
+        space.close();
+        log.delete();
+    }
+}
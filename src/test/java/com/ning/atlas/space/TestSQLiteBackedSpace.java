@@ -1,9 +1,16 @@
 package com.ning.atlas.space;
 
+import com.google.common.collect.ImmutableSet;
+import com.ning.atlas.spi.Identity;
 import com.ning.atlas.spi.space.Space;
+import org.junit.Test;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Set;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
 
 public class TestSQLiteBackedSpace extends BaseSpaceTest
 {
@@ -22,4 +29,45 @@ public class TestSQLiteBackedSpace extends BaseSpaceTest
         tmp.delete();
         // NOOP
     }
+
+    @Test
+    public void testQuerySeesIdentitiesFromAnotherSpace() throws Exception
+    {
+        File db = File.createTempFile("atlas", ".db");
+        Space one = SQLiteBackedSpace.create(db);
+        Space two = SQLiteBackedSpace.create(db);
+
+        Identity first = Identity.valueOf("/sys.0/host.0");
+        Identity second = Identity.valueOf("/sys.0/host.1");
+        one.store(first, "address", "10.0.0.1");
+        assertThat(one.query("/sys.0/host.*:address"), equalTo((Set<String>) ImmutableSet.of("10.0.0.1")));
+
+        two.store(second, "address", "10.0.0.2");
+        assertThat(one.query("/sys.0/host.*:address"),
+                   equalTo((Set<String>) ImmutableSet.of("10.0.0.1", "10.0.0.2")));
+
+        two.deleteAll(first);
+        assertThat(one.query("/sys.0/host.*:address"), equalTo((Set<String>) ImmutableSet.of("10.0.0.2")));
+        db.delete();
+    }
+
+    @Test
+    public void testOnlyNewAndRemovedIdentitiesChangeVersion() throws Exception
+    {
+        File db = File.createTempFile("atlas", ".db");
+        SQLiteBackedSpace space = (SQLiteBackedSpace) SQLiteBackedSpace.create(db);
+        Identity id = Identity.valueOf("/sys.0/host.0");
+
+        space.store(id, "address", "10.0.0.1");
+        Object added = space.identitiesVersion();
+
+        space.store(id, "address", "10.0.0.2");
+        space.store(id, "state", "installed");
+        space.delete(id, "state");
+        assertThat(space.identitiesVersion(), equalTo(added));
+
+        space.delete(id, "address");
+        assertThat(space.identitiesVersion().equals(added), equalTo(false));
+        db.delete();
+    }
 }
@@ -0,0 +1,145 @@
+package com.ning.atlas.space;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.ning.atlas.ActualDeployment;
+import com.ning.atlas.spi.Identity;
+import com.ning.atlas.spi.space.Core;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+public class TestSpaceCollector
+{
+    private static final Identity SYSTEM   = Identity.valueOf("/sys.0");
+    private static final Identity LIVE     = Identity.valueOf("/sys.0/host.0");
+    private static final Identity UNWIND   = Identity.valueOf("/sys.0/host.0/atlas.unwind");
+    private static final Identity READ     = Identity.valueOf("/sys.0/host.1");
+    private static final Identity GONE     = Identity.valueOf("/sys.0/host.2");
+    private static final Identity GONE_KID = Identity.valueOf("/sys.0/host.2/galaxy.installer");
+    private static final Identity CREDS    = Core.ID.createChild("ssh", "config").createChild("credentials", "x");
+
+    private InMemorySpace space;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        space = InMemorySpace.newInstance();
+        for (Identity id : ImmutableSet.of(SYSTEM, LIVE, UNWIND, READ, GONE, GONE_KID, CREDS)) {
+            space.store(id, "name", id.toExternalForm());
+        }
+    }
+
+    private SpaceCollector.Report deploy(SpaceCollector gc)
+    {
+        gc.start();
+        space.get(READ, "name");
+        findUnwindable();
+        return gc.finish(Collections.singleton(LIVE));
+    }
+
+    /**
+     * As a converge looks for what to unwind, asking every identity but the live host for its
+     * unwind record
+     */
+    private void findUnwindable()
+    {
+        List<Identity> records = Lists.newArrayList();
+        for (Identity id : space.findAllIdentities()) {
+            if (!id.equals(LIVE)) {
+                records.add(id.createChild("atlas", "unwind"));
+            }
+        }
+        space.getBeans(records, ActualDeployment.WhatWasDone.class);
+    }
+
+    @Test
+    public void testSweepAfterRetention() throws Exception
+    {
+        SpaceCollector gc = SpaceCollector.create(space, ImmutableMap.of(SpaceCollector.MODE_PROPERTY, "sweep",
+                                                                         SpaceCollector.RETAIN_PROPERTY, "2"));
+
+        assertThat(deploy(gc).getCollected().isEmpty(), equalTo(true));
+        assertThat(space.get(GONE, "name").isKnown(), equalTo(true));
+
+        SpaceCollector.Report report = deploy(gc);
+        assertThat(report.getCollected(), equalTo((Set<Identity>) ImmutableSet.of(GONE, GONE_KID)));
+        assertThat(report.getKeys(), equalTo(2));
+
+        assertThat(space.get(GONE, "name").isKnown(), equalTo(false));
+        assertThat(space.get(GONE_KID, "name").isKnown(), equalTo(false));
+        for (Identity id : ImmutableSet.of(SYSTEM, LIVE, UNWIND, READ, CREDS)) {
+            assertThat(id.toExternalForm(), space.get(id, "name").isKnown(), equalTo(true));
+        }
+        assertThat(space.getAllFor(SpaceCollector.UNMARKED).isEmpty(), equalTo(true));
+    }
+
+    @Test
+    public void testMarkingResetsRetention() throws Exception
+    {
+        SpaceCollector gc = SpaceCollector.create(space, ImmutableMap.of(SpaceCollector.MODE_PROPERTY, "sweep",
+                                                                         SpaceCollector.RETAIN_PROPERTY, "2"));
+        deploy(gc);
+
+        gc.start();
+        space.get(GONE, "name");
+        gc.finish(Collections.singleton(LIVE));
+
+        // which kept what is below it too
+        assertThat(deploy(gc).getCollected().isEmpty(), equalTo(true));
+        assertThat(deploy(gc).getCollected(), equalTo((Set<Identity>) ImmutableSet.of(GONE, GONE_KID)));
+    }
+
+    @Test
+    public void testMissesDoNotMark() throws Exception
+    {
+        SpaceCollector gc = SpaceCollector.create(space, ImmutableMap.of(SpaceCollector.MODE_PROPERTY, "sweep",
+                                                                         SpaceCollector.RETAIN_PROPERTY, "1"));
+        gc.start();
+        space.get(READ, "name");
+        space.get(GONE, "missing");
+        space.getAllFor(GONE.createChild("galaxy", "deployer"));
+        SpaceCollector.Report report = gc.finish(Collections.singleton(LIVE));
+
+        assertThat(report.getCollected(), equalTo((Set<Identity>) ImmutableSet.of(GONE, GONE_KID)));
+    }
+
+    @Test
+    public void testDryRunRemovesNothing() throws Exception
+    {
+        SpaceCollector gc = SpaceCollector.create(space, ImmutableMap.of(SpaceCollector.MODE_PROPERTY, "dry-run",
+                                                                         SpaceCollector.RETAIN_PROPERTY, "1"));
+
+        SpaceCollector.Report report = deploy(gc);
+        assertThat(report.isDryRun(), equalTo(true));
+        assertThat(report.getCollected(), equalTo((Set<Identity>) ImmutableSet.of(GONE, GONE_KID)));
+        assertThat(space.get(GONE, "name").isKnown(), equalTo(true));
+        assertThat(space.get(GONE_KID, "name").isKnown(), equalTo(true));
+    }
+
+    @Test
+    public void testOff() throws Exception
+    {
+        SpaceCollector gc = SpaceCollector.create(space, ImmutableMap.of(SpaceCollector.MODE_PROPERTY, "off",
+                                                                         SpaceCollector.RETAIN_PROPERTY, "1"));
+        assertThat(deploy(gc).getCollected().isEmpty(), equalTo(true));
+        assertThat(space.getAllFor(SpaceCollector.UNMARKED).isEmpty(), equalTo(true));
+    }
+
+    @Test
+    public void testOffByDefault() throws Exception
+    {
+        SpaceCollector gc = SpaceCollector.create(space, ImmutableMap.of(SpaceCollector.RETAIN_PROPERTY, "1"));
+        SpaceCollector.Report report = deploy(gc);
+        assertThat(report.isDryRun(), equalTo(false));
+        assertThat(report.getCollected().isEmpty(), equalTo(true));
+        assertThat(space.getAllFor(SpaceCollector.UNMARKED).isEmpty(), equalTo(true));
+    }
+}
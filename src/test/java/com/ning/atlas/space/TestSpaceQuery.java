@@ -1,13 +1,23 @@
 package com.ning.atlas.space;
 
+import com.google.common.base.Predicate;
+import com.google.common.base.Predicates;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.ning.atlas.spi.Identity;
+import com.ning.atlas.spi.space.Space;
+import org.apache.commons.lang3.tuple.Pair;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.io.File;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
 import java.util.Set;
 
 import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.sameInstance;
 import static org.junit.Assert.assertThat;
 
 public class TestSpaceQuery
@@ -69,4 +79,82 @@ public class TestSpaceQuery
         assertThat(rs, equalTo(expected));
     }
 
+    @Test
+    public void testBuiltFromPredicates() throws Exception
+    {
+        Predicate<Pair<String, String>> bots = new Predicate<Pair<String, String>>()
+        {
+            @Override
+            public boolean apply(Pair<String, String> input)
+            {
+                return "bot".equals(input.getLeft());
+            }
+        };
+        SpaceQuery sq = new SpaceQuery(ImmutableList.of(Predicates.<Pair<String, String>>alwaysTrue(), bots), "name");
+
+        Set<String> expected = ImmutableSet.of("Google", "Bing");
+        assertThat(sq.query(space), equalTo(expected));
+    }
+
+    @Test
+    public void testSeesChangesAfterFirstQuery() throws Exception
+    {
+        SpaceQuery sq = new QueryParser().parse("/*/thing.*:name");
+        assertThat(sq.query(space), equalTo((Set<String>) ImmutableSet.of("Brian", "Sam", "Kate")));
+
+        space.store(Identity.valueOf("/root.2/thing.0"), "name", "Eric");
+        space.deleteAll(Identity.valueOf("/root.0/thing.1"));
+        space.delete(Identity.valueOf("/root.0/thing.2"), "name");
+
+        assertThat(sq.query(space), equalTo((Set<String>) ImmutableSet.of("Brian", "Eric")));
+    }
+
+    @Test
+    public void testSQLiteBackedSpace() throws Exception
+    {
+        File db = File.createTempFile("atlas", ".db");
+        try {
+            Space sqlite = SQLiteBackedSpace.create(db);
+            for (Identity id : space.findAllIdentities()) {
+                sqlite.store(id, "name", space.get(id, "name").getValue());
+            }
+
+            Set<String> rs = new QueryParser().parse("/*/thing.*:name").query(sqlite);
+            assertThat(rs, equalTo((Set<String>) ImmutableSet.of("Brian", "Sam", "Kate")));
+        }
+        finally {
+            db.delete();
+        }
+    }
+
+    @Test
+    public void testCompiledQueriesAreShared() throws Exception
+    {
+        SpaceQuery sq = QueryParser.compile("/*/<t\\w+>.*:name");
+        assertThat(QueryParser.compile("/*/<t\\w+>.*:name"), sameInstance(sq));
+        assertThat(space.query("/*/<t\\w+>.*:name"), equalTo((Set<String>) ImmutableSet.of("Brian", "Sam", "Kate")));
+    }
+
+    @Test
+    public void testSpaceWithoutIndex() throws Exception
+    {
+        // hides the identity index, as any other kind of space would
+        Space plain = (Space) Proxy.newProxyInstance(Space.class.getClassLoader(),
+                                                     new Class[]{Space.class},
+                                                     new InvocationHandler()
+                                                     {
+                                                         @Override
+                                                         public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+                                                         {
+                                                             return method.invoke(space, args);
+                                                         }
+                                                     });
+
+        assertThat(new QueryParser().parse("/*/thing.*:name").query(plain),
+                   equalTo((Set<String>) ImmutableSet.of("Brian", "Sam", "Kate")));
+        assertThat(new QueryParser().parse("/root.1/*/*:name").query(plain),
+                   equalTo((Set<String>) ImmutableSet.of("Altavista")));
+        assertThat(new QueryParser().parse("/root.1/*.1:name").query(plain),
+                   equalTo((Set<String>) ImmutableSet.of("Bing")));
+    }
 }
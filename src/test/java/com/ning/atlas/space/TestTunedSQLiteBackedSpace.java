@@ -0,0 +1,94 @@
+package com.ning.atlas.space;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.ning.atlas.spi.Identity;
+import com.ning.atlas.spi.space.Space;
+import com.ning.atlas.spi.space.SpaceKey;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+public class TestTunedSQLiteBackedSpace extends BaseSpaceTest
+{
+    private static final Map<String, String> TUNED = ImmutableMap.of(SQLiteBackedSpace.JOURNAL_MODE_PROPERTY, "wal",
+                                                                     SQLiteBackedSpace.SYNCHRONOUS_PROPERTY, "normal",
+                                                                     SQLiteBackedSpace.READERS_PROPERTY, "4");
+
+    private File tmp;
+
+    @Override
+    protected Space createSpace() throws IOException
+    {
+        this.tmp = File.createTempFile("atlas", ".db");
+        return SQLiteBackedSpace.create(tmp, TUNED);
+    }
+
+    @Override
+    protected void destroySpace(Space space) throws IOException
+    {
+        space.close();
+        tmp.delete();
+    }
+
+    @Test
+    public void testWritesGoToWriteAheadLog() throws Exception
+    {
+        File db = File.createTempFile("atlas", ".db");
+        Space space = SQLiteBackedSpace.create(db, TUNED);
+
+        Identity id = Identity.root().createChild("test", "0");
+        space.store(id, "hello", "world");
+        space.flush();
+
+        assertThat(new File(db.getPath() + "-wal").exists(), equalTo(true));
+        assertThat(SQLiteBackedSpace.create(db).get(id, "hello").getValue(), equalTo("world"));
+    }
+
+    @Test
+    public void testCloseReleasesConnections() throws Exception
+    {
+        File db = File.createTempFile("atlas", ".db");
+        Space space = SQLiteBackedSpace.create(db, TUNED);
+
+        Identity id = Identity.root().createChild("test", "0");
+        space.store(id, "hello", "world");
+        space.close();
+
+        // sqlite checkpoints and removes the log when the last connection closes
+        assertThat(new File(db.getPath() + "-wal").exists(), equalTo(false));
+        assertThat(SQLiteBackedSpace.create(db).get(id, "hello").getValue(), equalTo("world"));
+    }
+
+    @Test
+    public void testStatementsOutgrowingTheCache() throws Exception
+    {
+        File db = File.createTempFile("atlas", ".db");
+        Space space = SQLiteBackedSpace.create(db, TUNED);
+
+        // each size of key list is its own statement, more of them than a connection keeps
+        Identity id = Identity.root().createChild("test", "0");
+        List<SpaceKey> keys = Lists.newArrayList();
+        for (int i = 0; i < 50; i++) {
+            space.store(id, "key-" + i, "value-" + i);
+            keys.add(SpaceKey.from(id, "key-" + i));
+            assertThat(space.getAll(keys).size(), equalTo(i + 1));
+        }
+        assertThat(space.get(id, "key-0").getValue(), equalTo("value-0"));
+        assertThat(space.getAll(keys.subList(0, 1)).size(), equalTo(1));
+        space.close();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testUnknownJournalMode() throws Exception
+    {
+        SQLiteBackedSpace.create(File.createTempFile("atlas", ".db"),
+                                 ImmutableMap.of(SQLiteBackedSpace.JOURNAL_MODE_PROPERTY, "wol"));
+    }
+}
@@ -0,0 +1,150 @@
+package com.ning.atlas.space;
+
+import com.google.common.collect.ImmutableMap;
+import com.ning.atlas.spi.Identity;
+import com.ning.atlas.spi.space.Space;
+import com.ning.atlas.spi.space.SpaceKey;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Map;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+public class TestVersionedSpace extends BaseSpaceTest
+{
+    private static final Identity HOST  = Identity.valueOf("/sys.0/host.0");
+    private static final Identity OTHER = Identity.valueOf("/sys.0/host.1");
+
+    @Override
+    protected Space createSpace() throws IOException
+    {
+        return VersionedSpace.create(InMemorySpace.newInstance(), 3);
+    }
+
+    @Override
+    protected void destroySpace(Space space) throws IOException
+    {
+    }
+
+    @Test
+    public void testAsOf() throws Exception
+    {
+        VersionedSpace space = VersionedSpace.create(InMemorySpace.newInstance(), 10);
+        space.store(HOST, "state", "provisioned");
+        space.store(HOST, "state", "still provisioned");
+        long first = space.snapshot();
+
+        space.store(HOST, "state", "installed");
+        space.store(OTHER, "state", "provisioned");
+        long second = space.snapshot();
+
+        space.delete(HOST, "state");
+        space.deleteAll(OTHER);
+
+        Space then = space.asOf(first);
+        assertThat(then.get(HOST, "state").getValue(), equalTo("still provisioned"));
+        assertThat(then.get(OTHER, "state").isKnown(), equalTo(false));
+
+        then = space.asOf(second);
+        assertThat(then.get(HOST, "state").getValue(), equalTo("installed"));
+        assertThat(then.get(OTHER, "state").getValue(), equalTo("provisioned"));
+        assertThat(then.getAllFor(Identity.valueOf("/sys.0")).size(), equalTo(2));
+        assertThat(then.findAllIdentities().size(), equalTo(2));
+
+        assertThat(space.asOf(space.getGeneration()).getAllFor(Identity.root()).isEmpty(), equalTo(true));
+    }
+
+    @Test
+    public void testHistoryIsHidden() throws Exception
+    {
+        VersionedSpace space = VersionedSpace.create(InMemorySpace.newInstance(), 10);
+        space.store(HOST, "state", "provisioned");
+        space.snapshot();
+        space.store(HOST, "state", "installed");
+
+        assertThat(space.findAllIdentities().size(), equalTo(1));
+        assertThat(space.getAllFor(Identity.root()),
+                   equalTo((Map<SpaceKey, String>) ImmutableMap.of(SpaceKey.from(HOST, "state"), "installed")));
+
+        space.deleteAll(Identity.root());
+        assertThat(space.findAllIdentities().isEmpty(), equalTo(true));
+        assertThat(space.asOf(0).get(HOST, "state").getValue(), equalTo("provisioned"));
+    }
+
+    @Test
+    public void testOnlyChangesAreKept() throws Exception
+    {
+        InMemorySpace store = InMemorySpace.newInstance();
+        VersionedSpace space = VersionedSpace.create(store, 10);
+        for (int i = 0; i < 100; i++) {
+            space.store(HOST, "counter", String.valueOf(i));
+        }
+        space.store(OTHER, "state", "provisioned");
+        space.snapshot();
+
+        // one undo entry for each key changed in the generation, not each write
+        assertThat(store.getAllFor(Identity.valueOf("/atlas.core/space.history/generation.0")).size(), equalTo(2));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testOldGenerationsAreDropped() throws Exception
+    {
+        VersionedSpace space = VersionedSpace.create(InMemorySpace.newInstance(), 2);
+        for (int i = 0; i < 5; i++) {
+            space.store(HOST, "counter", String.valueOf(i));
+            space.snapshot();
+        }
+        assertThat(space.asOf(2).get(HOST, "counter").getValue(), equalTo("2"));
+        space.asOf(1);
+    }
+
+    @Test
+    public void testGenerationsOutliveTheSpace() throws Exception
+    {
+        InMemorySpace store = InMemorySpace.newInstance();
+        VersionedSpace space = VersionedSpace.create(store, 10);
+        space.store(HOST, "state", "provisioned");
+        assertThat(space.deployed(), equalTo(0L));
+        space.store(HOST, "state", "installed");
+
+        VersionedSpace again = VersionedSpace.create(store, 10);
+        assertThat(again.getGeneration(), equalTo(1L));
+        assertThat(again.getLastDeployed(), equalTo(0L));
+        assertThat(again.asOf(again.getLastDeployed()).get(HOST, "state").getValue(), equalTo("provisioned"));
+    }
+
+    @Test
+    public void testReopenedMidGeneration() throws Exception
+    {
+        InMemorySpace store = InMemorySpace.newInstance();
+        VersionedSpace space = VersionedSpace.create(store, 10);
+        space.store(HOST, "state", "provisioned");
+        assertThat(space.deployed(), equalTo(0L));
+        space.store(HOST, "state", "initialized");
+
+        // knows nothing of what was copied before, only the undo log does
+        VersionedSpace again = VersionedSpace.create(store, 10);
+        again.store(HOST, "state", "installed");
+        again.store(HOST, "address", "10.0.0.1");
+
+        Space deployed = again.asOf(again.getLastDeployed());
+        assertThat(deployed.get(HOST, "state").getValue(), equalTo("provisioned"));
+        assertThat(deployed.get(HOST, "address").isKnown(), equalTo(false));
+        assertThat(again.get(HOST, "state").getValue(), equalTo("installed"));
+    }
+
+    @Test
+    public void testNoHistory() throws Exception
+    {
+        Space store = InMemorySpace.newInstance();
+        assertThat(VersionedSpace.create(store, ImmutableMap.of(VersionedSpace.HISTORY_PROPERTY, "0")),
+                   sameInstance(store));
+        assertThat(VersionedSpace.create(store, ImmutableMap.<String, String>of()), sameInstance(store));
+        assertThat(VersionedSpace.create(store, ImmutableMap.of(VersionedSpace.HISTORY_PROPERTY, "50")),
+                   instanceOf(VersionedSpace.class));
+    }
+}
@@ -0,0 +1,150 @@
+package com.ning.atlas.space;
+
+import com.ning.atlas.spi.Identity;
+import com.ning.atlas.spi.space.Space;
+import com.ning.atlas.spi.space.SpaceKey;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+public class TestWriteBehindSQLiteBackedSpace extends BaseSpaceTest
+{
+    private File tmp;
+
+    @Override
+    protected Space createSpace() throws IOException
+    {
+        this.tmp = File.createTempFile("atlas", ".db");
+        return SQLiteBackedSpace.createWriteBehind(tmp, 100, 1, TimeUnit.HOURS);
+    }
+
+    @Override
+    protected void destroySpace(Space space) throws IOException
+    {
+        tmp.delete();
+    }
+
+    @Test
+    public void testQueuedWritesAreVisibleBeforeFlush() throws Exception
+    {
+        File db = File.createTempFile("atlas", ".db");
+        Space space = SQLiteBackedSpace.createWriteBehind(db, 100, 1, TimeUnit.HOURS);
+        Space other = SQLiteBackedSpace.create(db);
+
+        Identity id = Identity.root().createChild("test", "0");
+        space.store(id, "hello", "world");
+
+        assertThat(space.get(id, "hello").getValue(), equalTo("world"));
+        assertThat(space.getAllFor(id).get(SpaceKey.from(id, "hello")), equalTo("world"));
+        assertThat(space.findAllIdentities().contains(id), equalTo(true));
+        assertThat(other.get(id, "hello").isKnown(), equalTo(false));
+
+        space.flush();
+        assertThat(other.get(id, "hello").getValue(), equalTo("world"));
+        db.delete();
+    }
+
+    @Test
+    public void testFullBatchIsCommitted() throws Exception
+    {
+        File db = File.createTempFile("atlas", ".db");
+        Space space = SQLiteBackedSpace.createWriteBehind(db, 3, 1, TimeUnit.HOURS);
+        Space other = SQLiteBackedSpace.create(db);
+
+        Identity id = Identity.root().createChild("test", "0");
+        space.store(id, "a", "1");
+        space.store(id, "b", "2");
+        assertThat(other.getAllFor(id).size(), equalTo(0));
+
+        space.store(id, "c", "3");
+        Map<SpaceKey, String> committed = other.getAllFor(id);
+        assertThat(committed.size(), equalTo(3));
+        db.delete();
+    }
+
+    @Test
+    public void testDeleteIsNotUndoneByQueuedWrite() throws Exception
+    {
+        File db = File.createTempFile("atlas", ".db");
+        Space space = SQLiteBackedSpace.createWriteBehind(db, 100, 1, TimeUnit.HOURS);
+
+        Identity id = Identity.root().createChild("test", "0");
+        space.store(id, "hello", "world");
+        space.delete(id, "hello");
+        space.flush();
+
+        assertThat(space.get(id, "hello").isKnown(), equalTo(false));
+        assertThat(SQLiteBackedSpace.create(db).get(id, "hello").isKnown(), equalTo(false));
+        db.delete();
+    }
+
+    @Test
+    public void testWriteThroughByDefault() throws Exception
+    {
+        File db = File.createTempFile("atlas", ".db");
+        Space space = SQLiteBackedSpace.create(db, Collections.<String, String>emptyMap());
+        Space other = SQLiteBackedSpace.create(db);
+
+        Identity id = Identity.root().createChild("test", "0");
+        space.store(id, "hello", "world");
+        assertThat(other.get(id, "hello").getValue(), equalTo("world"));
+        db.delete();
+    }
+
+    @Test
+    public void testCloseCommitsQueuedWrites() throws Exception
+    {
+        File db = File.createTempFile("atlas", ".db");
+        SQLiteBackedSpace space = SQLiteBackedSpace.createWriteBehind(db, 100, 1, TimeUnit.HOURS);
+
+        Identity id = Identity.root().createChild("test", "0");
+        space.store(id, "hello", "world");
+        space.close();
+
+        assertThat(SQLiteBackedSpace.create(db).get(id, "hello").getValue(), equalTo("world"));
+        db.delete();
+    }
+
+    @Test
+    public void testReadsNeverGoBackwards() throws Exception
+    {
+        File db = File.createTempFile("atlas", ".db");
+        final SQLiteBackedSpace space = SQLiteBackedSpace.createWriteBehind(db, 100, 1, TimeUnit.HOURS);
+        final Identity id = Identity.root().createChild("test", "0");
+        space.store(id, "counter", "0");
+
+        final AtomicBoolean done = new AtomicBoolean(false);
+        Thread writer = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                for (int i = 1; i <= 500; i++) {
+                    space.store(id, "counter", String.valueOf(i));
+                    space.flush();
+                }
+                done.set(true);
+            }
+        });
+        writer.start();
+
+        // a copy of the queue taken before a commit must not hide what later commits put in the table
+        int last = 0;
+        while (!done.get()) {
+            int seen = Integer.parseInt(space.getAllFor(id).get(SpaceKey.from(id, "counter")));
+            assertThat(seen >= last, equalTo(true));
+            last = seen;
+        }
+        writer.join();
+        space.close();
+        db.delete();
+    }
+}